@@ -0,0 +1,25 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A throwaway SQLite file per benchmark fork, so runs never touch chat.db.
+ */
+final class BenchDatabase {
+
+    private BenchDatabase() {}
+
+    static void open() {
+        try {
+            Path dir = Files.createTempDirectory("chat-jmh");
+            dir.toFile().deleteOnExit();
+            UserManager.useDatabase("jdbc:sqlite:" + dir.resolve("bench.db"));
+            RoomManager.init();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
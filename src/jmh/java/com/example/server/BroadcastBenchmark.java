@@ -0,0 +1,81 @@
+package com.example.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ChatServer#broadcastRoom} fan-out to TCP members (through {@link ClientHandler}
+ * with a sink transport) and WebSocket members (through the bridge with stub sockets).
+ * Uses a "> " notice so the numbers are fan-out only; persistence is in {@link MessageBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int roomSize;
+
+    private static final String ROOM = "bench";
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole bh) {
+        BenchDatabase.open();
+        WebSocketBridge bridge = new WebSocketBridge(0);
+        ChatServer.addRoomBroadcastListener(bridge);
+        LongAdder wsSends = new LongAdder();
+        for (int i = 0; i < roomSize; i++) {
+            String tcpUser = "tcp" + i;
+            ChatServer.addUser(tcpUser, new ClientHandler(new SinkTransport(bh)));
+            ChatServer.joinRoom(tcpUser, ROOM);
+
+            String wsUser = "ws" + i;
+            StubWebSocket ws = new StubWebSocket(wsSends);
+            bridge.bind(ws, wsUser);
+            bridge.moveToRoom(ws, wsUser, ROOM);
+        }
+    }
+
+    @Benchmark
+    public void broadcastRoom() {
+        ChatServer.broadcastRoom(ROOM, "> bench notice", "tcp0");
+    }
+
+    private static final class SinkTransport implements ClientTransport {
+        private final Blackhole bh;
+
+        SinkTransport(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void send(EncodedLine line) {
+            bh.consume(line);
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    }
+}
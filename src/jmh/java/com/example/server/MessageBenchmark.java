@@ -0,0 +1,71 @@
+package com.example.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message persistence and backlog reads in each store. With {@code sqlite}, {@code saveMessage}
+ * only enqueues, so sustained throughput is bounded by the group-commit writer once its queue
+ * fills; with {@code log} it is a copy into the room's mapped segment. {@code search} goes through
+ * FTS5 or the in-memory inverted index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    private static final String ROOM = "bench";
+
+    @Param({"sqlite", "log"})
+    public String store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchDatabase.open();
+        if (store.equals("log")) {
+            MessageManager.useStore(new LogMessageStore(Database.file().resolveSibling("bench.messages"),
+                    ServerConfig.LOG_SEGMENT_BYTES, ServerConfig.LOG_SYNC_MS));
+        }
+        for (int i = 0; i < 1_000; i++) MessageManager.saveMessage(ROOM, "seed", "seed message " + i);
+        MessageManager.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MessageManager.flush();
+    }
+
+    @Benchmark
+    public ChatMessage saveMessage() {
+        return MessageManager.saveMessage(ROOM, "bench", "hello from the benchmark");
+    }
+
+    @Benchmark
+    public List<String> getLastMessages() {
+        return MessageManager.getLastMessages(ROOM, 20);
+    }
+
+    @Benchmark
+    public MessageManager.Page search() {
+        return MessageManager.search(Set.of(ROOM), "seed message 500", 0, 20);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserBenchmark {
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchDatabase.open();
+        UserManager.register("bench", "secret");
+    }
+
+    @Benchmark
+    public boolean login() {
+        return UserManager.login("bench", "secret");
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return UserManager.hashPassword("secret", "c2FsdHNhbHRzYWx0c2FsdA==");
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.server;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bridge's JSON work per message: parsing an inbound request and encoding a room message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketJsonBenchmark {
+
+    private final String inbound = "{\"type\":\"message\",\"text\":\"hello everyone, how is it going?\"}";
+
+    @Benchmark
+    public JsonObject decode() {
+        return WebSocketBridge.parse(inbound);
+    }
+
+    @Benchmark
+    public String encode() {
+        return WebSocketBridge.roomMessageJson("lobby", "alice: hello everyone, how is it going?", "alice", 42);
+    }
+}
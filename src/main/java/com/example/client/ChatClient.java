@@ -1,10 +1,25 @@
 package com.example.client;
 
+import com.example.server.BinaryProtocol;
+import com.example.server.StreamDeflater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public class ChatClient {
 
@@ -12,29 +27,121 @@ public class ChatClient {
         String address = "localhost";
         int port = 6969;
 
+        List<String> flags = args == null ? List.of() : List.of(args);
+        boolean binary = flags.contains("--binary");
+        boolean deflate = flags.contains("--deflate");
+
         try (Socket socket = new Socket(address, port);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
              BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+            OutputStream rawOut = new BufferedOutputStream(socket.getOutputStream());
+            System.out.println(readLine(rawIn));
 
-            new Thread(() -> {
-                String response;
-                try {
-                    while ((response = in.readLine()) != null) {
-                        System.out.println(response);
-                    }
-                } catch (IOException e) {
-                    System.out.println("Connection closed.");
+            InputStream streamIn = rawIn;
+            OutputStream streamOut = rawOut;
+            if (deflate) {
+                rawOut.write((StreamDeflater.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+                rawOut.flush();
+                String reply = readLine(rawIn);
+                System.out.println(reply);
+                // Everything after the plain reply is one raw DEFLATE stream each way.
+                if (reply.equals("Compression on.")) {
+                    streamIn = StreamDeflater.inflating(rawIn);
+                    streamOut = new DeflaterOutputStream(rawOut, new Deflater(Deflater.DEFAULT_COMPRESSION, true), true);
                 }
-            }).start();
-
-            String input;
-            while ((input = console.readLine()) != null) {
-                out.println(input);
-                if (input.equalsIgnoreCase("quit")) break;
             }
+
+            if (binary) runBinary(streamIn, new DataOutputStream(streamOut), console);
+            else runLines(streamIn, streamOut, console);
         } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
+
+    private static void runLines(InputStream rawIn, OutputStream rawOut, BufferedReader console) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(rawIn, StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
+
+        new Thread(() -> {
+            String response;
+            try {
+                while ((response = in.readLine()) != null) {
+                    System.out.println(response);
+                }
+            } catch (IOException e) {
+                System.out.println("Connection closed.");
+            }
+        }).start();
+
+        String input;
+        while ((input = console.readLine()) != null) {
+            out.println(input);
+            if (input.equalsIgnoreCase("quit")) break;
+        }
+    }
+
+    // Same console, spoken over BinaryProtocol frames: commands become typed requests,
+    // anything else (the login dialogue, chat text) goes as a plain LINE.
+    private static void runBinary(InputStream raw, DataOutputStream out, BufferedReader console) throws IOException {
+        out.write((BinaryProtocol.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        DataInputStream in = new DataInputStream(raw);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    BinaryProtocol.Frame frame = BinaryProtocol.read(in);
+                    switch (frame.op()) {
+                        case BinaryProtocol.TEXT -> System.out.println(frame.payload());
+                        case BinaryProtocol.MESSAGE -> System.out.println(frame.fields(3)[2]);
+                        default -> { }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Connection closed.");
+            }
+        }).start();
+
+        long nextId = 1;
+        String input;
+        while ((input = console.readLine()) != null) {
+            out.write(toFrame(nextId++, input));
+            out.flush();
+            if (input.equalsIgnoreCase("quit")) break;
+        }
+    }
+
+    private static byte[] toFrame(long id, String input) {
+        String[] parts = input.split(" ", 3);
+        switch (parts[0].toLowerCase()) {
+            case "quit" -> {
+                return BinaryProtocol.encode(BinaryProtocol.QUIT, id, "");
+            }
+            case "/join" -> {
+                if (parts.length > 1) return BinaryProtocol.encode(BinaryProtocol.JOIN, id, input.substring(6));
+            }
+            case "/leave" -> {
+                return BinaryProtocol.encode(BinaryProtocol.LEAVE, id, "");
+            }
+            case "/rooms" -> {
+                return BinaryProtocol.encode(BinaryProtocol.ROOMS, id, "");
+            }
+            case "/who" -> {
+                return BinaryProtocol.encode(BinaryProtocol.WHO, id, "");
+            }
+            case "/pm" -> {
+                if (parts.length == 3) return BinaryProtocol.encode(BinaryProtocol.PM, id, BinaryProtocol.join(parts[1], parts[2]));
+            }
+            default -> { }
+        }
+        return BinaryProtocol.encode(BinaryProtocol.LINE, id, input);
+    }
+
+    // One plain line before any switch; what follows stays in {@code in}.
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') line.write(b);
+        return line.toString(StandardCharsets.UTF_8).stripTrailing();
+    }
 }
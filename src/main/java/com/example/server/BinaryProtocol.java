@@ -0,0 +1,157 @@
+package com.example.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Optional binary framing for the TCP port. A client that sends the line {@code binary}
+ * as its first line (after the welcome) gets frames from then on, in both directions:
+ *
+ * <pre>
+ *   u32 length   bytes that follow (opcode + id + payload), big-endian
+ *   u8  opcode
+ *   i64 id       request id chosen by the client, echoed on the replies to it;
+ *                the stored message id on MESSAGE frames (0 for join/leave notices)
+ *   ... payload  UTF-8; multi-field payloads separate fields with '\0'
+ * </pre>
+ *
+ * Every request is answered by zero or more TEXT frames carrying its id, then one DONE,
+ * so a client can pipeline requests and match the replies. Frames not caused by a request
+ * (room messages, private messages, presence notices) use id 0 or the message id.
+ */
+public final class BinaryProtocol {
+
+    public static final String NEGOTIATE = "binary";
+
+    public static final int HEADER = 13;
+    // Whole frame, length field included.
+    public static final int MAX_FRAME = 64 * 1024;
+    public static final char SEPARATOR = '\0';
+
+    /* -- Client to server -- */
+
+    // Any line of the text protocol, e.g. a login dialogue step or an admin command.
+    public static final byte LINE = 0x01;
+    public static final byte LOGIN = 0x02;       // user \0 password
+    public static final byte REGISTER = 0x03;    // user \0 password
+    public static final byte RESUME = 0x04;      // token [\0 lastSeenId]
+    public static final byte JOIN = 0x10;        // room
+    public static final byte LEAVE = 0x11;
+    public static final byte SAY = 0x12;         // text, sent to the current room as is
+    public static final byte PM = 0x13;          // user \0 text
+    public static final byte HISTORY = 0x14;     // [beforeId] [\0 limit]
+    public static final byte ROOMS = 0x15;
+    public static final byte WHO = 0x16;
+    public static final byte QUIT = 0x17;
+    public static final byte SEARCH = 0x18;      // query [\0 offset] [\0 limit]
+
+    /* -- Server to client -- */
+
+    public static final byte TEXT = 0x40;        // a reply or notice line
+    public static final byte MESSAGE = 0x41;     // room \0 sender \0 line
+    public static final byte DONE = 0x42;        // the request with this id is finished
+
+    public record Frame(byte op, long id, String payload) {
+        /**
+         * The payload split on '\0' into at most {@code limit} fields.
+         */
+        public String[] fields(int limit) {
+            return payload.split(String.valueOf(SEPARATOR), limit);
+        }
+    }
+
+    private BinaryProtocol() {}
+
+    /**
+     * One frame; or, for a TEXT payload too long for one, several TEXT frames back to back, split
+     * at line breaks where there are any. Any other payload must fit, see {@link #fitsMessage}.
+     */
+    public static byte[] encode(byte op, long id, String payload) {
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        if (HEADER + body.length <= MAX_FRAME) return frame(op, id, body, 0, body.length);
+        if (op != TEXT) throw new IllegalArgumentException("Payload of " + body.length + " bytes does not fit in a frame");
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(body.length + body.length / (MAX_FRAME - HEADER) * 2 * HEADER);
+        int from = 0;
+        while (from < body.length) {
+            int to = Math.min(body.length, from + MAX_FRAME - HEADER);
+            int next = to;
+            if (to < body.length) {
+                int lineBreak = lastIndexOf(body, (byte) '\n', from, to);
+                if (lineBreak > from) {
+                    to = lineBreak;
+                    next = lineBreak + 1;
+                } else {
+                    // Not inside a UTF-8 sequence.
+                    while ((body[to] & 0xC0) == 0x80) to--;
+                    next = to;
+                }
+            }
+            frames.writeBytes(frame(op, id, body, from, to - from));
+            from = next;
+        }
+        return frames.toByteArray();
+    }
+
+    private static byte[] frame(byte op, long id, byte[] body, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + length);
+        frame.putInt(1 + 8 + length).put(op).putLong(id).put(body, offset, length);
+        return frame.array();
+    }
+
+    private static int lastIndexOf(byte[] b, byte value, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (b[i] == value) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether a room line fits in one MESSAGE frame with its room and sender. Senders are asked to
+     * shorten lines that don't, so every member can receive them.
+     */
+    public static boolean fitsMessage(String room, String sender, String line) {
+        return HEADER + join(room, sender, line).getBytes(StandardCharsets.UTF_8).length <= MAX_FRAME;
+    }
+
+    /**
+     * Whether a line fits in one TEXT frame.
+     */
+    public static boolean fitsText(String line) {
+        return HEADER + line.getBytes(StandardCharsets.UTF_8).length <= MAX_FRAME;
+    }
+
+    public static String join(String... fields) {
+        return String.join(String.valueOf(SEPARATOR), fields);
+    }
+
+    /**
+     * Reads one frame; throws {@link java.io.EOFException} at end of stream.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte op = in.readByte();
+        long id = in.readLong();
+        byte[] payload = new byte[length - 9];
+        in.readFully(payload);
+        return new Frame(op, id, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes the frame whose length field starts at {@code offset}; the caller has checked it is complete.
+     */
+    static Frame decode(byte[] buf, int offset) {
+        ByteBuffer b = ByteBuffer.wrap(buf, offset, HEADER);
+        int length = b.getInt();
+        byte op = b.get();
+        long id = b.getLong();
+        return new Frame(op, id, new String(buf, offset + HEADER, length - 9, StandardCharsets.UTF_8));
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 9 || length > MAX_FRAME - 4) throw new IOException("Bad frame length " + length);
+    }
+}
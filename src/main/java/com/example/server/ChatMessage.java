@@ -0,0 +1,36 @@
+package com.example.server;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * A stored room message. Ids are assigned by {@link MessageManager} when the message
+ * is saved, so in-memory copies and database rows agree before the row is committed.
+ */
+public record ChatMessage(long id, String room, String user, String text, String timestamp) {
+
+    // Same shape as SQLite's CURRENT_TIMESTAMP.
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    static String now() {
+        return timestamp(Instant.now());
+    }
+
+    static String timestamp(Instant instant) {
+        return TIMESTAMP.format(instant);
+    }
+
+    /**
+     * The backlog line shown to clients: {@code [timestamp] user: text}.
+     */
+    public String format() {
+        return "[" + timestamp + "] " + user + ": " + text;
+    }
+
+    // Rough heap footprint, used for the history memory cap.
+    int estimatedBytes() {
+        return 96 + 2 * (room.length() + user.length() + text.length() + timestamp.length());
+    }
+}
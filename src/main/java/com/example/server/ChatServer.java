@@ -1,56 +1,207 @@
 package com.example.server;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class ChatServer {
-    private static final int PORT = 6969;
+    private static final int PORT = ServerConfig.PORT;
     private static final Map<String, ClientHandler> onlineUsers = new ConcurrentHashMap<>();
-    private static final Map<String, Set<String>> rooms = new ConcurrentHashMap<>();
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // Room names per member, so login and logout only touch the user's own rooms.
+    private static final Map<String, Set<String>> userRooms = new ConcurrentHashMap<>();
+
+    private static final LatencyHistogram FANOUT_TIME = Metrics.histogram("chat_broadcast_fanout_us");
+    private static final Metrics.Counter MESSAGES_OUT = Metrics.counter("chat_messages_out_total{transport=\"tcp\"}");
+
+    // Set while startup hydration runs: "user\0room" pairs left in the meantime, which it must not restore.
+    private static volatile Set<String> leftWhileHydrating;
+    private static volatile long listeningMillis;
+    private static volatile long hydratedMillis;
+    private static volatile long hydratedMemberships;
 
     // Listeners for WebSocket connections.
     private static final Set<RoomBroadcastListener> roomListeners = ConcurrentHashMap.newKeySet();
 
     public static void main(String[] args) {
+        StateSnapshot snapshot = StateSnapshot.fromConfig();
+        StateSnapshot.Contents warm = snapshot == null ? null : snapshot.read();
+        UserManager.init(warm == null || !UserDirectory.restore(warm.users()));
         RoomManager.init();
-        List<String> existingRooms = RoomManager.getAllRooms();
-        for (String r : existingRooms) {
-            rooms.put(r, ConcurrentHashMap.newKeySet());
-            for (String u : RoomManager.getUsersInRoom(r)) {
-                rooms.get(r).add(u);
-            }
+        RoomManager.startJournal();
+        if (warm == null || !restore(warm)) {
+            // Memberships load while the sockets open; a member who logs in first is attached when their row arrives.
+            leftWhileHydrating = ConcurrentHashMap.newKeySet();
+            Thread hydration = new Thread(ChatServer::hydrate, "chat-hydrate");
+            hydration.setDaemon(true);
+            hydration.start();
+        }
+
+        try {
+            Cluster.start();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Cluster start failed: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Compactor compactor = Compactor.fromConfig(MessageManager.store());
+            if (compactor != null) compactor.start();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bad retention settings: " + e.getMessage());
+            return;
         }
-        System.out.println("Loaded rooms from DB: " + existingRooms);
 
-        WebSocketBridge wsBridge = new WebSocketBridge(8080);
+        registerGauges();
+        StatsEndpoint.start(ServerConfig.STATS_PORT);
+
+        WebSocketBridge wsBridge = new WebSocketBridge(ServerConfig.WS_PORT);
         wsBridge.start();
-        System.out.println("WebSocket bridge listening on port 8080");
+        System.out.println("WebSocket bridge listening on port " + ServerConfig.WS_PORT);
+        if (snapshot != null) {
+            snapshot.start(() -> {
+                suspendSessions();
+                wsBridge.suspendSessions();
+            });
+        }
+
+        Runnable listening = () -> {
+            listeningMillis = sinceJvmStart();
+            System.out.println("Server started on port " + PORT + " (" + ServerConfig.TRANSPORT + " transport) in " + listeningMillis + " ms");
+        };
+        try {
+            switch (ServerConfig.TRANSPORT) {
+                case "blocking" -> runBlocking(Executors.newCachedThreadPool(), listening);
+                case "virtual" -> runBlocking(Executors.newVirtualThreadPerTaskExecutor(), listening);
+                default -> new NioServer(PORT, ServerConfig.NIO_EVENT_LOOPS, ServerConfig.NIO_WORKERS).run(listening);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
 
-        System.out.println("Server started on port " + PORT);
+    private static void hydrate() {
+        long start = System.nanoTime();
+        Set<String> left = leftWhileHydrating;
+        int rows = RoomManager.forEachMembership((user, room) -> {
+            addMember(user, room);
+            // Left after the query read this row: undo. leaveRoom marks before it removes, so one of us sees the other.
+            if (left.contains(user + '\0' + room)) dropMember(user, room);
+        });
+        leftWhileHydrating = null;
+        hydratedMemberships = rows;
+        hydratedMillis = sinceJvmStart();
+        System.out.println("Loaded " + rows + " memberships in " + rooms.size() + " rooms from DB in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Puts back what a snapshot holds. Returns false if memberships must still come from the DB.
+    private static boolean restore(StateSnapshot.Contents warm) {
+        long start = System.nanoTime();
+        RoomHistory.restore(warm.history(), warm.lastMessageId() == MessageManager.lastAssignedId());
+        if (!warm.clean()) {
+            System.out.println("Restored " + warm.history().size() + " room histories from an unclean snapshot");
+            return false;
+        }
+        // Only a clean snapshot has tokens; a periodic one could revive tokens rotated after it.
+        SessionTokens.restore(warm.tokens(), Math.max(0, System.currentTimeMillis() - warm.writtenAtMillis()));
+        int rows = 0;
+        for (Map.Entry<String, Set<String>> e : warm.memberships().entrySet()) {
+            for (String room : e.getValue()) {
+                addMember(e.getKey(), room);
+                rows++;
+            }
+        }
+        hydratedMemberships = rows;
+        hydratedMillis = sinceJvmStart();
+        System.out.println("Restored " + rows + " memberships in " + rooms.size() + " rooms, " + warm.tokens().size()
+                + " resume tokens and " + warm.history().size() + " room histories from snapshot in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return true;
+    }
+
+    private static long sinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    private static void registerGauges() {
+        Metrics.gauge("chat_startup_listening_ms", () -> listeningMillis);
+        Metrics.gauge("chat_startup_hydrated_ms", () -> hydratedMillis);
+        Metrics.gauge("chat_startup_memberships", () -> hydratedMemberships);
+        Metrics.gauge("chat_users_online", onlineUsers::size);
+        Metrics.gauge("chat_rooms_active", rooms::size);
+        Metrics.gauge("chat_membership_pending", RoomManager::pendingMemberships);
+        Metrics.gauge("chat_history_rooms", RoomHistory::cachedRooms);
+        Metrics.gauge("chat_history_bytes", RoomHistory::cachedBytes);
+        Metrics.gauge("jvm_heap_used_bytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        Metrics.gauge("jvm_threads", Thread::activeCount);
+    }
+
+    private static void runBlocking(ExecutorService pool, Runnable onBound) throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            ExecutorService pool = Executors.newCachedThreadPool();
+            onBound.run();
             while (true) {
                 Socket socket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(socket);
+                ClientHandler clientHandler = new ClientHandler(socket, pool);
                 pool.execute(clientHandler);
             }
-        } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
         }
     }
 
     public static void addUser(String username, ClientHandler handler) {
         onlineUsers.put(username, handler);
+        for (String roomName : userRooms.getOrDefault(username, Set.of())) {
+            rooms.computeIfPresent(roomName, (k, room) -> {
+                room.attach(username, handler);
+                return room;
+            });
+        }
         broadcast("> " + username + " joined the chat!");
     }
 
+    /**
+     * Closes the sessions, on either transport, still holding a user that a resume is handing to
+     * {@code successor} (null when it is a WebSocket). Returns the room such a session was in, or null.
+     */
+    static String takeOver(String username, ClientHandler successor) {
+        String room = null;
+        ClientHandler previous = onlineUsers.get(username);
+        if (previous != null && previous != successor) room = previous.closeTakenOver();
+        for (RoomBroadcastListener l : roomListeners) {
+            String r = l.onTakeOver(username);
+            if (room == null) room = r;
+        }
+        return room;
+    }
+
     public static void removeUser(String username) {
-        onlineUsers.remove(username);
+        detachUser(username, onlineUsers.remove(username));
+        broadcast("> " + username + " left the chat!");
+    }
+
+    /**
+     * Like {@link #removeUser(String)}, but only if {@code handler} is still the user's
+     * session; a session that was resumed elsewhere leaves its successor alone.
+     */
+    public static void removeUser(String username, ClientHandler handler) {
+        if (!onlineUsers.remove(username, handler)) return;
+        detachUser(username, handler);
         broadcast("> " + username + " left the chat!");
     }
 
+    private static void detachUser(String username, ClientHandler handler) {
+        if (handler != null) {
+            for (String roomName : userRooms.getOrDefault(username, Set.of())) {
+                rooms.computeIfPresent(roomName, (k, room) -> {
+                    room.detach(username, handler);
+                    return room;
+                });
+            }
+        }
+    }
+
     public static void broadcast(String message) {
         for (ClientHandler client : onlineUsers.values()) {
             client.sendMessage(message);
@@ -61,9 +212,17 @@ public class ChatServer {
         ClientHandler receiver = onlineUsers.get(toUser);
         if (receiver != null) {
             receiver.sendMessage(message);
+        } else {
+            Cluster.relayPrivate(toUser, message);
         }
     }
 
+    // A private message relayed by another node; dropped if the user isn't here either.
+    static void deliverPrivate(String toUser, String message) {
+        ClientHandler receiver = onlineUsers.get(toUser);
+        if (receiver != null) receiver.sendMessage(message);
+    }
+
     public static Set<String> getOnlineUsernames() {
         return onlineUsers.keySet();
     }
@@ -72,24 +231,71 @@ public class ChatServer {
         System.out.println(sender.getName() + ": " + message);
     }
 
+    // Memory first; SQLite follows through the membership journal. While hydrating, memory may not
+    // know yet what SQLite has, so every change is recorded and none counts as fresh.
     public static void joinRoom(String username, String roomName) {
-        RoomManager.addUserToRoom(username, roomName);
-        rooms.computeIfAbsent(roomName, k -> ConcurrentHashMap.newKeySet()).add(username);
+        Set<String> left = leftWhileHydrating;
+        if (left != null) left.remove(username + '\0' + roomName);
+        boolean added = addMember(username, roomName);
+        if (added || left != null) RoomManager.recordJoin(username, roomName, left == null);
         broadcastRoom(roomName, "> " + username + " joined.", username);
     }
 
     public static void leaveRoom(String username, String roomName) {
-        RoomManager.removeUserFromRoom(username, roomName);
-        Set<String> members = rooms.get(roomName);
-        if (members != null) {
-            members.remove(username);
-            if (members.isEmpty()) rooms.remove(roomName);
-            broadcastRoom(roomName, "> " + username + " left.", username);
-        }
+        Set<String> left = leftWhileHydrating;
+        if (left != null) left.add(username + '\0' + roomName);
+        boolean removed = dropMember(username, roomName);
+        if (removed || left != null) RoomManager.recordLeave(username, roomName, left == null);
+        if (removed) broadcastRoom(roomName, "> " + username + " left.", username);
+    }
+
+    private static boolean dropMember(String username, String roomName) {
+        boolean[] wasMember = new boolean[1];
+        userRooms.computeIfPresent(username, (u, names) -> {
+            wasMember[0] = names.remove(roomName);
+            return names.isEmpty() ? null : names;
+        });
+        rooms.computeIfPresent(roomName, (k, room) -> {
+            room.remove(username);
+            return room.isEmpty() ? null : room;
+        });
+        return wasMember[0];
+    }
+
+    // Live if the user has a TCP session right now, otherwise by name. Returns false if already a member.
+    private static boolean addMember(String username, String roomName) {
+        boolean added = userRooms.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(roomName);
+        rooms.compute(roomName, (k, room) -> {
+            if (room == null) room = new Room(k);
+            room.add(username, onlineUsers.get(username));
+            return room;
+        });
+        return added;
+    }
+
+    /**
+     * Every user's rooms, for a {@link StateSnapshot}.
+     */
+    static Map<String, Set<String>> memberships() {
+        Map<String, Set<String>> copy = new HashMap<>();
+        userRooms.forEach((user, names) -> copy.put(user, Set.copyOf(names)));
+        return copy;
+    }
+
+    static void suspendSessions() {
+        for (ClientHandler handler : onlineUsers.values()) handler.suspendSession();
     }
 
     public static Set<String> getRoomMembers(String roomName) {
-        return rooms.getOrDefault(roomName, Collections.emptySet());
+        Room room = rooms.get(roomName);
+        return room == null ? Collections.emptySet() : room.members();
+    }
+
+    /**
+     * Rooms the user is a member of, online or not.
+     */
+    public static Set<String> getUserRooms(String username) {
+        return Set.copyOf(userRooms.getOrDefault(username, Set.of()));
     }
 
     public static Set<String> getRooms() {
@@ -97,26 +303,55 @@ public class ChatServer {
     }
 
     public static void broadcastRoom(String roomName, String message, String username) {
-        if (!message.startsWith("> ")) {
-            MessageManager.saveMessage(roomName, username, message.substring(username.length() + 2));
-        }
+        // In a cluster the owner orders the room; if it is unreachable, serve the room here.
+        if (!Cluster.owns(roomName) && Cluster.forward(roomName, message, username)) return;
+        publishOwned(roomName, message, username);
+    }
 
-        Set<String> members = rooms.get(roomName);
-        if (members == null) return;
+    // Stores the line (notices aren't), fans it out here and relays it to the other nodes.
+    static void publishOwned(String roomName, String message, String username) {
+        if (message.startsWith("> ")) {
+            deliver(roomName, message, username, 0);
+            Cluster.relay(roomName, message, username, null);
+            return;
+        }
+        // Still under the room's lock, so the ring, the members and the other nodes get its ids in order.
+        MessageManager.saveMessage(roomName, username, message.substring(username.length() + 2), saved -> {
+            RoomHistory.append(saved);
+            deliver(roomName, message, username, saved.id());
+            Cluster.relay(roomName, message, username, saved);
+        });
+    }
 
-        // se
-        for (String user : members) {
-            ClientHandler handler = onlineUsers.get(user);
-            if (handler != null) handler.sendMessage(message);
+    // A line another node ordered: keep a copy for history, then fan it out here.
+    static void deliverReplica(ClusterMessage m) {
+        ChatMessage stored = m.stored();
+        if (stored != null) {
+            MessageManager.saveReplica(stored);
+            RoomHistory.append(stored);
         }
+        deliver(m.room(), m.text(), m.sender(), m.id());
+    }
+
+    private static void deliver(String roomName, String message, String username, long id) {
+        Room room = rooms.get(roomName);
+        if (room == null) return;
+
+        long start = System.nanoTime();
+        // Encoded once; every connected member's queue gets the same bytes.
+        EncodedLine line = EncodedLine.roomMessage(roomName, username, id, message);
+        ClientHandler[] sessions = room.sessions();
+        for (ClientHandler handler : sessions) handler.sendMessage(line);
+        MESSAGES_OUT.add(sessions.length);
 
         for (RoomBroadcastListener l : roomListeners) {
             try {
-                l.onRoomMessage(roomName, message, username);
+                l.onRoomMessage(roomName, message, username, id);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+        FANOUT_TIME.recordSince(start);
     }
 
     // WebSocket methods
@@ -1,140 +1,789 @@
 package com.example.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
+/**
+ * One TCP session. The protocol is a line-driven state machine so it can be fed
+ * either by its own blocking read loop ({@link #run()}) or by {@link NioServer}.
+ */
 public class ClientHandler implements Runnable {
 
-    private final Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String username;
-    private String currentRoom;
+    // VERIFYING: a login or register is being checked on the auth pool; lines wait in {@code deferred}.
+    private enum State { AUTH, LOGIN_USER, LOGIN_PASSWORD, REGISTER_USER, REGISTER_PASSWORD, VERIFYING, CHAT }
+
+    private static final Metrics.Counter CONNECTIONS = Metrics.counter("chat_connections_active{transport=\"tcp\"}");
+    private static final Metrics.Counter OPENED = Metrics.counter("chat_connections_opened_total{transport=\"tcp\"}");
+    private static final Metrics.Counter MESSAGES_IN = Metrics.counter("chat_messages_in_total{transport=\"tcp\"}");
+    private static final Metrics.Counter BINARY_SESSIONS = Metrics.counter("chat_binary_sessions_total");
+    private static final Metrics.Counter COMPRESSED_SESSIONS = Metrics.counter("chat_compressed_sessions_total{transport=\"tcp\"}");
+    private static final int SEARCH_PAGE = 10;
 
+    private final Socket socket;
+    private final Executor writers;
+    private ClientTransport transport;
+    private State state = State.AUTH;
+    private String pendingUser;
+    // These four are also read by takeOver and the shutdown snapshot, from other threads.
+    private volatile String username;
+    private volatile String currentRoom;
+    private volatile String resumeToken;
+    // Set while a resume replays missed messages.
+    private volatile ReplayHold<EncodedLine> replayHold;
+    // Newest message id of the current room handed to the transport; a resume replays from there.
+    private final AtomicLong lastSentId = new AtomicLong();
+    private final ArrayDeque<BooleanSupplier> deferred = new ArrayDeque<>();
+    private final TokenBucket sendLimit = RateLimits.connectionBucket();
+    // Binary protocol: set once, right after the welcome. replyTo is the request being
+    // handled, verifyingRequest the one waiting on the auth pool.
+    private volatile boolean binary;
+    private long replyTo;
+    private long verifyingRequest;
+    private boolean connected;
+    private volatile boolean disconnected;
 
-    public ClientHandler(Socket socket) {
+    /**
+     * Blocking mode. Outbound lines are written by tasks on {@code writers}, never on the sender's thread.
+     */
+    public ClientHandler(Socket socket, Executor writers) {
         this.socket = socket;
+        this.writers = writers;
+    }
+
+    public ClientHandler(ClientTransport transport) {
+        this.socket = null;
+        this.writers = null;
+        this.transport = transport;
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            out.println("Welcome! Type 'login' or 'register'.");
-            username = handleAuth();
-            ChatServer.addUser(username, this);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            transport = new SocketTransport(socket, new BufferedOutputStream(socket.getOutputStream(), 8192), writers);
+            onConnect();
 
-            String message;
-            while ((message = in.readLine()) != null) {
-                if (message.equalsIgnoreCase("quit")) break;
-
-                if (message.startsWith("/")) {
-                    handleCommand(message);
-                } else {
-                    if (currentRoom == null) {
-                        out.println("You are not in a room. Use /join <room> to join one");
-                    } else {
-                        ChatServer.broadcastRoom(currentRoom, username + ": " + message, username);
-                        ChatServer.logMessage(message, this);
-                    }
-                }
+            String first = readFirstLine(in);
+            if (ServerConfig.COMPRESS_TCP && StreamDeflater.NEGOTIATE.equals(first)) {
+                startCompression();
+                in = StreamDeflater.inflating(in);
+                first = readFirstLine(in);
+            }
+            if (BinaryProtocol.NEGOTIATE.equals(first)) {
+                startBinary();
+                readFrames(new DataInputStream(in));
+            } else if (first != null) {
+                readLines(first, new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
             }
         } catch (IOException e) {
             System.out.println("Error with " + username + ": " + e.getMessage());
         } finally {
-            if (username != null) ChatServer.removeUser(username);
+            onDisconnect();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
-    private String handleAuth() throws IOException {
+    private void readLines(String line, BufferedReader in) throws IOException {
+        do {
+            if (!handleLine(line)) return;
+            awaitVerification();
+        } while ((line = in.readLine()) != null);
+    }
+
+    private void readFrames(DataInputStream in) throws IOException {
         while (true) {
-            String choice = in.readLine();
-            if (choice.equals("login")) {
-                out.println("Enter username:");
-                String user = in.readLine();
-                out.println("Enter password:");
-                String password = in.readLine();
-
-                if (UserManager.login(user, password)) {
-                    out.println("Login successful!");
-                    return user;
+            BinaryProtocol.Frame frame;
+            try {
+                frame = BinaryProtocol.read(in);
+            } catch (EOFException e) {
+                return;
+            }
+            if (!handleFrame(frame)) return;
+            awaitVerification();
+        }
+    }
+
+    // This thread owns the handler: wait here for the auth result instead of reading on.
+    private void awaitVerification() throws IOException {
+        while (state == State.VERIFYING) ((SocketTransport) transport).runNextTask();
+    }
+
+    // Byte by byte, so whatever follows stays in the stream for either framing.
+    private static String readFirstLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            if (line.size() >= BinaryProtocol.MAX_FRAME) throw new IOException("Line too long");
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    void onConnect() {
+        connected = true;
+        OPENED.increment();
+        CONNECTIONS.increment();
+        reply("Welcome! Type 'login' or 'register'.");
+    }
+
+    /**
+     * Feeds one inbound line through the protocol. Returns false once the client asked to quit.
+     */
+    boolean handleLine(String line) {
+        switch (state) {
+            case AUTH -> {
+                if (line.equals("login")) {
+                    state = State.LOGIN_USER;
+                    reply("Enter username:");
+                } else if (line.equals("register")) {
+                    state = State.REGISTER_USER;
+                    reply("Choose username:");
+                } else if (line.startsWith("resume ")) {
+                    resume(line);
+                } else if (line.equals(StreamDeflater.NEGOTIATE)) {
+                    reply("Compression is off on this server.");
                 } else {
-                    out.println("Invalid credentials. Type 'login' to try again.");
+                    reply("Type 'login' or 'register' to continue.");
                 }
-            } else if (choice.equals("register")) {
-                out.println("Choose username:");
-                String user = in.readLine();
-                out.println("Choose password:");
-                String password = in.readLine();
-                if (UserManager.register(user, password)) {
-                    out.println("Registration successful! Type 'login' to log in.");
-                } else {
-                    out.println("Username already exists. Type 'register' to try again.");
+            }
+            case LOGIN_USER -> {
+                pendingUser = line;
+                state = State.LOGIN_PASSWORD;
+                reply("Enter password:");
+            }
+            case LOGIN_PASSWORD -> {
+                String user = pendingUser;
+                pendingUser = null;
+                state = State.VERIFYING;
+                UserManager.loginAsync(user, line).whenComplete((ok, err) ->
+                        transport.execute(() -> finishLogin(user, ok, err)));
+            }
+            case REGISTER_USER -> {
+                pendingUser = line;
+                state = State.REGISTER_PASSWORD;
+                reply("Choose password:");
+            }
+            case REGISTER_PASSWORD -> {
+                String user = pendingUser;
+                pendingUser = null;
+                state = State.VERIFYING;
+                UserManager.registerAsync(user, line).whenComplete((ok, err) ->
+                        transport.execute(() -> finishRegister(ok, err)));
+            }
+            case VERIFYING -> deferred.add(() -> handleLine(line));
+            case CHAT -> {
+                return handleChat(line);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The client asked for a compressed stream. This reply still goes out plain; everything after it is compressed.
+     */
+    void startCompression() {
+        if (!transport.startCompression(EncodedLine.of("Compression on."))) {
+            // The client's side already inflates what we send; a plain stream would be garbage to it.
+            transport.close();
+            return;
+        }
+        COMPRESSED_SESSIONS.increment();
+    }
+
+    /**
+     * The client switched to {@link BinaryProtocol} frames; everything it sends and gets from now on is framed.
+     */
+    void startBinary() {
+        binary = true;
+        BINARY_SESSIONS.increment();
+        reply("Binary protocol on.");
+    }
+
+    /**
+     * Feeds one binary request through the protocol and closes it with DONE. Returns false
+     * once the client asked to quit.
+     */
+    boolean handleFrame(BinaryProtocol.Frame frame) {
+        if (state == State.VERIFYING) {
+            deferred.add(() -> handleFrame(frame));
+            return true;
+        }
+        replyTo = frame.id();
+        boolean open = true;
+        try {
+            open = dispatch(frame);
+        } catch (RuntimeException e) {
+            reply("Command error: " + e.getMessage());
+        }
+        replyTo = 0;
+        // A login or register closes its request when the check comes back.
+        if (state == State.VERIFYING) verifyingRequest = frame.id();
+        else done(frame.id());
+        return open;
+    }
+
+    private boolean dispatch(BinaryProtocol.Frame frame) {
+        switch (frame.op()) {
+            case BinaryProtocol.LINE -> {
+                return handleLine(frame.payload());
+            }
+            case BinaryProtocol.LOGIN, BinaryProtocol.REGISTER -> {
+                String[] f = frame.fields(2);
+                if (state != State.AUTH || f.length < 2) {
+                    reply(state == State.CHAT ? "Already logged in." : "Expected user and password.");
+                    return true;
                 }
-            } else {
-                out.println("Type 'login' or 'register' to continue.");
+                // Straight to the password step of the text dialogue, without the prompts.
+                pendingUser = f[0];
+                state = frame.op() == BinaryProtocol.LOGIN ? State.LOGIN_PASSWORD : State.REGISTER_PASSWORD;
+                return handleLine(f[1]);
+            }
+            case BinaryProtocol.RESUME -> {
+                String[] f = frame.fields(2);
+                if (state == State.CHAT) reply("Already logged in.");
+                else resume(f[0], f.length > 1 ? Long.parseLong(f[1]) : -1);
+                return true;
+            }
+            default -> {
+                if (state != State.CHAT) {
+                    reply("Not logged in.");
+                    return true;
+                }
+            }
+        }
+        switch (frame.op()) {
+            case BinaryProtocol.JOIN -> join(frame.payload());
+            case BinaryProtocol.LEAVE -> leave();
+            case BinaryProtocol.SAY -> say(frame.payload());
+            case BinaryProtocol.PM -> {
+                String[] f = frame.fields(2);
+                if (f.length < 2) reply("Expected user and text.");
+                else privateMessage(f[0], f[1]);
+            }
+            case BinaryProtocol.HISTORY -> {
+                String[] f = frame.fields(2);
+                long before = f[0].isEmpty() ? Long.MAX_VALUE : Long.parseLong(f[0]);
+                history(before, f.length > 1 ? Integer.parseInt(f[1]) : 20);
+            }
+            case BinaryProtocol.SEARCH -> {
+                String[] f = frame.fields(3);
+                search(f[0], f.length > 1 ? Integer.parseInt(f[1]) : 0, f.length > 2 ? Integer.parseInt(f[2]) : SEARCH_PAGE);
+            }
+            case BinaryProtocol.ROOMS -> listRooms();
+            case BinaryProtocol.WHO -> who();
+            case BinaryProtocol.QUIT -> {
+                return quit();
+            }
+            default -> reply("Unknown request.");
+        }
+        return true;
+    }
+
+    private void finishLogin(String user, Boolean ok, Throwable err) {
+        replyTo = verifyingRequest;
+        if (err != null) {
+            state = State.AUTH;
+            reply("Server busy, try again. Type 'login' to retry.");
+        } else if (ok) {
+            resumeToken = SessionTokens.issue(user);
+            reply("Login successful! Resume token: " + resumeToken);
+            username = user;
+            state = State.CHAT;
+            ChatServer.addUser(username, this);
+        } else {
+            state = State.AUTH;
+            reply("Invalid credentials. Type 'login' to try again.");
+        }
+        replyTo = 0;
+        done(verifyingRequest);
+        replayDeferred();
+    }
+
+    private void finishRegister(Boolean ok, Throwable err) {
+        state = State.AUTH;
+        replyTo = verifyingRequest;
+        if (err != null) reply("Server busy, try again. Type 'register' to retry.");
+        else if (ok) reply("Registration successful! Type 'login' to log in.");
+        else reply("Username already exists. Type 'register' to try again.");
+        replyTo = 0;
+        done(verifyingRequest);
+        replayDeferred();
+    }
+
+    // resume <token> [lastSeenId]: takes over a session without the password dialogue. Without an
+    // id, replay starts after the newest message that existed when the old connection dropped.
+    private void resume(String line) {
+        String[] args = line.trim().split("\\s+");
+        String token = args.length == 2 || args.length == 3 ? args[1] : null;
+        long lastSeen = -1;
+        try {
+            if (args.length == 3) lastSeen = Long.parseLong(args[2]);
+        } catch (NumberFormatException e) {
+            token = null;
+        }
+        resume(token, lastSeen);
+    }
+
+    private void resume(String token, long lastSeen) {
+        SessionTokens.Resumed resumed = SessionTokens.resume(token);
+        if (resumed == null) {
+            reply("Invalid or expired resume token. Type 'login' or 'register'.");
+            return;
+        }
+
+        username = resumed.username();
+        state = State.CHAT;
+        resumeToken = SessionTokens.issue(username);
+        reply("Resumed as " + username + ". Resume token: " + resumeToken);
+
+        // A token resumed while its session is still connected carries no room; take that session's.
+        String live = ChatServer.takeOver(username, this);
+        String room = resumed.room() != null ? resumed.room() : live;
+        if (room == null || !ChatServer.getRoomMembers(room).contains(username)) {
+            ChatServer.addUser(username, this);
+            return;
+        }
+        currentRoom = room;
+        reply("Rejoined room: " + room);
+
+        // Attach first, then read the backlog: lines delivered meanwhile are held until it is out.
+        long from = lastSeen >= 0 ? lastSeen : resumed.lastSeenId();
+        lastSentId.set(from);
+        ReplayHold<EncodedLine> hold = new ReplayHold<>();
+        replayHold = hold;
+        ChatServer.addUser(username, this);
+        MessageManager.Page missed = RoomHistory.since(room, from, MessageManager.lastAssignedId(), ServerConfig.RESUME_MAX_REPLAY);
+        Set<Long> replayed = new HashSet<>();
+        if (missed.messages().isEmpty()) {
+            reply("(No missed messages)");
+        } else {
+            reply("Missed messages:");
+            if (missed.more()) reply("(older: /history before " + missed.oldestId() + ")");
+            for (ChatMessage msg : missed.messages()) {
+                reply(msg.format());
+                replayed.add(msg.id());
+                lastSentId.accumulateAndGet(msg.id(), Math::max);
             }
         }
+        hold.release(replayed, this::send);
+        replayHold = null;
+    }
+
+    // Requests that arrived while verifying, handled now in their original order.
+    private void replayDeferred() {
+        BooleanSupplier next;
+        while (state != State.VERIFYING && (next = deferred.poll()) != null) {
+            if (!next.getAsBoolean()) {
+                transport.close();
+                return;
+            }
+        }
+    }
+
+    private boolean handleChat(String message) {
+        if (message.equalsIgnoreCase("quit")) return quit();
+
+        if (message.startsWith("/")) {
+            handleCommand(message);
+        } else {
+            say(message);
+        }
+        return true;
+    }
+
+    /**
+     * Called exactly once when the connection goes away, whichever side closed it.
+     */
+    void onDisconnect() {
+        if (disconnected) return;
+        disconnected = true;
+        if (connected) CONNECTIONS.add(-1);
+        if (username != null) {
+            SessionTokens.suspend(resumeToken, currentRoom, lastSentId.get());
+            ChatServer.removeUser(username, this);
+        }
+    }
+
+    /**
+     * Suspends this session's token where it stands, for the snapshot taken at shutdown.
+     */
+    void suspendSession() {
+        if (username != null && !disconnected) {
+            SessionTokens.suspend(resumeToken, currentRoom, lastSentId.get());
+        }
     }
 
     private void handleCommand(String cmd) {
         try {
             if (cmd.startsWith("/join ")) {
-                String room = cmd.split(" ", 2)[1];
-                if (currentRoom != null) ChatServer.leaveRoom(username, currentRoom);
-                currentRoom = room;
-                ChatServer.joinRoom(username, room);
-                out.println("Joined room: " + room);
-
-                out.println("Last messages:");
-                List<String> history = MessageManager.getLastMessages(room, 20);
-                if (history.isEmpty()) {
-                    out.println("(No message history)");
-                } else {
-                    for (String msg : history) out.println(msg);
-                }
+                join(cmd.split(" ", 2)[1]);
+            } else if (cmd.equalsIgnoreCase("/history") || cmd.startsWith("/history ")) {
+                sendHistory(cmd);
+            } else if (cmd.equalsIgnoreCase("/search") || cmd.startsWith("/search ")) {
+                sendSearch(cmd);
             } else if (cmd.equalsIgnoreCase("/leave")) {
-                if (currentRoom != null) {
-                    ChatServer.leaveRoom(username, currentRoom);
-                    out.println("Left room: " + currentRoom);
-                    currentRoom = null;
-                } else {
-                    out.println("You are not in any room.");
-                }
+                leave();
             } else if (cmd.equalsIgnoreCase("/rooms")) {
-                out.println("Available rooms: " + ChatServer.getRooms());
+                listRooms();
             } else if (cmd.equalsIgnoreCase("/who")) {
-                if (currentRoom == null) out.println("You are not in a room.");
-                else out.println("Users in " + currentRoom + ": " + ChatServer.getRoomMembers(currentRoom));
+                who();
+            } else if (cmd.equalsIgnoreCase("/stats")) {
+                if (!ServerConfig.ADMINS.contains(username)) {
+                    reply("Not allowed.");
+                } else {
+                    for (String row : Metrics.render().split("\n")) reply(row);
+                }
             } else if (cmd.startsWith("/pm")) {
                 String[] parts = cmd.split(" ", 3);
                 if (parts.length < 3) {
-                    out.println("Usage: /pm <user> <message>");
+                    reply("Usage: /pm <user> <message>");
                 } else {
-                    String target = parts[1];
-                    String msg = parts[2];
-                    ChatServer.sendPrivate(target, "[PM from " + username + "]: " + msg);
-                    out.println("[PM to " + target + "]: " + msg);
+                    privateMessage(parts[1], parts[2]);
                 }
             } else {
-                out.println("Unknown command.");
+                reply("Unknown command.");
             }
         } catch (Exception e) {
-            out.println("Command error: " + e.getMessage());
+            reply("Command error: " + e.getMessage());
+        }
+    }
+
+    /* -- Commands, shared by the text and binary protocols -- */
+
+    private boolean quit() {
+        SessionTokens.revoke(resumeToken);
+        resumeToken = null;
+        return false;
+    }
+
+    private void say(String message) {
+        if (currentRoom == null) {
+            reply("You are not in a room. Use /join <room> to join one");
+        } else {
+            String line = username + ": " + message;
+            if (!BinaryProtocol.fitsMessage(currentRoom, username, line)) {
+                reply("Message too long.");
+                return;
+            }
+            String throttled = RateLimits.acquire(sendLimit, username, currentRoom);
+            if (throttled != null) {
+                reply(throttled);
+                return;
+            }
+            MESSAGES_IN.increment();
+            ChatServer.broadcastRoom(currentRoom, line, username);
+            ChatServer.logMessage(message, this);
+        }
+    }
+
+    private void join(String room) {
+        if (currentRoom != null) ChatServer.leaveRoom(username, currentRoom);
+        currentRoom = room;
+        lastSentId.set(0);
+        ChatServer.joinRoom(username, room);
+        reply("Joined room: " + room);
+
+        reply("Last messages:");
+        List<ChatMessage> history = RoomHistory.recent(room, 20);
+        if (history.isEmpty()) {
+            reply("(No message history)");
+        } else {
+            for (ChatMessage msg : history) {
+                reply(msg.format());
+                lastSentId.accumulateAndGet(msg.id(), Math::max);
+            }
+        }
+    }
+
+    private void leave() {
+        if (currentRoom != null) {
+            ChatServer.leaveRoom(username, currentRoom);
+            reply("Left room: " + currentRoom);
+            currentRoom = null;
+        } else {
+            reply("You are not in any room.");
+        }
+    }
+
+    private void listRooms() {
+        reply("Available rooms: " + ChatServer.getRooms());
+    }
+
+    private void who() {
+        if (currentRoom == null) reply("You are not in a room.");
+        else reply("Users in " + currentRoom + ": " + ChatServer.getRoomMembers(currentRoom));
+    }
+
+    private void privateMessage(String target, String msg) {
+        String line = "[PM from " + username + "]: " + msg;
+        if (!BinaryProtocol.fitsText(line)) {
+            reply("Message too long.");
+            return;
+        }
+        String throttled = RateLimits.acquire(sendLimit, username, null);
+        if (throttled != null) {
+            reply(throttled);
+            return;
+        }
+        ChatServer.sendPrivate(target, line);
+        reply("[PM to " + target + "]: " + msg);
+    }
+
+    // /history [before <id>] [n]
+    private void sendHistory(String cmd) {
+        if (currentRoom == null) {
+            reply("You are not in a room.");
+            return;
+        }
+        String[] args = cmd.trim().split("\\s+");
+        long before = Long.MAX_VALUE;
+        int limit = 20;
+        try {
+            int i = 1;
+            if (args.length > i && args[i].equalsIgnoreCase("before")) {
+                before = Long.parseLong(args[i + 1]);
+                i += 2;
+            }
+            if (args.length > i) limit = Integer.parseInt(args[i++]);
+            if (args.length > i) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            reply("Usage: /history [before <id>] [n]");
+            return;
+        }
+        history(before, limit);
+    }
+
+    private void history(long before, int limit) {
+        if (currentRoom == null) {
+            reply("You are not in a room.");
+            return;
+        }
+        MessageManager.Page page = RoomHistory.page(currentRoom, before, limit);
+        if (page.messages().isEmpty()) {
+            reply("(No message history)");
+            return;
         }
+        for (ChatMessage msg : page.messages()) reply("#" + msg.id() + " " + msg.format());
+        if (page.more()) reply("(older: /history before " + page.oldestId() + " " + page.messages().size() + ")");
+        else reply("(start of history)");
     }
 
+    // /search [from <n>] <terms>
+    private void sendSearch(String cmd) {
+        String[] args = cmd.trim().split("\\s+", 4);
+        int offset = 0;
+        String query = cmd.substring("/search".length()).trim();
+        if (args.length > 3 && args[1].equalsIgnoreCase("from") && args[2].matches("\\d{1,9}")) {
+            offset = Integer.parseInt(args[2]);
+            query = args[3];
+        }
+        if (query.isEmpty()) {
+            reply("Usage: /search [from <n>] <terms>");
+            return;
+        }
+        search(query, offset, SEARCH_PAGE);
+    }
+
+    // Across every room the user is in, best match first.
+    private void search(String query, int offset, int limit) {
+        Set<String> rooms = ChatServer.getUserRooms(username);
+        if (rooms.isEmpty()) {
+            reply("You are not in any room.");
+            return;
+        }
+        MessageManager.Page page = MessageManager.search(rooms, query, offset, limit);
+        if (page.messages().isEmpty()) {
+            reply(offset == 0 ? "(No matches)" : "(No more matches)");
+            return;
+        }
+        for (ChatMessage msg : page.messages()) reply("#" + msg.id() + " [" + msg.room() + "] " + msg.format());
+        if (page.more()) reply("(more: /search from " + (offset + page.messages().size()) + " " + query + ")");
+        else reply("(end of results)");
+    }
+
+    /**
+     * Sends a line not caused by a request of this client, e.g. a notice or private message.
+     */
     public void sendMessage(String message) {
-        out.println(message);
+        transport.send(binary ? EncodedLine.frame(BinaryProtocol.TEXT, 0, message) : EncodedLine.of(message));
+    }
+
+    /**
+     * Sends a line that was already encoded, e.g. once for a whole room.
+     */
+    public void sendMessage(EncodedLine line) {
+        // Held lines count too: they go out when the replay is done.
+        long id = line.messageId();
+        if (id > 0) lastSentId.accumulateAndGet(id, Math::max);
+        ReplayHold<EncodedLine> hold = replayHold;
+        if (hold != null && hold.hold(line.messageId(), line)) return;
+        send(line);
+    }
+
+    private void send(EncodedLine line) {
+        transport.send(binary ? line.binary() : line);
+    }
+
+    /**
+     * Ends this session because a resume took its user over elsewhere, and returns its room.
+     */
+    String closeTakenOver() {
+        sendMessage("Session resumed elsewhere.");
+        transport.close();
+        return currentRoom;
+    }
+
+    // A reply to the request being handled; binary clients get it tagged with the request id.
+    private void reply(String message) {
+        transport.send(binary ? EncodedLine.frame(BinaryProtocol.TEXT, replyTo, message) : EncodedLine.of(message));
+    }
+
+    private void done(long requestId) {
+        if (binary) transport.send(EncodedLine.frame(BinaryProtocol.DONE, requestId, ""));
     }
 
     public String getName() {
         return this.username;
     }
+
+    private static final class SocketTransport implements ClientTransport {
+        private static final int MAX_BATCH = 256;
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final Executor writers;
+        private volatile OutboundQueue<EncodedLine> queue = new OutboundQueue<>();
+        // Set by startCompression until the drain has written them: the queue from before, and the reply ending it.
+        private volatile OutboundQueue<EncodedLine> plainQueue;
+        private volatile EncodedLine plainLast;
+        // Held by the running drain; after close, by whoever ended the deflater.
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final List<EncodedLine> batch = new ArrayList<>(MAX_BATCH);
+        // Drain task only.
+        private final List<ByteBuffer> toCompress = new ArrayList<>(MAX_BATCH);
+        private StreamDeflater deflater;
+        private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+        SocketTransport(Socket socket, OutputStream out, Executor writers) {
+            this.socket = socket;
+            this.out = out;
+            this.writers = writers;
+        }
+
+        @Override
+        public void send(EncodedLine line) {
+            if (socket.isClosed()) return;
+            if (!queue.offer(line)) {
+                System.out.println("Disconnecting slow consumer " + socket.getRemoteSocketAddress());
+                close();
+                return;
+            }
+            if (drainScheduled.compareAndSet(false, true)) writers.execute(this::drain);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        // Not a marker in the queue, where a full queue could drop it: the lines queued so far
+        // stay behind in their own queue, and later ones go to a new one.
+        @Override
+        public boolean startCompression(EncodedLine reply) {
+            if (socket.isClosed()) return false;
+            plainLast = reply;
+            plainQueue = queue;
+            queue = new OutboundQueue<>();
+            if (drainScheduled.compareAndSet(false, true)) writers.execute(this::drain);
+            return true;
+        }
+
+        // Called by the reader thread, which owns the handler.
+        void runNextTask() throws IOException {
+            try {
+                tasks.take().run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        // Only one drain runs at a time; a stalled socket blocks this task, not the senders.
+        private void drain() {
+            try {
+                while (true) {
+                    // The queue before the switch: startCompression sets plainQueue first.
+                    OutboundQueue<EncodedLine> q = queue;
+                    OutboundQueue<EncodedLine> plain = plainQueue;
+                    if (plain != null) {
+                        while (plain.drainTo(batch, MAX_BATCH) > 0) {
+                            for (EncodedLine line : batch) out.write(line.bytes());
+                            batch.clear();
+                        }
+                        out.write(plainLast.bytes());
+                        deflater = new StreamDeflater();
+                        plainQueue = null;
+                        continue;
+                    }
+                    while (q.drainTo(batch, MAX_BATCH) > 0) {
+                        for (EncodedLine line : batch) {
+                            if (deflater == null) out.write(line.bytes());
+                            else toCompress.add(ByteBuffer.wrap(line.bytes()));
+                        }
+                        batch.clear();
+                        if (!toCompress.isEmpty()) {
+                            ByteBuffer compressed = deflater.compress(toCompress);
+                            out.write(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+                            toCompress.clear();
+                        }
+                    }
+                    out.flush();
+                    if (socket.isClosed()) break;
+                    drainScheduled.set(false);
+                    // A sender may have queued, or close() come, between the drain and the reset.
+                    boolean more = socket.isClosed() || !queue.isEmpty() || plainQueue != null;
+                    if (!more || !drainScheduled.compareAndSet(false, true)) return;
+                }
+            } catch (IOException e) {
+                close();
+            }
+            // Closed while this drain held the flag, which it keeps: no drain runs after this one.
+            if (deflater != null) deflater.end();
+        }
+
+        @Override
+        public void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+            queue.clear();
+            OutboundQueue<EncodedLine> plain = plainQueue;
+            if (plain != null) plain.clear();
+            // No drain running: none will, and the deflater is ours to end. Otherwise that drain ends it.
+            if (drainScheduled.compareAndSet(false, true) && deflater != null) deflater.end();
+        }
+    }
 }
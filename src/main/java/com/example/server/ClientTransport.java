@@ -0,0 +1,30 @@
+package com.example.server;
+
+/**
+ * Outbound side of a TCP connection, as seen by {@link ClientHandler}.
+ */
+public interface ClientTransport {
+    void send(EncodedLine line);
+
+    default void send(String line) {
+        send(EncodedLine.of(line));
+    }
+
+    void close();
+
+    /**
+     * Sends {@code reply} uncompressed, after whatever was sent before it, and everything sent
+     * later compressed, see {@link StreamDeflater}. Called on the connection's first line, before
+     * anyone else can send to it. Returns false, having sent nothing, if this transport doesn't
+     * compress.
+     */
+    default boolean startCompression(EncodedLine reply) {
+        return false;
+    }
+
+    /**
+     * Runs {@code task} on the connection's handler side, in order with inbound lines.
+     * Used to resume the protocol when an asynchronous step (e.g. a login check) completes.
+     */
+    void execute(Runnable task);
+}
@@ -0,0 +1,172 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cluster mode. Every room has an owner node, picked by a {@link HashRing} over the node
+ * names. The owner orders the room: members connected elsewhere POST their lines to it,
+ * it assigns ids, stores and relays each line to every node (DELIVER), and each node fans
+ * it out to its own sessions and keeps a copy for history. Private messages for users not
+ * connected here go to every node, and so do registrations.
+ *
+ * Without {@code chat.cluster.nodes} the server runs standalone and none of this is active.
+ */
+public final class Cluster {
+
+    // Message ids end in the assigning node's index (see MessageManager), so this bounds the cluster size.
+    static final int MAX_NODES = 256;
+
+    private static final Metrics.Counter FORWARDED = Metrics.counter("chat_cluster_forwarded_total");
+    private static final Metrics.Counter RELAYED = Metrics.counter("chat_cluster_relayed_total");
+    private static final Metrics.Counter RECEIVED = Metrics.counter("chat_cluster_received_total");
+    private static final Metrics.Counter OWNER_DOWN = Metrics.counter("chat_cluster_owner_unreachable_total");
+
+    private static volatile ClusterBus bus;
+    private static volatile HashRing ring;
+    private static volatile String self;
+    private static volatile int nodeIndex;
+
+    // Per peer, the newest users rowid of its table taken from its catch-up. A registration
+    // relayed while the two were apart is lost, so each connection starts with the rest.
+    private static final Map<String, Long> usersSynced = new ConcurrentHashMap<>();
+    private static final ClusterBus.Catchup USERS = new ClusterBus.Catchup() {
+        @Override
+        public long position(String from) {
+            return usersSynced.getOrDefault(from, 0L);
+        }
+
+        @Override
+        public List<ClusterMessage> since(String to, long position) {
+            return UserManager.registeredAfter(position, self);
+        }
+    };
+
+    private Cluster() {}
+
+    /**
+     * Joins the cluster described by {@code chat.cluster.nodes} over a {@link TcpMeshBus}; does nothing if it is empty.
+     */
+    static void start() throws IOException {
+        Map<String, InetSocketAddress> nodes = parseNodes(ServerConfig.CLUSTER_NODES);
+        if (nodes.isEmpty()) return;
+        String name = ServerConfig.CLUSTER_NODE;
+        InetSocketAddress own = nodes.get(name);
+        if (own == null) throw new IllegalArgumentException("chat.cluster.node '" + name + "' is not in chat.cluster.nodes");
+        if (ServerConfig.CLUSTER_SECRET.isEmpty()) throw new IllegalArgumentException("chat.cluster.secret must be set in cluster mode");
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>(nodes);
+        peers.remove(name);
+        // Only on the address the node list gives, not every interface.
+        start(new TcpMeshBus(name, new InetSocketAddress(own.getHostString(), own.getPort()), peers, ServerConfig.CLUSTER_QUEUE,
+                ServerConfig.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8)), nodes.keySet(), name);
+    }
+
+    /**
+     * Joins over any bus. {@code nodes} must be the same on every node and include {@code name}.
+     */
+    static void start(ClusterBus clusterBus, Collection<String> nodes, String name) throws IOException {
+        List<String> sorted = new ArrayList<>(nodes);
+        sorted.sort(null);
+        if (sorted.size() > MAX_NODES) throw new IllegalArgumentException("At most " + MAX_NODES + " nodes");
+        self = name;
+        nodeIndex = sorted.indexOf(name);
+        ring = new HashRing(sorted, ServerConfig.CLUSTER_VNODES);
+        usersSynced.clear();
+        clusterBus.start(Cluster::receive, USERS);
+        bus = clusterBus;
+        Metrics.gauge("chat_cluster_peers_connected", clusterBus::connectedPeers);
+    }
+
+    static void stop() {
+        ClusterBus b = bus;
+        bus = null;
+        if (b != null) b.close();
+    }
+
+    static boolean enabled() {
+        return bus != null;
+    }
+
+    static int nodeIndex() {
+        return nodeIndex;
+    }
+
+    static int idStride() {
+        return bus == null ? 1 : MAX_NODES;
+    }
+
+    static boolean owns(String room) {
+        return bus == null || ring.owner(room).equals(self);
+    }
+
+    /**
+     * Hands a line for a room owned elsewhere to its owner. Returns false if the owner
+     * can't be reached; the caller then serves the room itself.
+     */
+    static boolean forward(String room, String line, String sender) {
+        if (!bus.send(ring.owner(room), ClusterMessage.post(self, room, sender, line))) {
+            OWNER_DOWN.increment();
+            return false;
+        }
+        FORWARDED.increment();
+        return true;
+    }
+
+    /**
+     * Sends a line this node ordered to every other node; {@code stored} is null for notices.
+     */
+    static void relay(String room, String line, String sender, ChatMessage stored) {
+        ClusterBus b = bus;
+        if (b == null) return;
+        b.publish(ClusterMessage.deliver(self, room, sender, line, stored));
+        RELAYED.increment();
+    }
+
+    static void relayPrivate(String toUser, String line) {
+        ClusterBus b = bus;
+        if (b != null) b.publish(ClusterMessage.privateMessage(self, toUser, line));
+    }
+
+    static void relayUser(String username, String hash, String salt) {
+        ClusterBus b = bus;
+        if (b != null) b.publish(ClusterMessage.user(self, username, hash, salt, 0));
+    }
+
+    private static void receive(ClusterMessage m) {
+        RECEIVED.increment();
+        switch (m.type()) {
+            // Never forwarded again, even if our ring disagrees, so a misconfigured pair can't loop.
+            case POST -> ChatServer.publishOwned(m.room(), m.text(), m.sender());
+            case DELIVER -> ChatServer.deliverReplica(m);
+            case PRIVATE -> ChatServer.deliverPrivate(m.sender(), m.text());
+            case USER -> {
+                // Catch-up comes in rowid order, so the newest position stored is all of it up to there.
+                if (UserManager.insertReplica(m.sender(), m.text(), m.timestamp()) && m.id() > 0) {
+                    usersSynced.merge(m.origin(), m.id(), Math::max);
+                }
+            }
+        }
+    }
+
+    // name@host:port, comma-separated.
+    static Map<String, InetSocketAddress> parseNodes(String spec) {
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+            int at = item.indexOf('@');
+            int colon = item.lastIndexOf(':');
+            if (at <= 0 || colon < at) throw new IllegalArgumentException("Expected name@host:port, got '" + item + "'");
+            int port = Integer.parseInt(item.substring(colon + 1));
+            nodes.put(item.substring(0, at), InetSocketAddress.createUnresolved(item.substring(at + 1, colon), port));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * How cluster nodes reach each other. Delivery is best effort and in order per
+ * sender and receiver pair; a node that is down misses what was sent meanwhile, except
+ * what a {@link Catchup} replays when the two are connected again.
+ *
+ * @see LoopbackBus
+ * @see TcpMeshBus
+ */
+public interface ClusterBus {
+
+    /**
+     * What a node sends a peer first on every connection, so the peer gets what it missed.
+     * Each message carries a position in {@code id}; the receiving node remembers the newest
+     * position it took from that sender and is sent only what comes after it.
+     */
+    interface Catchup {
+
+        Catchup NONE = new Catchup() {
+            @Override
+            public long position(String from) {
+                return 0;
+            }
+
+            @Override
+            public List<ClusterMessage> since(String to, long position) {
+                return List.of();
+            }
+        };
+
+        /**
+         * How far this node has taken {@code from}'s catch-up; 0 for nothing yet.
+         */
+        long position(String from);
+
+        /**
+         * What {@code to} needs after {@code position}, in position order.
+         */
+        List<ClusterMessage> since(String to, long position);
+    }
+
+    /**
+     * Starts receiving; {@code receiver} is called for every message from another node,
+     * one at a time per sending node.
+     */
+    default void start(Consumer<ClusterMessage> receiver) throws IOException {
+        start(receiver, Catchup.NONE);
+    }
+
+    void start(Consumer<ClusterMessage> receiver, Catchup catchup) throws IOException;
+
+    /**
+     * Queues a message for one node. Returns false if that node can't be reached right now.
+     */
+    boolean send(String node, ClusterMessage message);
+
+    /**
+     * Queues a message for every other node.
+     */
+    void publish(ClusterMessage message);
+
+    /**
+     * Other nodes currently reachable.
+     */
+    int connectedPeers();
+
+    void close();
+}
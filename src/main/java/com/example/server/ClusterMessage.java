@@ -0,0 +1,91 @@
+package com.example.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What nodes tell each other.
+ *
+ * <ul>
+ *   <li>POST: a member posted to a room this node doesn't own; sent to the owner only.</li>
+ *   <li>DELIVER: the owner ordered (and, unless it is a notice, stored) a room line; sent to every node.</li>
+ *   <li>PRIVATE: a private message for a user who is not connected here; sent to every node.</li>
+ *   <li>USER: a registration, so the user can log in on any node; sent to every node when it
+ *       happens, and again to a peer that missed it when the two connect. Carries the password
+ *       hash in {@code text}, the salt in {@code timestamp}, and in {@code id} the sender's
+ *       catch-up position (0 when sent live).</li>
+ * </ul>
+ *
+ * {@code text} is the line as members see it ({@code "alice: hi"}); {@code id} and
+ * {@code timestamp} are set on stored DELIVERs and are {@code 0}/null otherwise.
+ */
+public record ClusterMessage(Type type, String origin, String room, String sender, String text, long id, String timestamp) {
+
+    public enum Type { POST, DELIVER, PRIVATE, USER }
+
+    static ClusterMessage post(String origin, String room, String sender, String text) {
+        return new ClusterMessage(Type.POST, origin, room, sender, text, 0, null);
+    }
+
+    static ClusterMessage deliver(String origin, String room, String sender, String text, ChatMessage stored) {
+        return new ClusterMessage(Type.DELIVER, origin, room, sender, text,
+                stored == null ? 0 : stored.id(), stored == null ? null : stored.timestamp());
+    }
+
+    static ClusterMessage privateMessage(String origin, String toUser, String text) {
+        return new ClusterMessage(Type.PRIVATE, origin, null, toUser, text, 0, null);
+    }
+
+    static ClusterMessage user(String origin, String username, String hash, String salt, long position) {
+        return new ClusterMessage(Type.USER, origin, null, username, hash, position, salt);
+    }
+
+    /**
+     * The stored message a DELIVER carries, or null for notices.
+     */
+    ChatMessage stored() {
+        if (id == 0) return null;
+        return new ChatMessage(id, room, sender, text.substring(sender.length() + 2), timestamp);
+    }
+
+    /* -- Wire format for TcpMeshBus: type byte, id, then each string as length + UTF-8 (-1 for null) -- */
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeLong(id);
+        writeString(out, origin);
+        writeString(out, room);
+        writeString(out, sender);
+        writeString(out, text);
+        writeString(out, timestamp);
+    }
+
+    static ClusterMessage read(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= Type.values().length) throw new IOException("Unknown cluster message type " + type);
+        long id = in.readLong();
+        return new ClusterMessage(Type.values()[type], readString(in), readString(in), readString(in),
+                readString(in), id, readString(in));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        if (length > BinaryProtocol.MAX_FRAME * 4) throw new IOException("Cluster string too long: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces message retention in the background. Every {@code interval} it walks the rooms with
+ * stored history and trims each to its {@link Policy}, a batch of at most {@code batch} messages
+ * at a time. Each batch is one short transaction (for SQLite), and after each one it sleeps long
+ * enough to stay under {@code rate} messages a second, so live inserts never wait long for it.
+ */
+final class Compactor implements Runnable {
+
+    private static final Metrics.Counter REMOVED = Metrics.counter("chat_retention_removed_total");
+    private static final Metrics.Counter ARCHIVED = Metrics.counter("chat_retention_archived_total");
+    private static final Metrics.Counter FAILED = Metrics.counter("chat_retention_failed_total");
+    private static final LatencyHistogram BATCH_TIME = Metrics.histogram("chat_retention_batch_us");
+
+    /**
+     * How much history a room keeps: messages younger than {@code maxAge} (null for any age)
+     * and only the newest {@code maxCount} of them (0 for any number).
+     */
+    record Policy(Duration maxAge, int maxCount) {
+        boolean isNone() {
+            return maxAge == null && maxCount <= 0;
+        }
+    }
+
+    private final MessageStore store;
+    private final Policy global;
+    private final Map<String, Policy> rooms;
+    private final MessageArchive archive;
+    private final long intervalNanos;
+    private final int batch;
+    private final int rate;
+    private final Thread thread;
+    private volatile boolean stopping;
+    private volatile long lastPassMillis;
+    private volatile long lastPassRemoved;
+
+    Compactor(MessageStore store, Policy global, Map<String, Policy> rooms, MessageArchive archive,
+              long intervalMillis, int batch, int rate) {
+        this.store = store;
+        this.global = global;
+        this.rooms = rooms;
+        this.archive = archive;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.batch = batch;
+        this.rate = rate;
+        this.thread = new Thread(this, "chat-compactor");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * The compactor {@code chat.retention.*} describes, or null if it sets no limits.
+     */
+    static Compactor fromConfig(MessageStore store) {
+        Policy global = new Policy(parseAge(ServerConfig.RETENTION_MAX_AGE), ServerConfig.RETENTION_MAX_COUNT);
+        Map<String, Policy> rooms = parseRooms(ServerConfig.RETENTION_ROOMS, global);
+        if (global.isNone() && rooms.values().stream().allMatch(Policy::isNone)) return null;
+        MessageArchive archive = ServerConfig.RETENTION_ARCHIVE_DIR.isEmpty() ? null
+                : new MessageArchive(Path.of(ServerConfig.RETENTION_ARCHIVE_DIR));
+        return new Compactor(store, global, rooms, archive, TimeUnit.SECONDS.toMillis(ServerConfig.RETENTION_INTERVAL_S),
+                ServerConfig.RETENTION_BATCH, ServerConfig.RETENTION_RATE);
+    }
+
+    void start() {
+        Metrics.gauge("chat_retention_last_pass_ms", () -> lastPassMillis);
+        Metrics.gauge("chat_retention_last_pass_removed", () -> lastPassRemoved);
+        thread.start();
+    }
+
+    void stop() {
+        stopping = true;
+        thread.interrupt();
+    }
+
+    Policy policy(String room) {
+        return rooms.getOrDefault(room, global);
+    }
+
+    @Override
+    public void run() {
+        while (!stopping) {
+            try {
+                runOnce();
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One pass over every room. Returns the number of messages removed.
+     */
+    long runOnce() throws InterruptedException {
+        long start = System.nanoTime();
+        long removed = 0;
+        Instant now = Instant.now();
+        for (String room : store.rooms()) {
+            Policy policy = policy(room);
+            if (policy.isNone()) continue;
+            String cutoff = policy.maxAge() == null ? null : ChatMessage.timestamp(now.minus(policy.maxAge()));
+            while (!stopping) {
+                long batchStart = System.nanoTime();
+                MessageStore.Trimmed trimmed;
+                try {
+                    trimmed = store.trim(room, cutoff, policy.maxCount(), batch, archive);
+                } catch (IOException e) {
+                    System.out.println("Retention for room " + room + " failed: " + e.getMessage());
+                    FAILED.increment();
+                    break;
+                } finally {
+                    BATCH_TIME.recordSince(batchStart);
+                }
+                if (trimmed.messages() == 0) break;
+                removed += trimmed.messages();
+                REMOVED.add(trimmed.messages());
+                if (archive != null) ARCHIVED.add(trimmed.messages());
+                RoomHistory.dropThrough(room, trimmed.throughId());
+                if (rate > 0) TimeUnit.NANOSECONDS.sleep(TimeUnit.SECONDS.toNanos(trimmed.messages()) / rate);
+            }
+        }
+        lastPassMillis = (System.nanoTime() - start) / 1_000_000;
+        lastPassRemoved = removed;
+        if (removed > 0) System.out.println("Retention removed " + removed + " messages in " + lastPassMillis + " ms");
+        return removed;
+    }
+
+    /* -- Configuration -- */
+
+    // 90d, 12h, 30m or 45s; empty for none.
+    static Duration parseAge(String spec) {
+        spec = spec.trim();
+        if (spec.isEmpty()) return null;
+        long n = Long.parseLong(spec.substring(0, spec.length() - 1));
+        return switch (spec.charAt(spec.length() - 1)) {
+            case 'd' -> Duration.ofDays(n);
+            case 'h' -> Duration.ofHours(n);
+            case 'm' -> Duration.ofMinutes(n);
+            case 's' -> Duration.ofSeconds(n);
+            default -> throw new IllegalArgumentException("Expected a number and d, h, m or s, got '" + spec + "'");
+        };
+    }
+
+    // room:maxAge:maxCount, comma-separated; an empty field takes the global value, "0" means no limit.
+    static Map<String, Policy> parseRooms(String spec, Policy global) {
+        Map<String, Policy> rooms = new HashMap<>();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+            String[] parts = item.split(":", -1);
+            if (parts.length != 3) throw new IllegalArgumentException("Expected room:maxAge:maxCount, got '" + item + "'");
+            String age = parts[1].trim();
+            String count = parts[2].trim();
+            rooms.put(parts[0].trim(), new Policy(
+                    age.isEmpty() ? global.maxAge() : age.equals("0") ? null : parseAge(age),
+                    count.isEmpty() ? global.maxCount() : Integer.parseInt(count)));
+        }
+        return rooms;
+    }
+}
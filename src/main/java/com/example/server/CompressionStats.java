@@ -0,0 +1,35 @@
+package com.example.server;
+
+/**
+ * What compression costs and saves, per transport: bytes before and after, time spent
+ * compressing, and how many messages were below the threshold and sent as they were.
+ */
+final class CompressionStats {
+
+    static final CompressionStats TCP = new CompressionStats("tcp");
+    static final CompressionStats WS = new CompressionStats("ws");
+
+    private final Metrics.Counter bytesIn;
+    private final Metrics.Counter bytesOut;
+    private final Metrics.Counter skipped;
+    private final LatencyHistogram time;
+
+    private CompressionStats(String transport) {
+        String label = "{transport=\"" + transport + "\"}";
+        bytesIn = Metrics.counter("chat_compress_bytes_in_total" + label);
+        bytesOut = Metrics.counter("chat_compress_bytes_out_total" + label);
+        skipped = Metrics.counter("chat_compress_skipped_total" + label);
+        time = Metrics.histogram("chat_compress_us" + label);
+        Metrics.gauge("chat_compress_bytes_saved" + label, () -> bytesIn.sum() - bytesOut.sum());
+    }
+
+    void compressed(long in, long out, long startNanos) {
+        time.recordSince(startNanos);
+        bytesIn.add(in);
+        bytesOut.add(out);
+    }
+
+    void skipped() {
+        skipped.increment();
+    }
+}
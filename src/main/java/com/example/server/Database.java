@@ -0,0 +1,252 @@
+package com.example.server;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared SQLite storage for all managers. SQLite allows one writer at a time, so
+ * writes go through a single connection behind a lock; reads use a few separate
+ * connections, which WAL lets run alongside the writer. Every connection keeps its
+ * own prepared statement cache.
+ *
+ * An in-memory database only exists on the connection that created it, so for
+ * {@code :memory:} URLs everything goes through the writer connection.
+ */
+public final class Database {
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(Session session) throws SQLException;
+    }
+
+    /**
+     * A pooled connection, lent to one caller at a time.
+     */
+    public static final class Session {
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Session(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * Returns a cached statement for {@code sql}. Don't close it; close its result sets.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                ps.clearParameters();
+            }
+            return ps;
+        }
+
+        public Connection connection() {
+            return conn;
+        }
+
+        private void close() {
+            for (PreparedStatement ps : statements.values()) {
+                try { ps.close(); } catch (SQLException ignored) {}
+            }
+            try { conn.close(); } catch (SQLException ignored) {}
+        }
+    }
+
+    // Opened on first use, so a test can switch URLs before the default file is touched.
+    private static volatile Pool pool;
+    private static final ReentrantLock poolLock = new ReentrantLock();
+    private static final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+
+    private Database() {}
+
+    /**
+     * Points every manager at another database. Meant for startup and tests.
+     */
+    public static void useUrl(String url) {
+        poolLock.lock();
+        try {
+            Pool old = pool;
+            if (old != null && old.url.equals(url)) return;
+            pool = new Pool(url, ServerConfig.DB_READERS);
+            if (old != null) old.close();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    public static String url() {
+        return pool().url;
+    }
+
+    /**
+     * The SQLite file behind the current URL, or null for an in-memory database. Other files
+     * the server keeps (journals, logs) go next to it.
+     */
+    public static Path file() {
+        String url = url();
+        if (!url.startsWith("jdbc:sqlite:") || url.contains(":memory:") || url.contains("mode=memory")) return null;
+        String path = url.substring("jdbc:sqlite:".length());
+        int query = path.indexOf('?');
+        if (query >= 0) path = path.substring(0, query);
+        if (path.startsWith("file:")) path = path.substring(5);
+        return path.isEmpty() ? null : Path.of(path).toAbsolutePath();
+    }
+
+    /**
+     * Runs {@code work} on a read connection. {@code op} names the call site (e.g.
+     * {@code "RoomManager.getAllRooms"}) for the {@code chat_db_call_us} latency metric.
+     */
+    public static <T> T read(String op, Work<T> work) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return pool().read(work);
+        } finally {
+            timer(op).recordSince(start);
+        }
+    }
+
+    public static <T> T write(String op, Work<T> work) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return pool().write(work, false);
+        } finally {
+            timer(op).recordSince(start);
+        }
+    }
+
+    /**
+     * Like {@link #write} but inside one transaction, rolled back if {@code work} throws.
+     */
+    public static <T> T transaction(String op, Work<T> work) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return pool().write(work, true);
+        } finally {
+            timer(op).recordSince(start);
+        }
+    }
+
+    private static LatencyHistogram timer(String op) {
+        LatencyHistogram h = timers.get(op);
+        return h != null ? h : timers.computeIfAbsent(op, o -> Metrics.histogram("chat_db_call_us{op=\"" + o + "\"}"));
+    }
+
+    private static Pool pool() {
+        Pool p = pool;
+        if (p != null) return p;
+        poolLock.lock();
+        try {
+            if (pool == null) pool = new Pool(ServerConfig.DB_URL, ServerConfig.DB_READERS);
+            return pool;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private static final class Pool {
+        final String url;
+        private final Session writer;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final BlockingQueue<Session> readers;
+        private final List<Session> all = new ArrayList<>();
+        private final boolean readsUseWriter;
+
+        Pool(String url, int readerCount) {
+            this.url = url;
+            boolean inMemory = url.contains(":memory:") || url.contains("mode=memory");
+            this.writer = open(url, true);
+            this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+            if (!inMemory && writer != null) {
+                for (int i = 0; i < readerCount; i++) {
+                    Session s = open(url, false);
+                    if (s != null) readers.add(s);
+                }
+            }
+            this.readsUseWriter = readers.isEmpty();
+        }
+
+        private Session open(String url, boolean isWriter) {
+            try {
+                Connection conn = DriverManager.getConnection(url);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("PRAGMA busy_timeout=" + ServerConfig.DB_BUSY_TIMEOUT_MS);
+                    if (isWriter) {
+                        stmt.execute("PRAGMA journal_mode=WAL");
+                        stmt.execute("PRAGMA synchronous=NORMAL");
+                    } else {
+                        stmt.execute("PRAGMA query_only=1");
+                    }
+                }
+                Session s = new Session(conn);
+                all.add(s);
+                return s;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        <T> T read(Work<T> work) throws SQLException {
+            if (readsUseWriter) return write(work, false);
+            Session s;
+            try {
+                s = readers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a read connection", e);
+            }
+            try {
+                return work.run(s);
+            } finally {
+                readers.add(s);
+            }
+        }
+
+        <T> T write(Work<T> work, boolean transactional) throws SQLException {
+            if (writer == null) throw new SQLException("No connection to " + url);
+            writeLock.lock();
+            try {
+                if (!transactional) return work.run(writer);
+                Connection conn = writer.connection();
+                conn.setAutoCommit(false);
+                try {
+                    T result = work.run(writer);
+                    conn.commit();
+                    return result;
+                } catch (SQLException | RuntimeException e) {
+                    try { conn.rollback(); } catch (SQLException ignored) {}
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void close() {
+            writeLock.lock();
+            try {
+                for (Session s : all) s.close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
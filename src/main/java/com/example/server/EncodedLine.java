@@ -0,0 +1,89 @@
+package com.example.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An outbound TCP line encoded once: UTF-8 with the trailing newline. A room broadcast
+ * builds one and hands the same bytes to every member's connection; members speaking
+ * {@link BinaryProtocol} share its {@link #binary()} frame the same way.
+ */
+public final class EncodedLine {
+
+    private final String text;
+    private final byte[] bytes;
+    // Set for room messages, which become MESSAGE frames.
+    private final String room;
+    private final String sender;
+    private final long id;
+    private volatile EncodedLine binary;
+
+    private EncodedLine(String text, byte[] bytes, String room, String sender, long id) {
+        this.text = text;
+        this.bytes = bytes;
+        this.room = room;
+        this.sender = sender;
+        this.id = id;
+    }
+
+    public static EncodedLine of(String text) {
+        return new EncodedLine(text, (text + "\n").getBytes(StandardCharsets.UTF_8), null, null, 0);
+    }
+
+    /**
+     * A room broadcast; {@code id} is the stored message id, or 0 for notices.
+     */
+    static EncodedLine roomMessage(String room, String sender, long id, String text) {
+        return new EncodedLine(text, (text + "\n").getBytes(StandardCharsets.UTF_8), room, sender, id);
+    }
+
+    /**
+     * A ready-made binary frame.
+     */
+    static EncodedLine frame(byte op, long id, String text) {
+        return new EncodedLine(text, BinaryProtocol.encode(op, id, text), null, null, id);
+    }
+
+    public String text() {
+        return text;
+    }
+
+    /**
+     * The stored message id of a room message; 0 for notices and other lines.
+     */
+    long messageId() {
+        return room == null ? 0 : id;
+    }
+
+    int length() {
+        return bytes.length;
+    }
+
+    // Shared, never modified: writers must not change the contents.
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * A buffer over the shared bytes with its own position, for one connection's write queue.
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * This line as a binary frame, built by the first binary recipient and then shared.
+     */
+    EncodedLine binary() {
+        EncodedLine b = binary;
+        if (b == null) {
+            // A line that came in too long for a MESSAGE frame (senders are asked to keep under it)
+            // still reaches binary clients, as plain text.
+            b = room == null || !BinaryProtocol.fitsMessage(room, sender, text)
+                    ? frame(BinaryProtocol.TEXT, 0, text)
+                    : frame(BinaryProtocol.MESSAGE, id, BinaryProtocol.join(room, sender, text));
+            binary = b;
+        }
+        return b;
+    }
+}
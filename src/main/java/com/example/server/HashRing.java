@@ -0,0 +1,60 @@
+package com.example.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Consistent hashing of room names onto nodes. Each node takes {@code virtualNodes} points
+ * on a 64-bit ring and owns the keys that hash up to its points, so adding a node moves
+ * only about 1/N of the rooms, and all of them to the new node.
+ */
+final class HashRing {
+
+    private final long[] points;
+    private final String[] owners;
+
+    HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("No nodes");
+        record Point(long hash, String node) {}
+        Point[] all = new Point[nodes.size() * virtualNodes];
+        int i = 0;
+        for (String node : nodes) {
+            for (int v = 0; v < virtualNodes; v++) all[i++] = new Point(hash(node + "#" + v), node);
+        }
+        Arrays.sort(all, (a, b) -> Long.compareUnsigned(a.hash(), b.hash()));
+        points = new long[all.length];
+        owners = new String[all.length];
+        for (i = 0; i < all.length; i++) {
+            points[i] = all[i].hash();
+            owners[i] = all[i].node();
+        }
+    }
+
+    String owner(String key) {
+        long h = hash(key);
+        // First point at or after h, wrapping around; points are in unsigned order.
+        int lo = 0, hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(points[mid], h) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return owners[lo == points.length ? 0 : lo];
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, then a murmur finalizer to spread nearby names.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of latencies in microseconds, in the style of HdrHistogram:
+ * 32 sub-buckets per power of two (about 3% precision) from 1 us up to hours, in a
+ * fixed array. Recording is one atomic increment and never allocates.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_MASK = (1 << SUB_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sumMicros.add(micros);
+        if (micros > maxMicros.get()) maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumMicros() {
+        return sumMicros.sum();
+    }
+
+    public long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * The value at quantile {@code q} (0..1) in microseconds, as the upper edge of its bucket.
+     */
+    public long percentile(double q) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    static int index(long micros) {
+        if (micros <= SUB_MASK) return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((micros >>> shift) & SUB_MASK);
+    }
+
+    static long highest(int index) {
+        int bucket = index >>> SUB_BITS, sub = index & SUB_MASK;
+        if (bucket == 0) return sub;
+        return ((long) ((1 << SUB_BITS) + sub + 1) << (bucket - 1)) - 1;
+    }
+}
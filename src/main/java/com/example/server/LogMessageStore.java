@@ -0,0 +1,401 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * History as an append-only log per room: a directory of {@link LogSegment}s, each named by the
+ * first id it holds. An append is a copy into the mapped active segment, and a background thread
+ * forces dirty segments to disk every {@code syncMillis}. A full segment is sealed and never
+ * written again, so old history can be archived or deleted a file at a time.
+ *
+ * A backlog read finds its starting record through the sparse index, then walks backward
+ * through the mapped pages. Search uses a {@link SearchIndex} per room, built from the room's
+ * segments on its first search and kept up to date after that; it lives in memory only.
+ */
+public final class LogMessageStore implements MessageStore {
+
+    private static final Metrics.Counter APPENDED = Metrics.counter("chat_log_appended_total");
+    private static final Metrics.Counter FAILED = Metrics.counter("chat_log_failed_total");
+    private static final Metrics.Counter SEALED = Metrics.counter("chat_log_segments_sealed_total");
+    private static final Metrics.Counter OUT_OF_ORDER = Metrics.counter("chat_log_out_of_order_total");
+    private static final LatencyHistogram SYNC_TIME = Metrics.histogram("chat_log_sync_us");
+    private static final LatencyHistogram INDEX_BUILD_TIME = Metrics.histogram("chat_log_index_build_us");
+
+    private static final Pattern PLAIN_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    static final String NAME_FILE = "room";
+    // Largest id at the last trim, so ids don't go back once retention empties the rooms that had them.
+    private static final String HIGH_WATER_FILE = "max-id";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final Map<String, RoomLog> rooms = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer;
+    private volatile long highWater;
+
+    // Segments oldest first; the last one takes appends. Everything under lock.
+    private final class RoomLog {
+        final String room;
+        final Path path;
+        final ReentrantLock lock = new ReentrantLock();
+        final List<LogSegment> segments = new ArrayList<>();
+        long lastId;
+        SearchIndex index;
+
+        RoomLog(String room, Path path) {
+            this.room = room;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Opens (or creates) the log under {@code dir}, finding where each room's active segment ends.
+     *
+     * @param syncMillis how often mapped pages are forced to disk; 0 leaves it to the OS
+     */
+    public LogMessageStore(Path dir, int segmentBytes, long syncMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> rooms = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path path : rooms) {
+                Path nameFile = path.resolve(NAME_FILE);
+                if (!Files.exists(nameFile)) continue;
+                RoomLog log = new RoomLog(Files.readString(nameFile, StandardCharsets.UTF_8), path);
+                openSegments(log);
+                this.rooms.put(log.room, log);
+            }
+        }
+        Path highWaterFile = dir.resolve(HIGH_WATER_FILE);
+        if (Files.exists(highWaterFile)) highWater = Long.parseLong(Files.readString(highWaterFile).trim());
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "chat-log-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncAll, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+        Metrics.gauge("chat_log_rooms", this.rooms::size);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "chat-log-shutdown"));
+        System.out.println("Message log at " + dir + ": " + this.rooms.size() + " rooms");
+    }
+
+    /**
+     * {@code chat.store.dir}, or next to the database file.
+     */
+    static Path defaultDirectory() {
+        if (ServerConfig.LOG_DIR != null) return Path.of(ServerConfig.LOG_DIR);
+        Path db = Database.file();
+        return db == null ? Path.of("messages") : db.resolveSibling(db.getFileName() + ".messages");
+    }
+
+    private void openSegments(RoomLog log) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(log.path, "*.log")) {
+            for (Path file : logs) files.add(file);
+        }
+        // Zero-padded ids, so name order is id order.
+        files.sort(null);
+        for (int i = 0; i < files.size(); i++) {
+            log.segments.add(LogSegment.open(files.get(i), i == files.size() - 1, segmentBytes));
+        }
+        // The active segment is empty if nothing in it survived a crash; then the one before has the last id.
+        for (int i = log.segments.size() - 1; i >= 0 && log.lastId == 0; i--) log.lastId = log.segments.get(i).lastId();
+    }
+
+    // Readable names stay as they are; anything else is hex, and the real name is kept in a file.
+    private static String directoryName(String room) {
+        if (PLAIN_NAME.matcher(room).matches()) return room;
+        byte[] bytes = room.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= 100) return "~" + HexFormat.of().formatHex(bytes);
+        return "~" + HexFormat.of().formatHex(bytes, 0, 60) + "-" + Long.toHexString(HashRing.hash(room));
+    }
+
+    private RoomLog roomLog(String room) throws IOException {
+        RoomLog log = rooms.get(room);
+        if (log != null) return log;
+        try {
+            return rooms.computeIfAbsent(room, r -> {
+                try {
+                    Path path = Files.createDirectories(dir.resolve(directoryName(r)));
+                    Files.writeString(path.resolve(NAME_FILE), r, StandardCharsets.UTF_8);
+                    return new RoomLog(r, path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void append(ChatMessage message) {
+        try {
+            RoomLog log = roomLog(message.room());
+            log.lock.lock();
+            try {
+                // Only a replica can arrive with an old id; keep the first copy. One that isn't stored
+                // would have to go before the end of the log, which segments can't take.
+                if (message.id() <= log.lastId) {
+                    if (!contains(log, message.id())) {
+                        OUT_OF_ORDER.increment();
+                        System.out.println("Message " + message.id() + " in " + log.room + " not logged: the log is at " + log.lastId);
+                    }
+                    return;
+                }
+                LogSegment active = log.segments.isEmpty() ? null : log.segments.get(log.segments.size() - 1);
+                if (active == null || !active.append(message)) {
+                    if (active != null) retire(log, active);
+                    active = LogSegment.create(log.path, message.id(), Math.max(segmentBytes, LogSegment.sizeOf(message)));
+                    log.segments.add(active);
+                    active.append(message);
+                }
+                log.lastId = Math.max(log.lastId, message.id());
+                if (log.index != null) log.index.add(message.id(), message.text());
+                APPENDED.increment();
+            } finally {
+                log.lock.unlock();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            FAILED.increment();
+        }
+    }
+
+    // Caller holds the room's lock.
+    private void retire(RoomLog log, LogSegment active) throws IOException {
+        if (active.isEmpty()) {
+            // Nothing survived a crash in it; its name could clash with the next one.
+            active.delete();
+            log.segments.remove(log.segments.size() - 1);
+        } else {
+            active.seal();
+            SEALED.increment();
+        }
+    }
+
+    private static boolean contains(RoomLog log, long id) throws IOException {
+        return find(log, id) != null;
+    }
+
+    // Caller holds the room's lock.
+    private static ChatMessage find(RoomLog log, long id) throws IOException {
+        for (int i = log.segments.size() - 1; i >= 0; i--) {
+            LogSegment segment = log.segments.get(i);
+            if (segment.baseId > id) continue;
+            int pos = segment.positionOf(id);
+            return pos < segment.size() && segment.idAt(pos) == id ? segment.read(pos, log.room) : null;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) {
+        // Appends are in the mapped file by the time they return.
+        return true;
+    }
+
+    @Override
+    public MessageManager.Page history(String room, long beforeId, int limit) {
+        return collect(room, Long.MIN_VALUE, beforeId, limit);
+    }
+
+    @Override
+    public MessageManager.Page since(String room, long afterId, long upToId, int limit) {
+        return collect(room, afterId, upToId == Long.MAX_VALUE ? upToId : upToId + 1, limit);
+    }
+
+    // Newest limit (+1 to tell if there are more) with afterId < id < beforeId, walking backward.
+    private MessageManager.Page collect(String room, long afterId, long beforeId, int limit) {
+        List<ChatMessage> newestFirst = new ArrayList<>(Math.min(limit + 1, 1024));
+        RoomLog log = rooms.get(room);
+        if (log == null) return new MessageManager.Page(newestFirst, false);
+        log.lock.lock();
+        try {
+            walk:
+            for (int i = log.segments.size() - 1; i >= 0; i--) {
+                LogSegment segment = log.segments.get(i);
+                if (segment.baseId >= beforeId) continue;
+                int pos = segment.positionOf(beforeId);
+                while (pos > 0) {
+                    pos = segment.previous(pos);
+                    long id = segment.idAt(pos);
+                    if (id <= afterId) break walk;
+                    if (id >= beforeId) continue;
+                    newestFirst.add(segment.read(pos, room));
+                    if (newestFirst.size() > limit) break walk;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            log.lock.unlock();
+        }
+        return MessageManager.Page.fromNewestFirst(newestFirst, limit);
+    }
+
+    @Override
+    public MessageManager.Page search(Collection<String> rooms, String query, int offset, int limit) {
+        List<String> terms = SearchIndex.words(query);
+        List<ChatMessage> found = new ArrayList<>();
+        if (terms.isEmpty()) return new MessageManager.Page(found, false);
+        List<SearchIndex.Hit> ranked = new ArrayList<>();
+        for (String room : rooms) {
+            RoomLog log = this.rooms.get(room);
+            if (log == null) continue;
+            log.lock.lock();
+            try {
+                if (log.index == null) log.index = buildIndex(log);
+                log.index.search(terms, ServerConfig.SEARCH_CANDIDATES, ranked::add);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                log.lock.unlock();
+            }
+        }
+        // Ids grow across rooms, so the newest candidates overall are the largest ids.
+        if (ranked.size() > ServerConfig.SEARCH_CANDIDATES) {
+            ranked.sort(Comparator.comparingLong(SearchIndex.Hit::id).reversed());
+            ranked.subList(ServerConfig.SEARCH_CANDIDATES, ranked.size()).clear();
+        }
+        ranked.sort(SearchIndex.BEST_FIRST);
+        for (SearchIndex.Hit hit : ranked.subList(Math.min(offset, ranked.size()), Math.min(offset + limit, ranked.size()))) {
+            RoomLog log = this.rooms.get(hit.room());
+            log.lock.lock();
+            try {
+                // Gone if retention trimmed it in between.
+                ChatMessage m = find(log, hit.id());
+                if (m != null) found.add(m);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                log.lock.unlock();
+            }
+        }
+        return new MessageManager.Page(found, ranked.size() > offset + limit);
+    }
+
+    // Caller holds the room's lock. Reads the whole room once.
+    private static SearchIndex buildIndex(RoomLog log) throws IOException {
+        long start = System.nanoTime();
+        SearchIndex index = new SearchIndex(log.room);
+        for (LogSegment segment : log.segments) segment.forEach(log.room, m -> index.add(m.id(), m.text()));
+        INDEX_BUILD_TIME.recordSince(start);
+        return index;
+    }
+
+    @Override
+    public long maxId() {
+        long max = highWater;
+        for (RoomLog log : rooms.values()) {
+            log.lock.lock();
+            try {
+                max = Math.max(max, log.lastId);
+            } finally {
+                log.lock.unlock();
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public List<String> rooms() {
+        return List.copyOf(rooms.keySet());
+    }
+
+    /**
+     * Drops the room's oldest segments while every message in one is outside the policy: its newest
+     * is older than {@code cutoff}, or the later segments hold at least {@code keep} messages. Works
+     * in whole segments, so a message can outlive the policy until the rest of its segment expires.
+     * The first segment goes even if it holds more than {@code limit} messages; after that, only
+     * segments that keep the total within it.
+     */
+    @Override
+    public Trimmed trim(String room, String cutoff, int keep, int limit, MessageArchive archive) throws IOException {
+        RoomLog log = rooms.get(room);
+        if (log == null) return new Trimmed(0, 0);
+        log.lock.lock();
+        try {
+            int removed = 0;
+            long through = 0;
+            while (!log.segments.isEmpty() && removed < limit) {
+                LogSegment oldest = log.segments.get(0);
+                if (oldest.count() == 0 || (removed > 0 && removed + oldest.count() > limit)) break;
+                boolean expired = false;
+                if (cutoff != null) {
+                    String newest = oldest.lastTimestamp();
+                    expired = newest != null && newest.compareTo(cutoff) < 0;
+                }
+                if (!expired && keep > 0) {
+                    long later = 0;
+                    for (int i = 1; i < log.segments.size() && later < keep; i++) later += log.segments.get(i).count();
+                    expired = later >= keep;
+                }
+                if (!expired) break;
+                saveHighWater();
+                removed += oldest.count();
+                through = oldest.lastId();
+                if (archive != null) oldest.moveTo(archive.segmentDirectory(log.path));
+                else oldest.delete();
+                log.segments.remove(0);
+            }
+            if (log.index != null && removed > 0) log.index.dropThrough(through, removed);
+            return new Trimmed(removed, through);
+        } finally {
+            log.lock.unlock();
+        }
+    }
+
+    private void saveHighWater() throws IOException {
+        long max = maxId();
+        if (max <= highWater) return;
+        Path tmp = dir.resolve(HIGH_WATER_FILE + ".tmp");
+        Files.writeString(tmp, Long.toString(max));
+        Files.move(tmp, dir.resolve(HIGH_WATER_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        highWater = max;
+    }
+
+    private void syncAll() {
+        long start = System.nanoTime();
+        for (RoomLog log : rooms.values()) {
+            log.lock.lock();
+            try {
+                if (!log.segments.isEmpty()) log.segments.get(log.segments.size() - 1).sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                log.lock.unlock();
+            }
+        }
+        SYNC_TIME.recordSince(start);
+    }
+
+    // Only forces what is mapped to disk: the shutdown hook may run while sessions are still
+    // appending, and those appends should still land.
+    @Override
+    public void close() {
+        if (syncer != null) syncer.shutdown();
+        syncAll();
+    }
+}
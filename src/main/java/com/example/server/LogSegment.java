@@ -0,0 +1,374 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of a room's message log, memory-mapped. Records are appended back to back:
+ *
+ * <pre>
+ *   int length | int crc32c | long id | user | text | timestamp | int length
+ * </pre>
+ *
+ * where each string is an int byte count and UTF-8, {@code length} covers id through timestamp,
+ * and the trailing copy lets readers walk backward from any record boundary. The active segment
+ * is mapped at its full size up front and the first zero length marks its end; sealing truncates
+ * the file to what was written.
+ *
+ * A sparse index ({@code .idx}: long id, int offset) gets an entry every {@link #INDEX_EVERY}
+ * bytes, so finding an id means a binary search plus a short forward scan. Sealing adds a last
+ * entry with id {@code -1} and the record count, so retention can count sealed segments without
+ * reading them.
+ *
+ * Not thread-safe; {@link LogMessageStore} locks per room.
+ */
+final class LogSegment {
+
+    static final int INDEX_EVERY = 4096;
+    private static final int HEADER = 8;
+    private static final int TRAILER = 4;
+    private static final int INDEX_ENTRY = 12;
+    private static final long COUNT_ENTRY = -1;
+
+    final long baseId;
+    final Path file;
+    private final Path indexFile;
+    private MappedByteBuffer map;
+    private FileChannel index;
+    private int end;
+    private long lastId;
+    private long lastIndexed = -INDEX_EVERY;
+    private long[] indexIds = new long[16];
+    private int[] indexOffsets = new int[16];
+    private int indexSize;
+    private int count = -1;
+    private boolean dirty;
+
+    private LogSegment(long baseId, Path file) {
+        this.baseId = baseId;
+        this.file = file;
+        this.indexFile = file.resolveSibling(name(baseId, ".idx"));
+    }
+
+    static String name(long baseId, String suffix) {
+        return String.format("%020d%s", baseId, suffix);
+    }
+
+    /**
+     * A new, empty active segment of {@code capacity} bytes.
+     */
+    static LogSegment create(Path dir, long baseId, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(baseId, dir.resolve(name(baseId, ".log")));
+        segment.count = 0;
+        segment.mapWritable(capacity);
+        segment.index = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return segment;
+    }
+
+    /**
+     * An existing segment. The active one is scanned from its last index entry to find where
+     * it ends; anything after the last intact record (a write cut short by a crash) is ignored.
+     */
+    static LogSegment open(Path file, boolean active, int capacity) throws IOException {
+        String fileName = file.getFileName().toString();
+        LogSegment segment = new LogSegment(Long.parseLong(fileName.substring(0, fileName.indexOf('.'))), file);
+        segment.loadIndex();
+        if (active) {
+            segment.mapWritable(Math.max(capacity, (int) Files.size(file)));
+            segment.recover();
+            // Rewritten from memory: recovery may have dropped entries past the end or added new ones.
+            segment.index = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer buf = ByteBuffer.allocate(segment.indexSize * INDEX_ENTRY);
+            for (int i = 0; i < segment.indexSize; i++) buf.putLong(segment.indexIds[i]).putInt(segment.indexOffsets[i]);
+            buf.flip();
+            while (buf.hasRemaining()) segment.index.write(buf);
+        }
+        // Sealed segments are mapped on first read, so history nobody asks for costs no mappings.
+        return segment;
+    }
+
+    private void mapSealed() throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        end = map.capacity();
+        lastId = end == 0 ? 0 : idAt(previous(end));
+    }
+
+    private void mapWritable(int capacity) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(indexFile)) return;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        while (buf.remaining() >= INDEX_ENTRY) {
+            long id = buf.getLong();
+            int offset = buf.getInt();
+            if (id == COUNT_ENTRY) count = offset;
+            else addIndex(id, offset);
+        }
+    }
+
+    private void recover() {
+        // Index entries past the last intact record go, then scan forward from the last one left.
+        int from = 0;
+        while (indexSize > 0) {
+            from = indexOffsets[indexSize - 1];
+            if (recordLength(from) > 0) break;
+            indexSize--;
+            from = 0;
+        }
+        lastIndexed = indexSize == 0 ? -INDEX_EVERY : indexOffsets[indexSize - 1];
+        int pos = from;
+        int length;
+        while ((length = recordLength(pos)) > 0) {
+            long id = map.getLong(pos + HEADER);
+            if (pos - lastIndexed >= INDEX_EVERY) {
+                addIndex(id, pos);
+                lastIndexed = pos;
+            }
+            lastId = Math.max(lastId, id);
+            pos += HEADER + length + TRAILER;
+        }
+        end = pos;
+        // Whatever came before the last index entry was intact when it was written; take the largest id from there.
+        for (int i = 0; i < indexSize; i++) lastId = Math.max(lastId, indexIds[i]);
+    }
+
+    // Length of the intact record at pos, or 0 at the end of the log or a torn record.
+    private int recordLength(int pos) {
+        if (pos + HEADER + 8 + TRAILER > map.capacity()) return 0;
+        int length = map.getInt(pos);
+        if (length < 8 || pos + HEADER + length + TRAILER > map.capacity()) return 0;
+        if (map.getInt(pos + HEADER + length) != length) return 0;
+        CRC32C crc = new CRC32C();
+        crc.update(map.slice(pos + HEADER, length));
+        return (int) crc.getValue() == map.getInt(pos + 4) ? length : 0;
+    }
+
+    /**
+     * Bytes a record for {@code m} takes in a segment.
+     */
+    static int sizeOf(ChatMessage m) {
+        return HEADER + 8 + 12 + TRAILER + m.user().getBytes(StandardCharsets.UTF_8).length
+                + m.text().getBytes(StandardCharsets.UTF_8).length + m.timestamp().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Appends a record. Returns false if it doesn't fit; the caller then seals this segment
+     * and starts a new one.
+     */
+    boolean append(ChatMessage m) throws IOException {
+        byte[] user = m.user().getBytes(StandardCharsets.UTF_8);
+        byte[] text = m.text().getBytes(StandardCharsets.UTF_8);
+        byte[] timestamp = m.timestamp().getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 12 + user.length + text.length + timestamp.length;
+        int size = HEADER + length + TRAILER;
+        if (end + size > map.capacity()) return false;
+
+        int pos = end;
+        map.position(pos + HEADER);
+        map.putLong(m.id());
+        map.putInt(user.length).put(user);
+        map.putInt(text.length).put(text);
+        map.putInt(timestamp.length).put(timestamp);
+        map.putInt(length);
+        CRC32C crc = new CRC32C();
+        crc.update(map.slice(pos + HEADER, length));
+        map.putInt(pos + 4, (int) crc.getValue());
+        // Length last: until it is there, a reader (or recovery) sees the end of the log here.
+        map.putInt(pos, length);
+        end = pos + size;
+        lastId = Math.max(lastId, m.id());
+        if (count >= 0) count++;
+        dirty = true;
+
+        if (pos - lastIndexed >= INDEX_EVERY) {
+            addIndex(m.id(), pos);
+            lastIndexed = pos;
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY).putLong(m.id()).putInt(pos).flip();
+            while (entry.hasRemaining()) index.write(entry);
+        }
+        return true;
+    }
+
+    private void addIndex(long id, int offset) {
+        if (indexSize == indexIds.length) {
+            indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+        }
+        indexIds[indexSize] = id;
+        indexOffsets[indexSize++] = offset;
+    }
+
+    /**
+     * Writes mapped pages and the index to disk.
+     */
+    void sync() throws IOException {
+        if (!dirty) return;
+        dirty = false;
+        map.force();
+        if (index != null) index.force(false);
+    }
+
+    /**
+     * Stops appending: the file is cut to what was written and mapped read-only.
+     */
+    void seal() throws IOException {
+        if (index == null) return;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY).putLong(COUNT_ENTRY).putInt(count()).flip();
+        while (entry.hasRemaining()) index.write(entry);
+        dirty = true;
+        sync();
+        index.close();
+        index = null;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ch.truncate(end);
+            ch.force(true);
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+    }
+
+    void delete() throws IOException {
+        if (index != null) index.close();
+        index = null;
+        map = null;
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(indexFile);
+    }
+
+    /**
+     * Moves both files into {@code dir}; the segment can't be used afterwards.
+     */
+    void moveTo(Path dir) throws IOException {
+        if (index != null) {
+            sync();
+            index.close();
+            index = null;
+            // An active segment's file is still at its mapped size.
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(end);
+            }
+        }
+        map = null;
+        Files.move(file, dir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        if (Files.exists(indexFile)) Files.move(indexFile, dir.resolve(indexFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* -- Reading -- */
+
+    boolean isActive() {
+        return index != null;
+    }
+
+    /**
+     * Bytes of records; for a sealed segment that hasn't been read yet, the file size.
+     */
+    long size() throws IOException {
+        return map == null ? Files.size(file) : end;
+    }
+
+    boolean isEmpty() {
+        return map != null && end == 0;
+    }
+
+    long lastId() throws IOException {
+        if (map == null) mapSealed();
+        return lastId;
+    }
+
+    /**
+     * Records in the segment. Known for segments sealed or created by this version; otherwise
+     * counted on first call, which reads the whole segment.
+     */
+    int count() throws IOException {
+        if (count < 0) {
+            if (map == null) mapSealed();
+            int n = 0;
+            for (int pos = 0; pos < end; pos = next(pos)) n++;
+            count = n;
+        }
+        return count;
+    }
+
+    /**
+     * Passes every record to {@code action}, oldest first.
+     */
+    void forEach(String room, Consumer<ChatMessage> action) throws IOException {
+        if (map == null) mapSealed();
+        for (int pos = 0; pos < end; pos = next(pos)) action.accept(read(pos, room));
+    }
+
+    /**
+     * Timestamp of the newest record, or null if there is none.
+     */
+    String lastTimestamp() throws IOException {
+        if (map == null) mapSealed();
+        return end == 0 ? null : read(previous(end), null).timestamp();
+    }
+
+    /**
+     * Offset of the first record with {@code id >= bound}, or the end of the segment.
+     */
+    int positionOf(long bound) throws IOException {
+        if (map == null) mapSealed();
+        if (end == 0 || bound > lastId) return end;
+        int lo = 0, hi = indexSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexIds[mid] < bound) lo = mid + 1;
+            else hi = mid;
+        }
+        int pos = lo == 0 ? 0 : indexOffsets[lo - 1];
+        while (pos < end) {
+            if (map.getLong(pos + HEADER) >= bound) return pos;
+            pos += HEADER + map.getInt(pos) + TRAILER;
+        }
+        return end;
+    }
+
+    /**
+     * Start of the record that ends at {@code pos}; {@code pos} must be a record boundary above 0.
+     */
+    int previous(int pos) {
+        return pos - TRAILER - map.getInt(pos - TRAILER) - HEADER;
+    }
+
+    int next(int pos) {
+        return pos + HEADER + map.getInt(pos) + TRAILER;
+    }
+
+    long idAt(int pos) {
+        return map.getLong(pos + HEADER);
+    }
+
+    ChatMessage read(int pos, String room) {
+        ByteBuffer buf = map.duplicate().position(pos + HEADER);
+        long id = buf.getLong();
+        String user = string(buf);
+        String text = string(buf);
+        String timestamp = string(buf);
+        return new ChatMessage(id, room, user, text, timestamp);
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * A bus between nodes in one JVM, for tests: every node joins the same {@link Hub}.
+ * Each node receives on its own thread, like a node behind a socket would.
+ */
+public final class LoopbackBus implements ClusterBus {
+
+    /**
+     * The nodes that can see each other.
+     */
+    public static final class Hub {
+        private final Map<String, LoopbackBus> nodes = new ConcurrentHashMap<>();
+    }
+
+    private final Hub hub;
+    private final String node;
+    private final ExecutorService inbound;
+    private volatile Consumer<ClusterMessage> receiver;
+    private volatile Catchup catchup = Catchup.NONE;
+
+    public LoopbackBus(Hub hub, String node) {
+        this.hub = hub;
+        this.node = node;
+        this.inbound = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "chat-cluster-loopback-" + node);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void start(Consumer<ClusterMessage> receiver, Catchup catchup) {
+        this.receiver = receiver;
+        this.catchup = catchup;
+        hub.nodes.put(node, this);
+        // Joining is connecting to everyone already there.
+        for (LoopbackBus other : hub.nodes.values()) {
+            if (other == this) continue;
+            for (ClusterMessage m : other.catchup.since(node, catchup.position(other.node))) other.send(node, m);
+            for (ClusterMessage m : catchup.since(other.node, other.catchup.position(node))) send(other.node, m);
+        }
+    }
+
+    @Override
+    public boolean send(String to, ClusterMessage message) {
+        LoopbackBus target = to.equals(node) ? null : hub.nodes.get(to);
+        if (target == null) return false;
+        target.inbound.execute(() -> target.receiver.accept(message));
+        return true;
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        for (String other : hub.nodes.keySet()) send(other, message);
+    }
+
+    @Override
+    public int connectedPeers() {
+        return hub.nodes.containsKey(node) ? hub.nodes.size() - 1 : 0;
+    }
+
+    @Override
+    public void close() {
+        hub.nodes.remove(node, this);
+        inbound.shutdown();
+    }
+}
@@ -0,0 +1,346 @@
+package com.example.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for room memberships. Joins and leaves update the in-memory rooms first
+ * and are recorded here: appended to a journal file, so a crash loses nothing already recorded,
+ * and coalesced per (user, room) in memory. One thread commits what has accumulated in a single
+ * {@link Database#transaction} every {@code flushMillis}, or sooner once {@code maxPending}
+ * memberships are waiting. A join undone by a leave before the commit never reaches SQLite.
+ *
+ * Before each commit the journal is moved aside to {@code <file>.flushing}, which is deleted once
+ * the commit succeeds; {@link #recover()} replays whatever of the two is left after a crash.
+ */
+final class MembershipJournal implements Runnable {
+
+    static final String CREATE_ROOM = "INSERT OR IGNORE INTO rooms(name) VALUES(?)";
+    static final String JOIN = "INSERT OR IGNORE INTO room_members(username, room_name) VALUES(?, ?)";
+    static final String LEAVE = "DELETE FROM room_members WHERE username=? AND room_name=?";
+
+    private static final Metrics.Counter RECORDED = Metrics.counter("chat_membership_changes_total");
+    private static final Metrics.Counter CANCELLED = Metrics.counter("chat_membership_cancelled_total");
+    private static final Metrics.Counter WRITTEN = Metrics.counter("chat_membership_written_total");
+    private static final Metrics.Counter FAILED = Metrics.counter("chat_membership_failed_total");
+    private static final LatencyHistogram COMMIT_TIME = Metrics.histogram("chat_membership_commit_us");
+
+    private record Key(String user, String room) {}
+
+    // fresh: the change flipped what the in-memory rooms had, so an opposite fresh change restores what SQLite has.
+    private record Change(boolean join, boolean fresh) {}
+
+    private final Path file;
+    private final Path flushing;
+    private final long flushNanos;
+    private final int maxPending;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition full = lock.newCondition();
+    // Held from drain to commit, so two batches never reach SQLite out of order.
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Thread thread;
+    private Map<Key, Change> pending = new LinkedHashMap<>();
+    private DataOutputStream out;
+    private volatile boolean stopping;
+
+    /**
+     * @param file the journal, or null to keep pending changes in memory only
+     */
+    MembershipJournal(Path file, long flushMillis, int maxPending) {
+        this.file = file;
+        this.flushing = file == null ? null : file.resolveSibling(file.getFileName() + ".flushing");
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.maxPending = maxPending;
+        this.thread = new Thread(this, "chat-membership-journal");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * The journal for the current database: next to an SQLite file unless {@code chat.membership.journal}
+     * names one, and none for in-memory databases or when that option is empty.
+     */
+    static Path defaultFile() {
+        String configured = ServerConfig.MEMBERSHIP_JOURNAL;
+        if (configured != null) return configured.isEmpty() ? null : Path.of(configured);
+        Path db = Database.file();
+        return db == null ? null : db.resolveSibling(db.getFileName() + ".members");
+    }
+
+    /**
+     * Replays what a previous run left in the journal, opens it for appending and starts the writer.
+     */
+    void start() throws IOException {
+        int recovered = recover();
+        if (recovered > 0) System.out.println("Recovered " + recovered + " membership changes from " + file);
+        if (file != null) out = open();
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "chat-membership-journal-shutdown"));
+    }
+
+    /**
+     * Commits the changes left in the journal files by a run that didn't shut down cleanly, then
+     * deletes them. Returns the number of changes read.
+     */
+    int recover() throws IOException {
+        if (file == null) return 0;
+        Map<Key, Change> changes = new LinkedHashMap<>();
+        int n = replay(flushing, changes) + replay(file, changes);
+        if (n == 0) {
+            Files.deleteIfExists(flushing);
+            return 0;
+        }
+        try {
+            commit(changes);
+        } catch (SQLException e) {
+            throw new IOException("Could not replay " + file, e);
+        }
+        Files.deleteIfExists(flushing);
+        Files.deleteIfExists(file);
+        return n;
+    }
+
+    /**
+     * Records a join ({@code join}) or leave. Returns false once the journal is shutting down;
+     * the caller then writes it directly.
+     */
+    boolean record(String user, String room, boolean join, boolean fresh) {
+        lock.lock();
+        try {
+            if (stopping) return false;
+            if (out != null) {
+                try {
+                    write(out, join, user, room);
+                    out.flush();
+                } catch (IOException e) {
+                    System.out.println("Membership journal " + file + " failed, keeping changes in memory only: " + e.getMessage());
+                    closeQuietly();
+                }
+            }
+            Key key = new Key(user, room);
+            Change before = pending.get(key);
+            if (fresh && before != null && before.fresh() && before.join() != join) {
+                pending.remove(key);
+                CANCELLED.increment();
+            } else {
+                pending.put(key, new Change(join, fresh));
+            }
+            RECORDED.increment();
+            if (pending.size() >= maxPending) full.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits everything recorded so far before returning.
+     */
+    boolean flush() {
+        commitLock.lock();
+        try {
+            return commitPending();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking changes and commits the ones still pending.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            if (stopping) return;
+            stopping = true;
+            full.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitLock.lock();
+        try {
+            if (commitPending() && file != null) {
+                lock.lock();
+                try {
+                    closeQuietly();
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopping) {
+            lock.lock();
+            try {
+                long left = flushNanos;
+                while (!stopping && pending.size() < maxPending && left > 0) left = full.awaitNanos(left);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            flush();
+        }
+    }
+
+    // Caller holds commitLock. Returns false if the batch failed; it is then retried with the next one.
+    private boolean commitPending() {
+        Map<Key, Change> batch;
+        lock.lock();
+        try {
+            if (pending.isEmpty()) return true;
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            rollJournal();
+        } finally {
+            lock.unlock();
+        }
+        long start = System.nanoTime();
+        try {
+            commit(batch);
+            WRITTEN.add(batch.size());
+            if (flushing != null) Files.deleteIfExists(flushing);
+            return true;
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            FAILED.add(batch.size());
+            lock.lock();
+            try {
+                // Newer changes win; the journal still has every record, in .flushing and after it.
+                batch.putAll(pending);
+                pending = batch;
+            } finally {
+                lock.unlock();
+            }
+            return false;
+        } finally {
+            COMMIT_TIME.recordSince(start);
+        }
+    }
+
+    // Caller holds lock. Moves the journal to .flushing, or appends it there if a failed commit left one.
+    private void rollJournal() {
+        if (out == null) return;
+        try {
+            out.close();
+            if (Files.exists(flushing)) {
+                Files.write(flushing, Files.readAllBytes(file), StandardOpenOption.APPEND);
+                Files.delete(file);
+            } else {
+                Files.move(file, flushing, StandardCopyOption.ATOMIC_MOVE);
+            }
+            out = open();
+        } catch (IOException e) {
+            System.out.println("Membership journal " + file + " failed, keeping changes in memory only: " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    private static void commit(Map<Key, Change> changes) throws SQLException {
+        Database.transaction("MembershipJournal.commit", s -> {
+            PreparedStatement room = s.prepare(CREATE_ROOM);
+            PreparedStatement join = s.prepare(JOIN);
+            PreparedStatement leave = s.prepare(LEAVE);
+            try {
+                for (Map.Entry<Key, Change> e : changes.entrySet()) {
+                    Key k = e.getKey();
+                    if (e.getValue().join()) {
+                        room.setString(1, k.room());
+                        room.addBatch();
+                        join.setString(1, k.user());
+                        join.setString(2, k.room());
+                        join.addBatch();
+                    } else {
+                        leave.setString(1, k.user());
+                        leave.setString(2, k.room());
+                        leave.addBatch();
+                    }
+                }
+                room.executeBatch();
+                join.executeBatch();
+                leave.executeBatch();
+                return null;
+            } finally {
+                room.clearBatch();
+                join.clearBatch();
+                leave.clearBatch();
+            }
+        });
+    }
+
+    /* -- Journal records: a join flag, then user and room as modified UTF-8 -- */
+
+    private DataOutputStream open() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+        out = null;
+    }
+
+    private static void write(DataOutputStream out, boolean join, String user, String room) throws IOException {
+        out.writeBoolean(join);
+        out.writeUTF(user);
+        out.writeUTF(room);
+    }
+
+    // Last record per key wins; a record cut short by a crash ends the file.
+    private static int replay(Path path, Map<Key, Change> into) throws IOException {
+        if (!Files.exists(path)) return 0;
+        int n = 0;
+        try (InputStream raw = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw))) {
+            while (true) {
+                boolean join = in.readBoolean();
+                Key key = new Key(in.readUTF(), in.readUTF());
+                into.remove(key);
+                into.put(key, new Change(join, false));
+                n++;
+            }
+        } catch (EOFException ignored) {
+            // end of file, or the record being written when the process died
+        }
+        return n;
+    }
+}
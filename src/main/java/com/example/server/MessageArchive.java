@@ -0,0 +1,58 @@
+package com.example.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+/**
+ * Where retention puts messages instead of deleting them. Rows from SQLite are appended as
+ * JSON lines to one file per day ({@code messages-2024-05-01.jsonl}); log segments are moved
+ * whole under {@code log/<room directory>/}.
+ */
+public final class MessageArchive {
+
+    private static final Gson gson = new Gson();
+
+    private final Path dir;
+
+    public MessageArchive(Path dir) {
+        this.dir = dir;
+    }
+
+    synchronized void write(Iterable<ChatMessage> messages) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve("messages-" + LocalDate.now(ZoneOffset.UTC) + ".jsonl");
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (ChatMessage m : messages) {
+                JsonObject o = new JsonObject();
+                o.addProperty("id", m.id());
+                o.addProperty("room", m.room());
+                o.addProperty("user", m.user());
+                o.addProperty("text", m.text());
+                o.addProperty("timestamp", m.timestamp());
+                out.write(gson.toJson(o));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * The directory segments of a room's log are moved to, created if needed.
+     */
+    Path segmentDirectory(Path roomLog) throws IOException {
+        Path target = Files.createDirectories(dir.resolve("log").resolve(roomLog.getFileName().toString()));
+        Path name = roomLog.resolve(LogMessageStore.NAME_FILE);
+        if (Files.exists(name)) Files.copy(name, target.resolve(LogMessageStore.NAME_FILE), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+}
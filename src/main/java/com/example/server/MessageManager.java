@@ -1,49 +1,207 @@
 package com.example.server;
 
-import java.sql.*;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class MessageManager {
-    private static final String DB_URL = "jdbc:sqlite:chat.db";
+    // Created on first use, so a test can pick another store (or database) before the default one opens.
+    private static volatile MessageStore store;
+    private static final ReentrantLock storeLock = new ReentrantLock();
 
-    public static void saveMessage(String room, String user, String text) {
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement pstmt = conn.prepareStatement("""
-                    INSERT INTO messages(room_name, username, text) VALUES(?,?,?)
-            """);
-            pstmt.setString(1, room);
-            pstmt.setString(2, user);
-            pstmt.setString(3, text);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // Id assignment and append share a lock per room (striped), so a store sees each room's ids in order.
+    private static final ReentrantLock[] roomLocks = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < roomLocks.length; i++) roomLocks[i] = new ReentrantLock();
+    }
+
+    private static final LatencyHistogram SEARCH_TIME = Metrics.histogram("chat_search_us");
+
+    // Last id handed out; -1 until loaded from the store on first save.
+    private static final AtomicLong lastId = new AtomicLong(-1);
+    private static final ReentrantLock idLock = new ReentrantLock();
+
+    /**
+     * Assigns the message its id and hands it to the store; it is durable once
+     * {@link #flush()} returns.
+     */
+    public static ChatMessage saveMessage(String room, String user, String text) {
+        return saveMessage(room, user, text, message -> {});
+    }
+
+    /**
+     * Like {@link #saveMessage(String, String, String)}, then runs {@code then} before the room's
+     * lock is released, so whatever it passes the message on to also gets the room's ids in order.
+     */
+    public static ChatMessage saveMessage(String room, String user, String text, Consumer<ChatMessage> then) {
+        MessageStore s = store();
+        ReentrantLock lock = roomLocks[(room.hashCode() & 0x7fffffff) % roomLocks.length];
+        lock.lock();
+        try {
+            ChatMessage message = new ChatMessage(nextId(), room, user, text, ChatMessage.now());
+            s.append(message);
+            then.accept(message);
+            return message;
+        } finally {
+            lock.unlock();
         }
     }
 
-    public static List<String> getLastMessages(String room, int limit) {
-        List<String> messages = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement pstmt = conn.prepareStatement("""
-                SELECT username, text, timestamp
-                FROM messages
-                WHERE room_name=?
-                ORDER BY timestamp ASC
-                LIMIT ?
-            """);
-            pstmt.setString(1, room);
-            pstmt.setInt(2, limit);
-            ResultSet rs = pstmt.executeQuery();
-
-            while (rs.next()) {
-                String msg = "[" + rs.getString("timestamp") + "] "
-                        + rs.getString("username") + ": "
-                        + rs.getString("text");
-                messages.add(msg);
+    /**
+     * Stores a message another cluster node assigned, keeping its id.
+     */
+    public static void saveReplica(ChatMessage message) {
+        observeId(message.id());
+        store().append(message);
+    }
+
+    // In a cluster, ids end in the assigning node's index so no two nodes hand out the same one,
+    // and the counter follows the largest id seen from any node, so ids keep growing cluster-wide.
+    private static long nextId() {
+        loadLastId();
+        int stride = Cluster.idStride();
+        int node = Cluster.nodeIndex();
+        return lastId.updateAndGet(last -> (last / stride + 1) * stride + node);
+    }
+
+    private static void observeId(long id) {
+        loadLastId();
+        lastId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * The newest id handed out or seen so far; every later message gets a larger one.
+     */
+    public static long lastAssignedId() {
+        loadLastId();
+        return lastId.get();
+    }
+
+    private static void loadLastId() {
+        if (lastId.get() < 0) {
+            idLock.lock();
+            try {
+                if (lastId.get() < 0) lastId.set(store().maxId());
+            } finally {
+                idLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Blocks until all messages saved so far are stored.
+     */
+    public static boolean flush() {
+        return store().flush(10, TimeUnit.SECONDS);
+    }
+
+    public static void shutdown() {
+        MessageStore s = store;
+        if (s != null) s.close();
+    }
+
+    /**
+     * Switches to another store, closing the current one. Meant for startup, tests and benchmarks.
+     */
+    public static void useStore(MessageStore next) {
+        storeLock.lock();
+        try {
+            MessageStore old = store;
+            store = next;
+            lastId.set(-1);
+            if (old != null) old.close();
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    static MessageStore store() {
+        MessageStore s = store;
+        if (s != null) return s;
+        storeLock.lock();
+        try {
+            if (store == null) store = open();
+            return store;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    private static MessageStore open() {
+        if (ServerConfig.MESSAGE_STORE.equals("log")) {
+            try {
+                return new LogMessageStore(LogMessageStore.defaultDirectory(), ServerConfig.LOG_SEGMENT_BYTES, ServerConfig.LOG_SYNC_MS);
+            } catch (IOException e) {
+                System.out.println("Message log unavailable, keeping history in SQLite: " + e.getMessage());
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        return new SqliteMessageStore(ServerConfig.PERSIST_BATCH_SIZE, ServerConfig.PERSIST_MAX_DELAY_MS, ServerConfig.PERSIST_QUEUE_CAPACITY);
+    }
 
+    /**
+     * The newest {@code limit} messages of a room as backlog lines, oldest first.
+     */
+    public static List<String> getLastMessages(String room, int limit) {
+        List<String> messages = new ArrayList<>();
+        for (ChatMessage m : getRecentMessages(room, limit)) messages.add(m.format());
         return messages;
     }
+
+    /**
+     * The newest {@code limit} messages of a room, oldest first.
+     */
+    public static List<ChatMessage> getRecentMessages(String room, int limit) {
+        return getHistory(room, Long.MAX_VALUE, limit).messages();
+    }
+
+    /**
+     * One page of history: messages with {@code id < beforeId}, oldest first.
+     */
+    public record Page(List<ChatMessage> messages, boolean more) {
+        // Pass as beforeId of the next (older) page.
+        public long oldestId() {
+            return messages.isEmpty() ? 0 : messages.get(0).id();
+        }
+
+        // From rows read newest first, one more than limit if there are older ones.
+        static Page fromNewestFirst(List<ChatMessage> newestFirst, int limit) {
+            boolean more = newestFirst.size() > limit;
+            if (more) newestFirst.remove(newestFirst.size() - 1);
+            Collections.reverse(newestFirst);
+            return new Page(newestFirst, more);
+        }
+    }
+
+    /**
+     * Messages with {@code afterId < id <= upToId}, oldest first; only the newest
+     * {@code limit} if there are more, with {@code more} set.
+     */
+    public static Page getSince(String room, long afterId, long upToId, int limit) {
+        return store().since(room, afterId, upToId, limit);
+    }
+
+    /**
+     * Pages backward through a room by message id; a page costs the same however much
+     * history the room has.
+     */
+    public static Page getHistory(String room, long beforeId, int limit) {
+        return store().history(room, beforeId, limit);
+    }
+
+    /**
+     * Messages in {@code rooms} containing every word of {@code query}, best match first,
+     * {@code limit} (at most {@link RoomHistory#MAX_PAGE}) at a time from {@code offset}.
+     */
+    public static Page search(Collection<String> rooms, String query, int offset, int limit) {
+        long start = System.nanoTime();
+        try {
+            return store().search(rooms, query, Math.max(0, offset), Math.max(1, Math.min(limit, RoomHistory.MAX_PAGE)));
+        } finally {
+            SEARCH_TIME.recordSince(start);
+        }
+    }
 }
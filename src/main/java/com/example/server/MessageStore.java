@@ -0,0 +1,74 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where room history is kept. {@link MessageManager} assigns ids and hands messages over
+ * in id order per room; stores only need to keep them and page through them by id.
+ *
+ * @see SqliteMessageStore
+ * @see LogMessageStore
+ */
+public interface MessageStore {
+
+    /**
+     * Stores a message, possibly after returning; it is durable once {@link #flush} returns.
+     * A message whose id is already stored is ignored.
+     */
+    void append(ChatMessage message);
+
+    /**
+     * Waits until every message appended before this call is stored.
+     */
+    boolean flush(long timeout, TimeUnit unit);
+
+    /**
+     * Messages with {@code id < beforeId}, oldest first; only the newest {@code limit}, with
+     * {@code more} set if there are older ones.
+     */
+    MessageManager.Page history(String room, long beforeId, int limit);
+
+    /**
+     * Messages with {@code afterId < id <= upToId}, oldest first; only the newest {@code limit}
+     * if there are more, with {@code more} set.
+     */
+    MessageManager.Page since(String room, long afterId, long upToId, int limit);
+
+    /**
+     * Messages in any of {@code rooms} that contain every word of {@code query}, best match first.
+     * Skips the first {@code offset} matches and returns at most {@code limit}, with {@code more}
+     * set if there are others.
+     */
+    MessageManager.Page search(Collection<String> rooms, String query, int offset, int limit);
+
+    /**
+     * The largest id ever stored in any room, including ones retention has removed since, or 0.
+     */
+    long maxId();
+
+    /**
+     * Rooms that have stored messages.
+     */
+    List<String> rooms();
+
+    /**
+     * Removes a batch of a room's oldest messages: those older than {@code cutoff} (a timestamp,
+     * or null for no age limit) or not among the newest {@code keep} (0 for no count limit),
+     * stopping at the first one that is neither. Removes about {@code limit} at most; stores that
+     * drop whole files may go over it. Messages go to {@code archive} first unless it is null.
+     */
+    Trimmed trim(String room, String cutoff, int keep, int limit, MessageArchive archive) throws IOException;
+
+    /**
+     * What one {@link #trim} removed: how many messages, and the newest id among them (0 if none).
+     */
+    record Trimmed(int messages, long throughId) {}
+
+    /**
+     * Stores what is still pending and releases files and threads.
+     */
+    void close();
+}
@@ -0,0 +1,233 @@
+package com.example.server;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind stage for chat messages. Senders only enqueue; one writer thread
+ * inserts whatever has accumulated in a single {@link Database#transaction}, so commits (and fsyncs)
+ * are shared by up to {@code maxBatch} messages or {@code maxDelay} of traffic.
+ */
+final class MessageWriter implements Runnable {
+
+    // OR IGNORE: a copy relayed by another node may already be here.
+    static final String INSERT = "INSERT OR IGNORE INTO messages(id, room_name, username, text, timestamp) VALUES(?,?,?,?,?)";
+    static final String INDEX = "INSERT INTO messages_fts(rowid, text) VALUES(?,?)";
+
+    // A null message marks a flush barrier: its latch opens once everything queued before it is committed.
+    private record Pending(ChatMessage message, CountDownLatch committed) {}
+
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread thread;
+    private volatile boolean stopping;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    MessageWriter(int maxBatch, long maxDelayMillis, int queueCapacity) {
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.thread = new Thread(this, "chat-message-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "chat-message-writer-shutdown"));
+    }
+
+    /**
+     * Queues a message for the next batch. Returns false once the writer is shutting down.
+     * Blocks while the queue is full, which pushes back on senders if SQLite falls behind.
+     */
+    boolean submit(ChatMessage message) {
+        if (stopping || !thread.isAlive()) return false;
+        try {
+            Pending p = new Pending(message, null);
+            queue.put(p);
+            // Landed after the last drain: take it back, unless shutdown's drain already has it.
+            if (stopping && !thread.isAlive() && queue.remove(p)) return false;
+            enqueued.increment();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits until every message submitted before this call has been committed.
+     */
+    boolean flush(long timeout, TimeUnit unit) {
+        if (!thread.isAlive()) return queue.isEmpty();
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            queue.put(new Pending(null, latch));
+            return latch.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops taking new messages and commits everything already queued, including what was
+     * submitted while the writer made its last pass.
+     */
+    void shutdown() {
+        if (stopping) return;
+        stopping = true;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            System.out.println("Message writer stopped with " + queue.size() + " messages unsaved");
+            return;
+        }
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) commit(rest);
+    }
+
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        try {
+            while (true) {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (stopping) break;
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Pending next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        long start = System.nanoTime();
+        int rows = 0;
+        for (Pending p : batch) {
+            if (p.message() != null) rows++;
+        }
+        if (rows > 0) {
+            try {
+                Database.transaction("MessageWriter.commit", s -> {
+                    PreparedStatement insert = s.prepare(INSERT);
+                    for (Pending p : batch) {
+                        if (p.message() != null) {
+                            bind(insert, p.message());
+                            insert.addBatch();
+                        }
+                    }
+                    int[] inserted;
+                    try {
+                        inserted = insert.executeBatch();
+                    } finally {
+                        insert.clearBatch();
+                    }
+                    // Only rows that went in; an ignored copy is already indexed.
+                    PreparedStatement index = s.prepare(INDEX);
+                    int i = 0;
+                    for (Pending p : batch) {
+                        if (p.message() != null && inserted[i++] > 0) {
+                            index.setLong(1, p.message().id());
+                            index.setString(2, p.message().text());
+                            index.addBatch();
+                        }
+                    }
+                    try {
+                        return index.executeBatch();
+                    } finally {
+                        index.clearBatch();
+                    }
+                });
+                written.add(rows);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                failed.add(rows);
+            }
+            long elapsed = System.nanoTime() - start;
+            commits.increment();
+            commitNanos.add(elapsed);
+            maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+        }
+        for (Pending p : batch) {
+            if (p.committed() != null) p.committed().countDown();
+        }
+    }
+
+    static void bind(PreparedStatement insert, ChatMessage m) throws SQLException {
+        insert.setLong(1, m.id());
+        insert.setString(2, m.room());
+        insert.setString(3, m.user());
+        insert.setString(4, m.text());
+        insert.setString(5, m.timestamp());
+    }
+
+    /* -- Counters -- */
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    long getWritten() {
+        return written.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    long getCommits() {
+        return commits.sum();
+    }
+
+    long getAverageCommitMicros() {
+        long n = commits.sum();
+        return n == 0 ? 0 : commitNanos.sum() / n / 1000;
+    }
+
+    long getMaxCommitMicros() {
+        return maxCommitNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "queue=" + getQueueDepth() + " enqueued=" + getEnqueued() + " written=" + getWritten()
+                + " failed=" + getFailed() + " commits=" + getCommits()
+                + " avgCommitUs=" + getAverageCommitMicros() + " maxCommitUs=" + getMaxCommitMicros();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics: striped counters, latency histograms and sampled gauges, keyed
+ * by name. Names may carry labels, e.g. {@code chat_db_call_us{op="UserManager.login"}}.
+ * Look a metric up once and keep the reference on hot paths.
+ *
+ * {@link #render()} gives a plain-text snapshot in the Prometheus exposition style, used
+ * by the admin {@code /stats} command and {@link StatsEndpoint}.
+ */
+public final class Metrics {
+
+    /**
+     * A striped counter. Counters named {@code *_total} also report a per-second rate.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+        private long lastSample;
+        private volatile long perSecond;
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long sum() {
+            return value.sum();
+        }
+
+        public long perSecond() {
+            return perSecond;
+        }
+
+        // Once a second, from the sampler thread.
+        void sample() {
+            long now = value.sum();
+            perSecond = now - lastSample;
+            lastSample = now;
+        }
+    }
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-metrics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        sampler.scheduleAtFixedRate(() -> counters.values().forEach(Counter::sample), 1, 1, TimeUnit.SECONDS);
+    }
+
+    private Metrics() {}
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value read at render time. A later registration under the same name replaces it.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        new TreeMap<>(counters).forEach((name, c) -> {
+            line(sb, name, "", c.sum());
+            if (base(name).endsWith("_total")) {
+                line(sb, base(name).replaceFirst("_total$", "_per_second") + labels(name), "", c.perSecond());
+            }
+        });
+        new TreeMap<>(gauges).forEach((name, g) -> {
+            long v;
+            try {
+                v = g.getAsLong();
+            } catch (RuntimeException e) {
+                return;
+            }
+            line(sb, name, "", v);
+        });
+        new TreeMap<>(histograms).forEach((name, h) -> {
+            for (String q : new String[]{"0.5", "0.99", "0.999"}) {
+                line(sb, name, "quantile=\"" + q + "\"", h.percentile(Double.parseDouble(q)));
+            }
+            line(sb, base(name) + "_max" + labels(name), "", h.maxMicros());
+            line(sb, base(name) + "_sum" + labels(name), "", h.sumMicros());
+            line(sb, base(name) + "_count" + labels(name), "", h.count());
+        });
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, String extraLabel, long value) {
+        if (extraLabel.isEmpty()) {
+            sb.append(name);
+        } else {
+            String labels = labels(name);
+            sb.append(base(name)).append('{');
+            if (!labels.isEmpty()) sb.append(labels, 1, labels.length() - 1).append(',');
+            sb.append(extraLabel).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String base(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    private static String labels(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? "" : name.substring(brace);
+    }
+}
@@ -0,0 +1,386 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * One non-blocking TCP connection: newline framing on the way in (or {@link BinaryProtocol}
+ * frames, if the first line asks for them), a bounded write queue on the way out, and
+ * optionally a DEFLATE stream underneath both ({@link StreamDeflater}). Socket I/O happens
+ * only on the owning event loop; handler callbacks are serialized per connection on the
+ * worker pool.
+ */
+final class NioConnection implements ClientTransport {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_TASKS_PER_RUN = 64;
+    // Parsed requests waiting on the worker pool: past the first, the connection stops being read
+    // until the workers are down to the second, as a blocking reader would stop in readLine.
+    private static final int MAX_PENDING_TASKS = 256;
+    private static final int RESUME_PENDING_TASKS = 64;
+
+    private static final Metrics.Counter READ_PAUSES = Metrics.counter("chat_nio_read_paused_total");
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final Executor workers;
+    private final ClientHandler handler;
+    private SelectionKey key;
+
+    // Event loop only.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private int scanned;
+    // readBuffer still holds whole requests, left there because the handler was behind.
+    private boolean backlogged;
+    private boolean firstLine = true;
+    private boolean binary;
+    // Compressed mode: raw bytes land here and are inflated into readBuffer.
+    private Inflater inflater;
+    private ByteBuffer compressed;
+    private StreamDeflater deflater;
+
+    private volatile OutboundQueue<ByteBuffer> writeQueue = new OutboundQueue<>();
+    // Set by startCompression until the event loop has written them: the queue from before, and the reply ending it.
+    private volatile OutboundQueue<ByteBuffer> plainQueue;
+    private volatile ByteBuffer plainLast;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Event loop only: buffers taken off the queue for one gathering write.
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final List<ByteBuffer> drained = new ArrayList<>(MAX_GATHER);
+    private int gatherOffset;
+    private int gatherCount;
+
+    private final Queue<Runnable> handlerTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean handlerScheduled = new AtomicBoolean();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    // Set by the event loop when it stops reading; whoever clears it has reading resumed.
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(SocketChannel channel, NioServer.EventLoop loop, Executor workers) {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.handler = new ClientHandler(this);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    void opened() {
+        dispatch(handler::onConnect);
+    }
+
+    /* -- Inbound (event loop) -- */
+
+    void read() {
+        int n;
+        try {
+            n = channel.read(inflater == null ? readBuffer : compressed);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        drainInput();
+    }
+
+    // Hands out what was read (inflating as far as readBuffer has room, and repeating), unless
+    // the handler has too many requests waiting.
+    private void drainInput() {
+        while (!closed.get()) {
+            boolean plain = inflater == null;
+            int produced = 0;
+            if (!plain) {
+                try {
+                    produced = inflate();
+                } catch (DataFormatException e) {
+                    System.out.println("Closing " + handler.getName() + ": bad deflate stream");
+                    close();
+                    return;
+                }
+            }
+            process();
+            if (throttle()) return;
+            if (backlogged) continue;
+            // Still plain, unless that just read a "deflate" line and moved the rest into compressed.
+            if (plain ? inflater == null : produced == 0) return;
+        }
+    }
+
+    // Stops reading if too many requests wait on the handler. Returns true if reading is paused.
+    private boolean throttle() {
+        if (readPaused.get()) return true;
+        if (pendingTasks.get() < MAX_PENDING_TASKS || !key.isValid()) return false;
+        readPaused.set(true);
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        READ_PAUSES.increment();
+        // The workers may have caught up before the flag was set, and then won't resume it.
+        if (pendingTasks.get() <= RESUME_PENDING_TASKS && readPaused.compareAndSet(true, false)) {
+            resumeReading();
+            return false;
+        }
+        return true;
+    }
+
+    // Event loop. Also hands out what was already read, which no new read event would trigger.
+    private void resumeReading() {
+        if (closed.get() || !key.isValid()) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        drainInput();
+    }
+
+    private int inflate() throws DataFormatException {
+        compressed.flip();
+        int before = readBuffer.position();
+        inflater.setInput(compressed);
+        while (readBuffer.hasRemaining() && inflater.inflate(readBuffer) > 0) {}
+        compressed.compact();
+        return readBuffer.position() - before;
+    }
+
+    private void process() {
+        byte[] buf = readBuffer.array();
+        int end = readBuffer.position();
+        backlogged = false;
+        int start = binary ? readFrames(buf, 0, end) : readLines(buf, end);
+        if (start < 0) {
+            System.out.println("Closing " + handler.getName() + ": bad frame");
+            close();
+            return;
+        }
+
+        if (start > 0) {
+            readBuffer.flip().position(start);
+            readBuffer.compact();
+        }
+        scanned = binary || backlogged ? 0 : readBuffer.position();
+
+        if (!backlogged && !readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                System.out.println("Closing " + handler.getName() + ": line too long");
+                close();
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    // Returns where the unconsumed bytes start, or -1 on a malformed frame.
+    private int readLines(byte[] buf, int end) {
+        int start = 0;
+        for (int i = scanned; i < end; i++) {
+            if (buf[i] != '\n') continue;
+            int lineEnd = (i > start && buf[i - 1] == '\r') ? i - 1 : i;
+            String line = new String(buf, start, lineEnd - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            // The switches happen here, not in the handler, so the bytes after them are never read as lines.
+            if (firstLine && inflater == null && ServerConfig.COMPRESS_TCP && line.equals(StreamDeflater.NEGOTIATE)) {
+                // Still the first line: binary may be asked for inside the compressed stream.
+                inflater = new Inflater(true);
+                compressed = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, end - start));
+                compressed.put(buf, start, end - start);
+                dispatch(handler::startCompression);
+                return end;
+            }
+            if (firstLine && line.equals(BinaryProtocol.NEGOTIATE)) {
+                firstLine = false;
+                binary = true;
+                dispatch(handler::startBinary);
+                return readFrames(buf, start, end);
+            }
+            firstLine = false;
+            dispatch(() -> {
+                if (!closed.get() && !handler.handleLine(line)) close();
+            });
+            if (pendingTasks.get() >= MAX_PENDING_TASKS) {
+                backlogged = true;
+                break;
+            }
+        }
+        return start;
+    }
+
+    private int readFrames(byte[] buf, int start, int end) {
+        while (end - start >= 4) {
+            int length = ByteBuffer.wrap(buf, start, 4).getInt();
+            try {
+                BinaryProtocol.checkLength(length);
+            } catch (IOException e) {
+                return -1;
+            }
+            if (end - start - 4 < length) break;
+            BinaryProtocol.Frame frame = BinaryProtocol.decode(buf, start);
+            dispatch(() -> {
+                if (!closed.get() && !handler.handleFrame(frame)) close();
+            });
+            start += 4 + length;
+            if (pendingTasks.get() >= MAX_PENDING_TASKS) {
+                backlogged = true;
+                break;
+            }
+        }
+        return start;
+    }
+
+    /* -- Outbound (any thread, written out by the event loop) -- */
+
+    @Override
+    public void send(EncodedLine line) {
+        if (closed.get()) return;
+        if (!writeQueue.offer(line.buffer())) {
+            System.out.println("Disconnecting slow consumer " + handler.getName());
+            close();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    /**
+     * Writes as much as the socket takes, many queued lines per gathering write.
+     */
+    void flush() {
+        if (!key.isValid()) return;
+        try {
+            while (true) {
+                if (gatherOffset == gatherCount && !refillGather()) {
+                    key.interestOps(readPaused.get() ? 0 : SelectionKey.OP_READ);
+                    flushScheduled.set(false);
+                    // A sender may have queued between the drain and the reset.
+                    if ((writeQueue.isEmpty() && plainQueue == null) || !flushScheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+                channel.write(gather, gatherOffset, gatherCount - gatherOffset);
+                while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining()) {
+                    gather[gatherOffset++] = null;
+                }
+                if (gatherOffset < gatherCount) {
+                    // Socket buffer is full: wait for OP_WRITE, senders keep queueing meanwhile.
+                    key.interestOps((readPaused.get() ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private boolean refillGather() {
+        gatherOffset = 0;
+        gatherCount = 0;
+        // The queue before the switch: startCompression sets plainQueue first.
+        OutboundQueue<ByteBuffer> queue = writeQueue;
+        OutboundQueue<ByteBuffer> plain = plainQueue;
+        if (plain != null) {
+            plain.drainTo(drained, MAX_GATHER - 1);
+            for (ByteBuffer b : drained) gather[gatherCount++] = b;
+            drained.clear();
+            if (plain.isEmpty()) {
+                gather[gatherCount++] = plainLast;
+                deflater = new StreamDeflater();
+                plainQueue = null;
+            }
+            return true;
+        }
+        queue.drainTo(drained, MAX_GATHER);
+        if (deflater == null) {
+            for (ByteBuffer b : drained) gather[gatherCount++] = b;
+            drained.clear();
+        }
+        // One compressed buffer for the whole batch; it is reused by the next refill, which
+        // only happens once this one is written.
+        if (deflater != null && !drained.isEmpty()) gather[gatherCount++] = deflater.compress(drained);
+        drained.clear();
+        return gatherCount > 0;
+    }
+
+    // Not a marker in the queue, where a full queue could drop it: the lines queued so far stay
+    // behind in their own queue, and later ones go to a new one.
+    @Override
+    public boolean startCompression(EncodedLine reply) {
+        if (closed.get()) return false;
+        plainLast = reply.buffer();
+        plainQueue = writeQueue;
+        writeQueue = new OutboundQueue<>();
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (loop.inLoop()) closeChannel();
+        else loop.execute(this::closeChannel);
+        dispatch(handler::onDisconnect);
+    }
+
+    private void closeChannel() {
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        writeQueue.clear();
+        OutboundQueue<ByteBuffer> plain = plainQueue;
+        if (plain != null) plain.clear();
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+
+    /* -- Handler callbacks, one at a time per connection -- */
+
+    @Override
+    public void execute(Runnable task) {
+        dispatch(() -> {
+            if (!closed.get()) task.run();
+        });
+    }
+
+    private void dispatch(Runnable task) {
+        pendingTasks.incrementAndGet();
+        handlerTasks.add(task);
+        if (handlerScheduled.compareAndSet(false, true)) workers.execute(this::runHandlerTasks);
+    }
+
+    private void runHandlerTasks() {
+        for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+            Runnable task = handlerTasks.poll();
+            if (task == null) break;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (pendingTasks.decrementAndGet() <= RESUME_PENDING_TASKS && readPaused.compareAndSet(true, false)) {
+                loop.execute(this::resumeReading);
+            }
+        }
+        handlerScheduled.set(false);
+        if (!handlerTasks.isEmpty() && handlerScheduled.compareAndSet(false, true)) {
+            workers.execute(this::runHandlerTasks);
+        }
+    }
+}
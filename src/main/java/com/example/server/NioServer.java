@@ -0,0 +1,153 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based TCP front end. The accept loop hands sockets round-robin to a few
+ * event loops that do all socket I/O; complete lines are run through each
+ * connection's {@link ClientHandler} on a small shared worker pool, in order.
+ */
+public class NioServer {
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+
+    public NioServer(int port, int eventLoops, int workerThreads) {
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "chat-worker-" + workerIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Binds the port and accepts connections until the server socket fails.
+     */
+    public void run() throws IOException {
+        run(() -> {});
+    }
+
+    /**
+     * Like {@link #run()}, calling {@code onBound} once the port accepts connections.
+     */
+    public void run(Runnable onBound) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "chat-nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            onBound.run();
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next++ % loops.length];
+                loop.register(new NioConnection(channel, loop, workers));
+            }
+        } finally {
+            for (EventLoop loop : loops) loop.shutdown();
+            workers.shutdown();
+        }
+    }
+
+    static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(NioConnection conn) {
+            execute(() -> {
+                try {
+                    conn.attach(conn.channel().register(selector, SelectionKey.OP_READ, conn));
+                    conn.opened();
+                } catch (IOException e) {
+                    conn.close();
+                }
+            });
+        }
+
+        /**
+         * Runs a task on the loop thread. Safe to call from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (running) {
+                    selector.select();
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isWritable()) conn.flush();
+                        if (key.isValid() && key.isReadable()) conn.read();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.out.println("Event loop stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) ((NioConnection) key.attachment()).close();
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.server;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded per-client queue of outbound payloads. Any thread may offer; a single
+ * writer drains it in batches so many lines go out in one flush.
+ */
+final class OutboundQueue<T> {
+
+    enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT;
+
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // Across every client: lines waiting to be written, and queues that overflowed.
+    private static final Metrics.Counter QUEUED = Metrics.counter("chat_outbound_queued");
+    private static final Metrics.Counter OVERFLOWS = Metrics.counter("chat_outbound_overflows_total");
+
+    private final Queue<T> items = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    OutboundQueue() {
+        this(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_OVERFLOW);
+    }
+
+    /**
+     * Queues an item. Returns false if the queue is full and the policy says the
+     * client must be disconnected.
+     */
+    boolean offer(T item) {
+        if (size.incrementAndGet() > capacity) {
+            OVERFLOWS.increment();
+            if (policy == OverflowPolicy.DISCONNECT) {
+                size.decrementAndGet();
+                return false;
+            }
+            if (items.poll() != null) {
+                size.decrementAndGet();
+                QUEUED.add(-1);
+            }
+        }
+        items.add(item);
+        QUEUED.increment();
+        return true;
+    }
+
+    /**
+     * Moves up to {@code max} items into {@code batch}, oldest first.
+     */
+    int drainTo(List<T> batch, int max) {
+        int n = 0;
+        T item;
+        while (n < max && (item = items.poll()) != null) {
+            batch.add(item);
+            n++;
+        }
+        size.addAndGet(-n);
+        QUEUED.add(-n);
+        return n;
+    }
+
+    T poll() {
+        T item = items.poll();
+        if (item != null) {
+            size.decrementAndGet();
+            QUEUED.add(-1);
+        }
+        return item;
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    int size() {
+        return Math.max(0, size.get());
+    }
+
+    void clear() {
+        while (poll() != null) {
+            // drain
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send limits for chat lines, the same for both transports: per connection, per user (all
+ * of their connections together) and per room (all senders together, on this node). Each
+ * is a {@link TokenBucket}; a limit set to 0 is off. A line over any limit is not sent and
+ * the sender is told so.
+ */
+final class RateLimits {
+
+    private static final Metrics.Counter THROTTLED_CONNECTION = Metrics.counter("chat_throttled_total{limit=\"connection\"}");
+    private static final Metrics.Counter THROTTLED_USER = Metrics.counter("chat_throttled_total{limit=\"user\"}");
+    private static final Metrics.Counter THROTTLED_ROOM = Metrics.counter("chat_throttled_total{limit=\"room\"}");
+
+    // Idle buckets are dropped after this many new ones, so departed users and rooms don't pile up.
+    private static final int SWEEP_EVERY = 4096;
+
+    private static final Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private static final Map<String, TokenBucket> rooms = new ConcurrentHashMap<>();
+    private static final AtomicLong createdSinceSweep = new AtomicLong();
+
+    static {
+        Metrics.gauge("chat_rate_buckets", () -> users.size() + rooms.size());
+    }
+
+    private RateLimits() {}
+
+    /**
+     * A bucket for a new connection to hold, or null if that limit is off.
+     */
+    static TokenBucket connectionBucket() {
+        int rate = ServerConfig.RATE_CONNECTION;
+        return rate > 0 ? new TokenBucket(rate, ServerConfig.RATE_CONNECTION_BURST) : null;
+    }
+
+    /**
+     * Takes one token from each bucket that applies. Returns null if the line may be sent,
+     * otherwise the notice for the sender; then no bucket is charged. {@code room} is null
+     * for private messages.
+     */
+    static String acquire(TokenBucket connection, String user, String room) {
+        long now = System.nanoTime();
+        long wait;
+        if (connection != null && (wait = connection.tryTake(now)) > 0) {
+            THROTTLED_CONNECTION.increment();
+            return notice("this connection", wait);
+        }
+        TokenBucket userBucket = ServerConfig.RATE_USER > 0
+                ? bucket(users, user, ServerConfig.RATE_USER, ServerConfig.RATE_USER_BURST, now) : null;
+        if (userBucket != null && (wait = userBucket.tryTake(now)) > 0) {
+            if (connection != null) connection.refund();
+            THROTTLED_USER.increment();
+            return notice("your account", wait);
+        }
+        TokenBucket roomBucket = room != null && ServerConfig.RATE_ROOM > 0
+                ? bucket(rooms, room, ServerConfig.RATE_ROOM, ServerConfig.RATE_ROOM_BURST, now) : null;
+        if (roomBucket != null && (wait = roomBucket.tryTake(now)) > 0) {
+            if (connection != null) connection.refund();
+            if (userBucket != null) userBucket.refund();
+            THROTTLED_ROOM.increment();
+            return notice("room " + room, wait);
+        }
+        return null;
+    }
+
+    private static String notice(String scope, long waitNanos) {
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        return "Slow down: message not sent, too many from " + scope + ". Try again in " + millis + " ms.";
+    }
+
+    private static TokenBucket bucket(Map<String, TokenBucket> buckets, String key, int rate, int burst, long now) {
+        TokenBucket b = buckets.get(key);
+        if (b != null) return b;
+        b = buckets.computeIfAbsent(key, k -> new TokenBucket(rate, burst));
+        if (createdSinceSweep.incrementAndGet() >= SWEEP_EVERY) {
+            createdSinceSweep.set(0);
+            users.values().removeIf(bucket -> bucket.idle(now));
+            rooms.values().removeIf(bucket -> bucket.idle(now));
+        }
+        return b;
+    }
+}
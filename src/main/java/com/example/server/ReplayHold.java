@@ -0,0 +1,41 @@
+package com.example.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Room lines that reach a resuming session while its missed messages are replayed. The session
+ * is attached to its room before the backlog is read, so no line falls between the two; what is
+ * delivered in the meantime waits here and follows the replay, less what the replay already had.
+ */
+final class ReplayHold<T> {
+
+    private record Held<T>(long id, T line) {}
+
+    private final List<Held<T>> held = new ArrayList<>();
+    private boolean released;
+
+    /**
+     * Holds a line with its message id ({@code 0} for notices). Returns false once released;
+     * the caller then sends it itself.
+     */
+    synchronized boolean hold(long id, T line) {
+        if (released) return false;
+        held.add(new Held<>(id, line));
+        return true;
+    }
+
+    /**
+     * Sends the held lines in arrival order, skipping the ids in {@code replayed}. A line
+     * delivered while this runs waits for it, then goes out after.
+     */
+    synchronized void release(Set<Long> replayed, Consumer<T> send) {
+        for (Held<T> h : held) {
+            if (h.id() == 0 || !replayed.contains(h.id())) send.accept(h.line());
+        }
+        held.clear();
+        released = true;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A room's membership. Members with a live TCP session are held by handler, so a
+ * broadcast walks a plain array instead of looking each member up; the array is
+ * rebuilt (copy-on-write) whenever a session comes or goes.
+ *
+ * Other members are kept by name only: users restored from the database who are
+ * not connected, and WebSocket users, whom the bridge delivers to itself.
+ *
+ * Changes happen inside {@code ChatServer}'s per-room compute, so there is one
+ * writer at a time; reads need no lock.
+ */
+final class Room {
+
+    private static final ClientHandler[] NONE = new ClientHandler[0];
+
+    private final String name;
+    private final Map<String, ClientHandler> live = new ConcurrentHashMap<>();
+    private final Set<String> detached = ConcurrentHashMap.newKeySet();
+    private volatile ClientHandler[] sessions = NONE;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Adds a member, live if {@code handler} is not null.
+     */
+    void add(String username, ClientHandler handler) {
+        if (handler == null) {
+            if (!live.containsKey(username)) detached.add(username);
+            return;
+        }
+        detached.remove(username);
+        live.put(username, handler);
+        publish();
+    }
+
+    void remove(String username) {
+        detached.remove(username);
+        if (live.remove(username) != null) publish();
+    }
+
+    /**
+     * A member's session came online; does nothing for users who are not members.
+     */
+    void attach(String username, ClientHandler handler) {
+        if (detached.remove(username) || live.containsKey(username)) {
+            live.put(username, handler);
+            publish();
+        }
+    }
+
+    /**
+     * A member's session went away; they stay a member.
+     */
+    void detach(String username, ClientHandler handler) {
+        if (live.remove(username, handler)) {
+            detached.add(username);
+            publish();
+        }
+    }
+
+    /**
+     * Connected TCP members, for fan-out. Don't modify the array.
+     */
+    ClientHandler[] sessions() {
+        return sessions;
+    }
+
+    Set<String> members() {
+        Set<String> all = new TreeSet<>(detached);
+        all.addAll(live.keySet());
+        return all;
+    }
+
+    boolean isEmpty() {
+        return live.isEmpty() && detached.isEmpty();
+    }
+
+    private void publish() {
+        sessions = live.values().toArray(NONE);
+    }
+}
@@ -2,4 +2,19 @@ package com.example.server;
 
 public interface RoomBroadcastListener {
     void onRoomMessage(String roomName, String message, String sender);
+
+    /**
+     * Same, with the stored message id ({@code 0} for join/leave notices, which are not stored).
+     */
+    default void onRoomMessage(String roomName, String message, String sender, long id) {
+        onRoomMessage(roomName, message, sender);
+    }
+
+    /**
+     * A resume handed {@code username} to another session; close any session still held for them.
+     * Returns the room that session was in, or null.
+     */
+    default String onTakeOver(String username) {
+        return null;
+    }
 }
@@ -0,0 +1,285 @@
+package com.example.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recent messages per room, kept in memory so a join doesn't need a database query.
+ *
+ * Each room holds a bounded ring of its newest messages. Rings fill as messages are
+ * broadcast and are seeded from the database the first time a room's backlog is read.
+ * When all rings together exceed the memory cap, the least recently used rooms are
+ * dropped; they are seeded again on their next read.
+ */
+public final class RoomHistory {
+
+    private static final Map<String, Ring> rooms = new ConcurrentHashMap<>();
+    private static final AtomicLong totalBytes = new AtomicLong();
+    private static final ReentrantLock evictLock = new ReentrantLock();
+
+    public static final int MAX_PAGE = 100;
+
+    private static final int CAPACITY = ServerConfig.HISTORY_PER_ROOM;
+    private static final long MAX_BYTES = ServerConfig.HISTORY_MAX_BYTES;
+
+    private static final Metrics.Counter REPLAY_FROM_DB = Metrics.counter("chat_resume_replay_db_total");
+
+    private RoomHistory() {}
+
+    private static final class Ring {
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<ChatMessage> messages = new ArrayDeque<>();
+        volatile boolean seeded;
+        volatile long lastAccess = System.nanoTime();
+        boolean evicted;
+        long bytes;
+        // The seed in progress, if any; readers that find one wait for it instead of querying too.
+        CompletableFuture<Void> seeding;
+
+        // Caller holds the lock.
+        void add(ChatMessage m) {
+            messages.addLast(m);
+            resize(m.estimatedBytes());
+            while (messages.size() > CAPACITY) resize(-messages.removeFirst().estimatedBytes());
+        }
+
+        void resize(long delta) {
+            bytes += delta;
+            totalBytes.addAndGet(delta);
+        }
+
+        boolean contains(long id) {
+            Iterator<ChatMessage> it = messages.descendingIterator();
+            while (it.hasNext()) {
+                long other = it.next().id();
+                if (other == id) return true;
+                if (other < id) return false;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records a message that was just broadcast.
+     */
+    public static void append(ChatMessage m) {
+        while (true) {
+            Ring ring = rooms.computeIfAbsent(m.room(), r -> new Ring());
+            ring.lock.lock();
+            try {
+                if (ring.evicted) continue;
+                // A seed that ran after this message was committed may already hold it.
+                if (ring.seeded && ring.contains(m.id())) return;
+                ring.add(m);
+            } finally {
+                ring.lock.unlock();
+            }
+            ring.lastAccess = System.nanoTime();
+            break;
+        }
+        if (totalBytes.get() > MAX_BYTES) evict();
+    }
+
+    /**
+     * The newest {@code limit} messages of a room, oldest first.
+     */
+    public static List<ChatMessage> recent(String room, int limit) {
+        while (true) {
+            Ring ring = rooms.computeIfAbsent(room, r -> new Ring());
+            ring.lastAccess = System.nanoTime();
+            if (!ring.seeded) seed(ring, room);
+
+            ring.lock.lock();
+            try {
+                if (ring.evicted) continue;
+                int skip = Math.max(0, ring.messages.size() - limit);
+                List<ChatMessage> result = new ArrayList<>(ring.messages.size() - skip);
+                for (ChatMessage m : ring.messages) {
+                    if (skip-- > 0) continue;
+                    result.add(m);
+                }
+                return result;
+            } finally {
+                ring.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One page of a room's history, for /history and the WebSocket history request.
+     * The newest page comes from memory; older pages go to the database by id.
+     */
+    public static MessageManager.Page page(String room, long beforeId, int limit) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE));
+        if (beforeId == Long.MAX_VALUE && limit < CAPACITY) {
+            List<ChatMessage> newest = recent(room, limit + 1);
+            boolean more = newest.size() > limit;
+            return new MessageManager.Page(more ? newest.subList(1, newest.size()) : newest, more);
+        }
+        if (beforeId == Long.MAX_VALUE) MessageManager.flush();
+        return MessageManager.getHistory(room, beforeId, limit);
+    }
+
+    /**
+     * What a resuming client missed: messages with {@code afterId < id <= upToId}, oldest
+     * first, at most {@code limit} of the newest. Comes from memory when the ring reaches
+     * back to {@code afterId}, which covers short disconnects; otherwise from the database.
+     */
+    public static MessageManager.Page since(String room, long afterId, long upToId, int limit) {
+        if (afterId >= upToId) return new MessageManager.Page(List.of(), false);
+        List<ChatMessage> cached = recent(room, CAPACITY);
+        // Ids are global, so a ring starting at or before afterId + 1 has every later message of the room.
+        boolean covered = cached.size() < CAPACITY || cached.get(0).id() <= afterId + 1;
+        if (!covered) {
+            REPLAY_FROM_DB.increment();
+            MessageManager.flush();
+            return MessageManager.getSince(room, afterId, upToId, limit);
+        }
+        List<ChatMessage> missed = new ArrayList<>();
+        for (ChatMessage m : cached) {
+            if (m.id() > afterId && m.id() <= upToId) missed.add(m);
+        }
+        boolean more = missed.size() > limit;
+        return new MessageManager.Page(more ? missed.subList(missed.size() - limit, missed.size()) : missed, more);
+    }
+
+    /**
+     * Forgets a room's messages up to {@code id}, after retention removed them from the store.
+     */
+    static void dropThrough(String room, long id) {
+        Ring ring = rooms.get(room);
+        if (ring == null) return;
+        ring.lock.lock();
+        try {
+            while (!ring.messages.isEmpty() && ring.messages.peekFirst().id() <= id) {
+                ring.resize(-ring.messages.removeFirst().estimatedBytes());
+            }
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    /**
+     * One room's ring as a {@link StateSnapshot} keeps it; {@code seeded} if it held the room's
+     * newest messages rather than only those broadcast since it was last seeded.
+     */
+    record Saved(String room, boolean seeded, List<ChatMessage> messages) {}
+
+    static List<Saved> export() {
+        List<Saved> saved = new ArrayList<>(rooms.size());
+        rooms.forEach((room, ring) -> {
+            ring.lock.lock();
+            try {
+                if (!ring.evicted) saved.add(new Saved(room, ring.seeded, new ArrayList<>(ring.messages)));
+            } finally {
+                ring.lock.unlock();
+            }
+        });
+        return saved;
+    }
+
+    /**
+     * Fills the rings from a snapshot, at startup before any room is read. Unless {@code complete} (nothing was stored since it was
+     * taken), they are seeded from the database again on their first read, keeping what they hold.
+     */
+    static void restore(List<Saved> saved, boolean complete) {
+        for (Saved s : saved) {
+            Ring ring = new Ring();
+            for (ChatMessage m : s.messages()) ring.add(m);
+            ring.seeded = s.seeded() && complete;
+            rooms.put(s.room(), ring);
+        }
+        if (totalBytes.get() > MAX_BYTES) evict();
+    }
+
+    // Flushes and queries without the lock, so senders to the room keep appending meanwhile; what
+    // they append lands in the ring unseeded and is merged with the query's rows under the lock.
+    // One reader seeds; the rest wait on its future, so a crowd joining a cold room queries once.
+    private static void seed(Ring ring, String room) {
+        CompletableFuture<Void> seeding;
+        ring.lock.lock();
+        try {
+            if (ring.seeded || ring.evicted) return;
+            seeding = ring.seeding;
+            if (seeding == null) ring.seeding = new CompletableFuture<>();
+        } finally {
+            ring.lock.unlock();
+        }
+        if (seeding != null) {
+            seeding.join();
+            return;
+        }
+
+        List<ChatMessage> stored = null;
+        try {
+            // Let the write-behind queue drain so the query sees everything already broadcast.
+            MessageManager.flush();
+            stored = MessageManager.getRecentMessages(room, CAPACITY);
+        } finally {
+            ring.lock.lock();
+            try {
+                // Left unseeded if the query threw; the next read tries again.
+                if (stored != null && !ring.evicted) {
+                    TreeMap<Long, ChatMessage> merged = new TreeMap<>();
+                    for (ChatMessage m : stored) merged.put(m.id(), m);
+                    for (ChatMessage m : ring.messages) merged.put(m.id(), m);
+
+                    ring.resize(-ring.bytes);
+                    ring.messages.clear();
+                    for (ChatMessage m : merged.values()) ring.add(m);
+                    ring.seeded = true;
+                }
+                seeding = ring.seeding;
+                ring.seeding = null;
+            } finally {
+                ring.lock.unlock();
+            }
+            seeding.complete(null);
+        }
+        if (totalBytes.get() > MAX_BYTES) evict();
+    }
+
+    // Drops least recently used rooms until total usage is back under 90% of the cap.
+    private static void evict() {
+        if (!evictLock.tryLock()) return;
+        try {
+            // Snapshot access times first; they keep moving while we sort.
+            record Candidate(String room, Ring ring, long lastAccess) {}
+            List<Candidate> candidates = new ArrayList<>(rooms.size());
+            rooms.forEach((room, ring) -> candidates.add(new Candidate(room, ring, ring.lastAccess)));
+            candidates.sort(Comparator.comparingLong(Candidate::lastAccess));
+            for (Candidate c : candidates) {
+                if (totalBytes.get() <= MAX_BYTES / 10 * 9) break;
+                Ring ring = c.ring();
+                if (!rooms.remove(c.room(), ring)) continue;
+                ring.lock.lock();
+                try {
+                    ring.evicted = true;
+                    ring.resize(-ring.bytes);
+                    ring.messages.clear();
+                } finally {
+                    ring.lock.unlock();
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    static int cachedRooms() {
+        return rooms.size();
+    }
+
+    static long cachedBytes() {
+        return totalBytes.get();
+    }
+}
@@ -1,115 +1,213 @@
 package com.example.server;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 public class RoomManager {
 
-    private static final String DB_URL = "jdbc:sqlite:chat.db";
+    private static volatile MembershipJournal journal;
 
     public static void init() {
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement()) {
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS rooms (
-                    name TEXT PRIMARY KEY,
-                    created_at TEXT DEFAULT CURRENT_TIMESTAMP
-                )
-            """);
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS room_members (
-                    username TEXT,
-                    room_name TEXT,
-                    joined_at TEXT DEFAULT CURRENT_TIMESTAMP,
-                    PRIMARY KEY (username, room_name)
-                )
-            """);
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS messages (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    room_name TEXT NOT NULL,
-                    username TEXT NOT NULL,
-                    text TEXT NOT NULL,
-                    timestamp TEXT DEFAULT CURRENT_TIMESTAMP,
-                    FOREIGN KEY(room_name) REFERENCES rooms(name),
-                    FOREIGN KEY(username) REFERENCES users(username)
-                )
-            """);
+        try {
+            Database.write("RoomManager.init", s -> {
+                try (Statement stmt = s.connection().createStatement()) {
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS rooms (
+                            name TEXT PRIMARY KEY,
+                            created_at TEXT DEFAULT CURRENT_TIMESTAMP
+                        )
+                    """);
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS room_members (
+                            username TEXT,
+                            room_name TEXT,
+                            joined_at TEXT DEFAULT CURRENT_TIMESTAMP,
+                            PRIMARY KEY (username, room_name)
+                        )
+                    """);
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS messages (
+                            id INTEGER PRIMARY KEY AUTOINCREMENT,
+                            room_name TEXT NOT NULL,
+                            username TEXT NOT NULL,
+                            text TEXT NOT NULL,
+                            timestamp TEXT DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY(room_name) REFERENCES rooms(name),
+                            FOREIGN KEY(username) REFERENCES users(username)
+                        )
+                    """);
+                    // History is read newest-first per room; without this every page scans the table.
+                    stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_id ON messages(room_name, id)");
+                    // Full-text index for /search. MessageWriter and retention keep it in step with the rows
+                    // (batched, which is several times cheaper than triggers); filled once when it is created.
+                    boolean indexed;
+                    try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE name='messages_fts'")) {
+                        indexed = rs.next();
+                    }
+                    stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts5(text, content='messages', content_rowid='id')");
+                    if (!indexed) stmt.execute("INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')");
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public static synchronized void createRoomIfNotExists(String roomName) {
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement pstmt = conn.prepareStatement("INSERT OR IGNORE INTO rooms(name) VALUES(?)");
-            pstmt.setString(1, roomName);
-            pstmt.executeUpdate();
+    /**
+     * Replays what the last run left in the membership journal and starts writing joins and leaves
+     * through it. Until this is called, and after it shuts down, they are written directly.
+     */
+    public static void startJournal() {
+        MembershipJournal j = new MembershipJournal(MembershipJournal.defaultFile(),
+                ServerConfig.MEMBERSHIP_FLUSH_MS, ServerConfig.MEMBERSHIP_MAX_PENDING);
+        try {
+            j.start();
+            journal = j;
+        } catch (IOException e) {
+            System.out.println("Membership journal unavailable, writing memberships directly: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Persists a join in the background. {@code fresh} means the user was not a member in memory
+     * before, so a leave before the next commit cancels it.
+     */
+    static void recordJoin(String username, String roomName, boolean fresh) {
+        MembershipJournal j = journal;
+        if (j == null || !j.record(username, roomName, true, fresh)) addUserToRoom(username, roomName);
+    }
+
+    static void recordLeave(String username, String roomName, boolean fresh) {
+        MembershipJournal j = journal;
+        if (j == null || !j.record(username, roomName, false, fresh)) removeUserFromRoom(username, roomName);
+    }
+
+    /**
+     * Blocks until every recorded join and leave is committed.
+     */
+    public static boolean flushMemberships() {
+        MembershipJournal j = journal;
+        return j == null || j.flush();
+    }
+
+    static int pendingMemberships() {
+        MembershipJournal j = journal;
+        return j == null ? 0 : j.pendingCount();
+    }
+
+    public static void createRoomIfNotExists(String roomName) {
+        try {
+            Database.write("RoomManager.createRoomIfNotExists", s -> {
+                PreparedStatement pstmt = s.prepare("INSERT OR IGNORE INTO rooms(name) VALUES(?)");
+                pstmt.setString(1, roomName);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public static synchronized void addUserToRoom(String username, String roomName) {
-        createRoomIfNotExists(roomName);
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement pstmt = conn.prepareStatement(
-                    "INSERT OR IGNORE INTO room_members(username, room_name) VALUES(?, ?)"
-            );
-            pstmt.setString(1, username);
-            pstmt.setString(2, roomName);
-            pstmt.executeUpdate();
+    public static void addUserToRoom(String username, String roomName) {
+        try {
+            Database.transaction("RoomManager.addUserToRoom", s -> {
+                PreparedStatement room = s.prepare("INSERT OR IGNORE INTO rooms(name) VALUES(?)");
+                room.setString(1, roomName);
+                room.executeUpdate();
+
+                PreparedStatement pstmt = s.prepare(
+                        "INSERT OR IGNORE INTO room_members(username, room_name) VALUES(?, ?)"
+                );
+                pstmt.setString(1, username);
+                pstmt.setString(2, roomName);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public static synchronized void removeUserFromRoom(String username, String roomName) {
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement ps = conn.prepareStatement(
-                    "DELETE FROM room_members WHERE username=? AND room_name=?");
-            ps.setString(1, username);
-            ps.setString(2, roomName);
-            ps.executeUpdate();
+    public static void removeUserFromRoom(String username, String roomName) {
+        try {
+            Database.write("RoomManager.removeUserFromRoom", s -> {
+                PreparedStatement ps = s.prepare(
+                        "DELETE FROM room_members WHERE username=? AND room_name=?");
+                ps.setString(1, username);
+                ps.setString(2, roomName);
+                return ps.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public static synchronized List<String> getAllRooms() {
+    public static List<String> getAllRooms() {
         List<String> rooms = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT name FROM rooms")) {
-            while (rs.next()) rooms.add(rs.getString("name"));
+        try {
+            Database.read("RoomManager.getAllRooms", s -> {
+                try (ResultSet rs = s.prepare("SELECT name FROM rooms").executeQuery()) {
+                    while (rs.next()) rooms.add(rs.getString("name"));
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return rooms;
     }
 
-    public static synchronized List<String> getUsersInRoom(String roomName) {
+    public static List<String> getUsersInRoom(String roomName) {
         List<String> users = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement pstmt = conn.prepareStatement(
-                    "SELECT username FROM room_members WHERE room_name=?"
-            );
-            pstmt.setString(1, roomName);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) users.add(rs.getString("username"));
+        try {
+            Database.read("RoomManager.getUsersInRoom", s -> {
+                PreparedStatement pstmt = s.prepare(
+                        "SELECT username FROM room_members WHERE room_name=?"
+                );
+                pstmt.setString(1, roomName);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) users.add(rs.getString("username"));
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return users;
     }
 
-    public static synchronized void clearRoom(String roomName) {
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            PreparedStatement pstmt = conn.prepareStatement(
-                    "DELETE FROM room_members WHERE room_name=?"
-            );
-            pstmt.setString(1, roomName);
-            pstmt.executeQuery();
+    /**
+     * Streams every (username, room) membership through {@code action} in one query, for
+     * startup. Returns the number of rows.
+     */
+    public static int forEachMembership(BiConsumer<String, String> action) {
+        try {
+            return Database.read("RoomManager.forEachMembership", s -> {
+                int n = 0;
+                try (ResultSet rs = s.prepare("SELECT username, room_name FROM room_members").executeQuery()) {
+                    while (rs.next()) {
+                        action.accept(rs.getString(1), rs.getString(2));
+                        n++;
+                    }
+                }
+                return n;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    public static void clearRoom(String roomName) {
+        try {
+            Database.write("RoomManager.clearRoom", s -> {
+                PreparedStatement pstmt = s.prepare(
+                        "DELETE FROM room_members WHERE room_name=?"
+                );
+                pstmt.setString(1, roomName);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,159 @@
+package com.example.server;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index over one room's messages, for stores that have no text index of their
+ * own. Each word maps to the ids of the messages containing it in ascending order, each packed with
+ * how often the word occurs there ({@code id << 8 | count}). It is updated as messages are added and
+ * trimmed, so a search only reads the postings of its own words.
+ */
+final class SearchIndex {
+
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final double K1 = 1.2;
+
+    /**
+     * A matching message and its score; higher is better.
+     */
+    record Hit(String room, long id, double score) {}
+
+    /**
+     * Best first; among equal scores, newer first.
+     */
+    static final Comparator<Hit> BEST_FIRST = Comparator.comparingDouble(Hit::score).reversed()
+            .thenComparing(Comparator.comparingLong(Hit::id).reversed());
+
+    private static final class Postings {
+        long[] entries = new long[4];
+        int size;
+
+        long id(int i) {
+            return entries[i] >>> 8;
+        }
+
+        // Index of id, or -(insertion point) - 1.
+        int find(long id) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long other = id(mid);
+                if (other < id) lo = mid + 1;
+                else if (other > id) hi = mid - 1;
+                else return mid;
+            }
+            return -lo - 1;
+        }
+
+        void add(long id, int count) {
+            int at = size == 0 || id(size - 1) < id ? size : find(id);
+            if (at < 0) at = -at - 1;
+            else if (at < size) return;
+            if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+            System.arraycopy(entries, at, entries, at + 1, size - at);
+            entries[at] = id << 8 | Math.min(count, 255);
+            size++;
+        }
+
+        void dropThrough(long id) {
+            int from = find(id);
+            from = from < 0 ? -from - 1 : from + 1;
+            System.arraycopy(entries, from, entries, 0, size - from);
+            size -= from;
+        }
+    }
+
+    private final String room;
+    private final Map<String, Postings> words = new HashMap<>();
+    private long messages;
+
+    SearchIndex(String room) {
+        this.room = room;
+    }
+
+    /**
+     * The words of {@code text} as the index sees them: split at anything that isn't a letter or
+     * digit, lower-cased and without accents, like SQLite's unicode61 tokenizer.
+     */
+    static List<String> words(String text) {
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<>();
+        for (String word : SEPARATORS.split(folded)) {
+            if (!word.isEmpty()) words.add(word);
+        }
+        return words;
+    }
+
+    /**
+     * Indexes a message; ids may arrive out of order, but each only once.
+     */
+    void add(long id, String text) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String word : words(text)) counts.merge(word, 1, Integer::sum);
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            words.computeIfAbsent(e.getKey(), w -> new Postings()).add(id, e.getValue());
+        }
+        messages++;
+    }
+
+    /**
+     * Forgets the {@code count} messages with ids up to {@code id}.
+     */
+    void dropThrough(long id, int count) {
+        Iterator<Postings> it = words.values().iterator();
+        while (it.hasNext()) {
+            Postings p = it.next();
+            p.dropThrough(id);
+            if (p.size == 0) it.remove();
+        }
+        messages = Math.max(0, messages - count);
+    }
+
+    /**
+     * Passes the newest {@code max} messages containing all of {@code terms} to {@code into}, scored
+     * by BM25 without length normalization (chat lines are all short).
+     */
+    void search(List<String> terms, int max, Consumer<Hit> into) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : new LinkedHashSet<>(terms)) {
+            Postings p = words.get(term);
+            if (p == null) return;
+            lists.add(p);
+        }
+        if (lists.isEmpty()) return;
+        lists.sort(Comparator.comparingInt(p -> p.size));
+        double[] idf = new double[lists.size()];
+        for (int t = 0; t < idf.length; t++) {
+            int df = lists.get(t).size;
+            idf[t] = Math.log(1 + (messages - df + 0.5) / (df + 0.5));
+        }
+        Postings rarest = lists.get(0);
+        int found = 0;
+        candidates:
+        for (int i = rarest.size - 1; i >= 0 && found < max; i--) {
+            long id = rarest.id(i);
+            double score = 0;
+            for (int t = 0; t < lists.size(); t++) {
+                Postings p = lists.get(t);
+                int at = t == 0 ? i : p.find(id);
+                if (at < 0) continue candidates;
+                int tf = (int) (p.entries[at] & 0xff);
+                score += idf[t] * tf * (K1 + 1) / (tf + K1);
+            }
+            into.accept(new Hit(room, id, score));
+            found++;
+        }
+    }
+}
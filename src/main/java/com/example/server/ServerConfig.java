@@ -0,0 +1,118 @@
+package com.example.server;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Startup options, read once from {@code -Dchat.*} system properties.
+ */
+public final class ServerConfig {
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    // TCP front end: "nio" (selector event loops), "blocking" (one platform thread per
+    // connection) or "virtual" (one virtual thread per connection).
+    public static final String TRANSPORT = System.getProperty("chat.transport", "nio");
+
+    // Listening ports: line/binary TCP protocol, and the WebSocket bridge.
+    public static final int PORT = Integer.getInteger("chat.port", 6969);
+    public static final int WS_PORT = Integer.getInteger("chat.ws.port", 8080);
+
+    public static final int NIO_EVENT_LOOPS = Integer.getInteger("chat.nio.loops", Math.max(1, CORES / 2));
+    public static final int NIO_WORKERS = Integer.getInteger("chat.nio.workers", Math.max(2, CORES));
+
+    // Per-client outbound queue, in lines. On overflow: "disconnect" the client or "drop-oldest".
+    public static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final OutboundQueue.OverflowPolicy OUTBOUND_OVERFLOW =
+            OutboundQueue.OverflowPolicy.parse(System.getProperty("chat.outbound.overflow", "disconnect"));
+
+    // Shared storage used by every manager.
+    public static final String DB_URL = System.getProperty("chat.db.url", "jdbc:sqlite:chat.db");
+    public static final int DB_READERS = Integer.getInteger("chat.db.readers", 4);
+    public static final int DB_BUSY_TIMEOUT_MS = Integer.getInteger("chat.db.busy.timeout.ms", 5000);
+
+    // Group commit for chat messages: max rows per transaction, and how long to wait for more.
+    public static final int PERSIST_BATCH_SIZE = Integer.getInteger("chat.persist.batch", 256);
+    public static final int PERSIST_MAX_DELAY_MS = Integer.getInteger("chat.persist.delay.ms", 5);
+    public static final int PERSIST_QUEUE_CAPACITY = Integer.getInteger("chat.persist.queue", 65536);
+
+    // Where history is kept: "sqlite" (the messages table) or "log" (a memory-mapped log per room
+    // under chat.store.dir, default next to the database file), its segment size and fsync interval.
+    public static final String MESSAGE_STORE = System.getProperty("chat.store", "sqlite");
+    public static final String LOG_DIR = System.getProperty("chat.store.dir");
+    public static final int LOG_SEGMENT_BYTES = Integer.getInteger("chat.store.segment.mb", 8) * 1024 * 1024;
+    public static final int LOG_SYNC_MS = Integer.getInteger("chat.store.sync.ms", 1000);
+
+    // Retention: global max age (e.g. 30d, 12h; empty for none) and max messages per room (0 for none),
+    // per-room overrides as room:maxAge:maxCount, where old messages go instead of being deleted
+    // (empty deletes them), and how the background compactor paces itself.
+    public static final String RETENTION_MAX_AGE = System.getProperty("chat.retention.max.age", "");
+    public static final int RETENTION_MAX_COUNT = Integer.getInteger("chat.retention.max.count", 0);
+    public static final String RETENTION_ROOMS = System.getProperty("chat.retention.rooms", "");
+    public static final String RETENTION_ARCHIVE_DIR = System.getProperty("chat.retention.archive.dir", "");
+    public static final int RETENTION_INTERVAL_S = Integer.getInteger("chat.retention.interval.s", 300);
+    public static final int RETENTION_BATCH = Integer.getInteger("chat.retention.batch", 500);
+    public static final int RETENTION_RATE = Integer.getInteger("chat.retention.rate", 5000);
+
+    // Write-behind for room memberships: the journal file (default: next to the database file,
+    // empty for none), how often pending joins and leaves are committed, and how many commit early.
+    public static final String MEMBERSHIP_JOURNAL = System.getProperty("chat.membership.journal");
+    public static final int MEMBERSHIP_FLUSH_MS = Integer.getInteger("chat.membership.flush.ms", 500);
+    public static final int MEMBERSHIP_MAX_PENDING = Integer.getInteger("chat.membership.pending", 4096);
+
+    // Warm restart: the state snapshot (default: next to the database file, empty for none), and how
+    // often it is written besides at shutdown (0 for only then).
+    public static final String SNAPSHOT_FILE = System.getProperty("chat.snapshot.file");
+    public static final int SNAPSHOT_INTERVAL_S = Integer.getInteger("chat.snapshot.interval.s", 60);
+
+    // In-memory join backlog: messages kept per room, and a cap across all rooms.
+    public static final int HISTORY_PER_ROOM = Integer.getInteger("chat.history.size", 200);
+    public static final long HISTORY_MAX_BYTES = Long.getLong("chat.history.memory.mb", 64L) * 1024 * 1024;
+
+    // Search ranks only the newest this many matches, so a common word costs the same as a rare one.
+    public static final int SEARCH_CANDIDATES = Integer.getInteger("chat.search.candidates", 2000);
+
+    // Authentication: verification pool size and backlog, cached credentials, and the
+    // username Bloom filter size in bits (about 10 bits per user keeps false positives near 1%).
+    public static final int AUTH_THREADS = Integer.getInteger("chat.auth.threads", Math.max(2, CORES));
+    public static final int AUTH_QUEUE = Integer.getInteger("chat.auth.queue", 4096);
+    public static final int AUTH_CACHE_SIZE = Integer.getInteger("chat.auth.cache", 100_000);
+    public static final long AUTH_BLOOM_BITS = Long.getLong("chat.auth.bloom.bits", 1L << 24);
+
+    // Session resume: how long a token outlives its connection, and the most missed messages replayed.
+    public static final int RESUME_TTL_SECONDS = Integer.getInteger("chat.resume.ttl.seconds", 300);
+    public static final int RESUME_MAX_REPLAY = Integer.getInteger("chat.resume.replay", 200);
+
+    // Compression: permessage-deflate on the WebSocket bridge, "deflate" stream mode on the TCP port,
+    // the size below which a message (WebSocket) or write batch (TCP) is sent uncompressed, and the zlib level.
+    public static final boolean COMPRESS_WS = Boolean.parseBoolean(System.getProperty("chat.compress.ws", "true"));
+    public static final boolean COMPRESS_TCP = Boolean.parseBoolean(System.getProperty("chat.compress.tcp", "true"));
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger("chat.compress.threshold", 256);
+    public static final int COMPRESS_LEVEL = Integer.getInteger("chat.compress.level", 6);
+
+    // Send limits in chat lines per second, with the burst allowed on top; 0 turns a limit off.
+    // Per connection, per user across their connections, and per room across all senders.
+    public static final int RATE_CONNECTION = Integer.getInteger("chat.rate.connection", 10);
+    public static final int RATE_CONNECTION_BURST = Integer.getInteger("chat.rate.connection.burst", 20);
+    public static final int RATE_USER = Integer.getInteger("chat.rate.user", 20);
+    public static final int RATE_USER_BURST = Integer.getInteger("chat.rate.user.burst", 40);
+    public static final int RATE_ROOM = Integer.getInteger("chat.rate.room", 1000);
+    public static final int RATE_ROOM_BURST = Integer.getInteger("chat.rate.room.burst", 2000);
+
+    // Cluster mode: this node's name, and every node (this one included) as name@host:port, the
+    // same list on all nodes; empty runs standalone. Ring points per node, and send queue per peer.
+    public static final String CLUSTER_NODE = System.getProperty("chat.cluster.node", "");
+    public static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes", "");
+    public static final int CLUSTER_VNODES = Integer.getInteger("chat.cluster.vnodes", 128);
+    public static final int CLUSTER_QUEUE = Integer.getInteger("chat.cluster.queue", 65536);
+    // Shared by all nodes; peers prove they know it before anything they send is accepted.
+    public static final String CLUSTER_SECRET = System.getProperty("chat.cluster.secret", "");
+
+    // Metrics: loopback HTTP port for plain-text stats (0 turns it off), and the users allowed /stats.
+    public static final int STATS_PORT = Integer.getInteger("chat.stats.port", 9090);
+    public static final Set<String> ADMINS = Arrays.stream(System.getProperty("chat.admins", "").split(","))
+            .map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toUnmodifiableSet());
+
+    private ServerConfig() {}
+}
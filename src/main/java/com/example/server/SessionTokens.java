@@ -0,0 +1,138 @@
+package com.example.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opaque resume tokens. A token is issued at login and lets a new connection take over
+ * the user, their room and the position they had read up to, without the password
+ * dialogue. Tokens live in memory, and across a restart only in a {@link StateSnapshot}.
+ *
+ * A user holds one token at a time. It stays valid while the session is connected and
+ * for {@code chat.resume.ttl.seconds} after it goes away, and is used up by a resume,
+ * which issues the next one.
+ */
+final class SessionTokens {
+
+    /**
+     * Where a resumed session picks up: its room (or null) and the newest message id it had seen.
+     */
+    record Resumed(String username, String room, long lastSeenId) {}
+
+    // expiresAt is Long.MAX_VALUE while the session is connected.
+    private record Entry(String username, String room, long lastSeenId, long expiresAt) {
+        boolean expired(long now) {
+            return expiresAt != Long.MAX_VALUE && expiresAt - now < 0;
+        }
+    }
+
+    private static final Metrics.Counter ISSUED = Metrics.counter("chat_resume_tokens_issued_total");
+    private static final Metrics.Counter RESUMED = Metrics.counter("chat_resumes_total{result=\"ok\"}");
+    private static final Metrics.Counter REJECTED = Metrics.counter("chat_resumes_total{result=\"rejected\"}");
+
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(ServerConfig.RESUME_TTL_SECONDS);
+    private static final SecureRandom random = new SecureRandom();
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Map<String, Entry> tokens = new ConcurrentHashMap<>();
+    private static final Map<String, String> tokenByUser = new ConcurrentHashMap<>();
+    private static final AtomicLong issuedSinceSweep = new AtomicLong();
+
+    static {
+        Metrics.gauge("chat_resume_tokens", tokens::size);
+    }
+
+    private SessionTokens() {}
+
+    /**
+     * A fresh token for a logged-in session; the user's previous token stops working.
+     */
+    static String issue(String username) {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = encoder.encodeToString(bytes);
+        tokens.put(token, new Entry(username, null, 0, Long.MAX_VALUE));
+        String old = tokenByUser.put(username, token);
+        if (old != null) tokens.remove(old);
+        ISSUED.increment();
+        if (issuedSinceSweep.incrementAndGet() % 1024 == 0) sweep();
+        return token;
+    }
+
+    /**
+     * The session holding {@code token} disconnected; it can be resumed until the TTL runs out.
+     */
+    static void suspend(String token, String room, long lastSeenId) {
+        if (token == null) return;
+        long expiresAt = System.nanoTime() + TTL_NANOS;
+        tokens.computeIfPresent(token, (t, e) -> new Entry(e.username(), room, lastSeenId, expiresAt));
+    }
+
+    /**
+     * Uses up a token. Returns null if it is unknown, replaced or expired.
+     */
+    static Resumed resume(String token) {
+        Entry e = token == null ? null : tokens.remove(token);
+        if (e == null || e.expired(System.nanoTime())) {
+            REJECTED.increment();
+            return null;
+        }
+        tokenByUser.remove(e.username(), token);
+        RESUMED.increment();
+        return new Resumed(e.username(), e.room(), e.lastSeenId());
+    }
+
+    /**
+     * Drops the token of a session that ended on purpose.
+     */
+    static void revoke(String token) {
+        if (token == null) return;
+        Entry e = tokens.remove(token);
+        if (e != null) tokenByUser.remove(e.username(), token);
+    }
+
+    /**
+     * A token as a {@link StateSnapshot} keeps it: {@code remainingMillis} of its TTL when the
+     * snapshot was taken, the full TTL for a session that was still connected.
+     */
+    record Saved(String token, String username, String room, long lastSeenId, long remainingMillis) {}
+
+    static List<Saved> export() {
+        long now = System.nanoTime();
+        List<Saved> saved = new ArrayList<>(tokens.size());
+        tokens.forEach((token, e) -> {
+            if (e.expired(now)) return;
+            long remaining = e.expiresAt() == Long.MAX_VALUE ? TTL_NANOS : e.expiresAt() - now;
+            saved.add(new Saved(token, e.username(), e.room(), e.lastSeenId(), TimeUnit.NANOSECONDS.toMillis(remaining)));
+        });
+        return saved;
+    }
+
+    /**
+     * Takes back the tokens of a snapshot taken {@code elapsedMillis} ago, less that much of their TTL.
+     * All of them are suspended: the sessions that held them are gone.
+     */
+    static void restore(List<Saved> saved, long elapsedMillis) {
+        long now = System.nanoTime();
+        for (Saved s : saved) {
+            long remaining = s.remainingMillis() - elapsedMillis;
+            if (remaining <= 0) continue;
+            tokens.put(s.token(), new Entry(s.username(), s.room(), s.lastSeenId(), now + TimeUnit.MILLISECONDS.toNanos(remaining)));
+            String old = tokenByUser.put(s.username(), s.token());
+            if (old != null && !old.equals(s.token())) tokens.remove(old);
+        }
+    }
+
+    private static void sweep() {
+        long now = System.nanoTime();
+        tokens.forEach((token, e) -> {
+            if (e.expired(now) && tokens.remove(token, e)) tokenByUser.remove(e.username(), token);
+        });
+    }
+}
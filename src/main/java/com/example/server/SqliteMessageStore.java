@@ -0,0 +1,279 @@
+package com.example.server;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History in the {@code messages} table, written in groups by a {@link MessageWriter}.
+ */
+public final class SqliteMessageStore implements MessageStore {
+
+    private static final Gson gson = new Gson();
+
+    private final MessageWriter writer;
+
+    public SqliteMessageStore(int maxBatch, long maxDelayMillis, int queueCapacity) {
+        writer = new MessageWriter(maxBatch, maxDelayMillis, queueCapacity);
+        writer.start();
+        Metrics.gauge("chat_message_writer_queue", writer::getQueueDepth);
+        Metrics.gauge("chat_message_writer_written", writer::getWritten);
+        Metrics.gauge("chat_message_writer_failed", writer::getFailed);
+    }
+
+    @Override
+    public void append(ChatMessage message) {
+        if (!writer.submit(message)) insertNow(message);
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) {
+        return writer.flush(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+    }
+
+    // Fallback once the writer has stopped (shutdown or a failed start).
+    private static void insertNow(ChatMessage message) {
+        try {
+            Database.transaction("MessageManager.insertNow", s -> {
+                PreparedStatement pstmt = s.prepare(MessageWriter.INSERT);
+                MessageWriter.bind(pstmt, message);
+                if (pstmt.executeUpdate() == 0) return 0;
+                PreparedStatement index = s.prepare(MessageWriter.INDEX);
+                index.setLong(1, message.id());
+                index.setString(2, message.text());
+                return index.executeUpdate();
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long maxId() {
+        try {
+            return Database.read("MessageManager.loadMaxId", s -> {
+                // sqlite_sequence remembers ids whose rows retention has deleted since.
+                try (ResultSet rs = s.prepare("""
+                    SELECT MAX(COALESCE((SELECT MAX(id) FROM messages), 0),
+                               COALESCE((SELECT seq FROM sqlite_sequence WHERE name='messages'), 0))
+                """).executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    @Override
+    public MessageManager.Page since(String room, long afterId, long upToId, int limit) {
+        List<ChatMessage> messages = new ArrayList<>(Math.min(limit + 1, 1024));
+        try {
+            Database.read("MessageManager.getSince", s -> {
+                PreparedStatement pstmt = s.prepare("""
+                    SELECT id, username, text, timestamp
+                    FROM messages
+                    WHERE room_name=? AND id>? AND id<=?
+                    ORDER BY id DESC
+                    LIMIT ?
+                """);
+                pstmt.setString(1, room);
+                pstmt.setLong(2, afterId);
+                pstmt.setLong(3, upToId);
+                pstmt.setInt(4, limit + 1);
+                readRows(pstmt, room, messages);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return MessageManager.Page.fromNewestFirst(messages, limit);
+    }
+
+    // Uses the (room_name, id) index, so a page costs the same however large the table is.
+    @Override
+    public MessageManager.Page history(String room, long beforeId, int limit) {
+        List<ChatMessage> messages = new ArrayList<>(limit + 1);
+        try {
+            Database.read("MessageManager.getHistory", s -> {
+                PreparedStatement pstmt = s.prepare("""
+                    SELECT id, username, text, timestamp
+                    FROM messages
+                    WHERE room_name=? AND id<?
+                    ORDER BY id DESC
+                    LIMIT ?
+                """);
+                pstmt.setString(1, room);
+                pstmt.setLong(2, beforeId);
+                pstmt.setInt(3, limit + 1);
+                readRows(pstmt, room, messages);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return MessageManager.Page.fromNewestFirst(messages, limit);
+    }
+
+    // Through messages_fts (see RoomManager.init and MessageWriter). The newest candidates come
+    // straight off the index in rowid order; only they are scored, and bm25() is lower for better
+    // matches. The rooms go in as one JSON array, so it is the same statement however many there are.
+    @Override
+    public MessageManager.Page search(Collection<String> rooms, String query, int offset, int limit) {
+        List<ChatMessage> messages = new ArrayList<>(Math.min(limit + 1, 1024));
+        List<String> terms = SearchIndex.words(query);
+        if (terms.isEmpty() || rooms.isEmpty()) return new MessageManager.Page(messages, false);
+        // Each word quoted, so nothing a user types is read as FTS5 syntax.
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) match.append('"').append(term).append("\" ");
+        try {
+            Database.read("MessageManager.search", s -> {
+                PreparedStatement pstmt = s.prepare("""
+                    SELECT id, room_name, username, text, timestamp FROM (
+                        SELECT m.id, m.room_name, m.username, m.text, m.timestamp, bm25(messages_fts) AS score
+                        FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid
+                        WHERE messages_fts MATCH ? AND m.room_name IN (SELECT value FROM json_each(?))
+                        ORDER BY messages_fts.rowid DESC
+                        LIMIT ?
+                    )
+                    ORDER BY score, id DESC
+                    LIMIT ? OFFSET ?
+                """);
+                pstmt.setString(1, match.toString().trim());
+                pstmt.setString(2, gson.toJson(rooms));
+                pstmt.setInt(3, ServerConfig.SEARCH_CANDIDATES);
+                pstmt.setInt(4, limit + 1);
+                pstmt.setInt(5, offset);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(new ChatMessage(rs.getLong("id"), rs.getString("room_name"), rs.getString("username"),
+                                rs.getString("text"), rs.getString("timestamp")));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        boolean more = messages.size() > limit;
+        if (more) messages.remove(messages.size() - 1);
+        return new MessageManager.Page(messages, more);
+    }
+
+    @Override
+    public List<String> rooms() {
+        List<String> rooms = new ArrayList<>();
+        try {
+            Database.read("MessageManager.rooms", s -> {
+                // One index seek per room instead of scanning every row for DISTINCT.
+                try (ResultSet rs = s.prepare("""
+                    WITH RECURSIVE r(name) AS (
+                        SELECT MIN(room_name) FROM messages
+                        UNION ALL
+                        SELECT (SELECT MIN(room_name) FROM messages WHERE room_name > r.name) FROM r WHERE r.name IS NOT NULL
+                    )
+                    SELECT name FROM r WHERE name IS NOT NULL
+                """).executeQuery()) {
+                    while (rs.next()) rooms.add(rs.getString(1));
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return rooms;
+    }
+
+    // Picked and archived outside the writer's transaction, which then only deletes, so the writer
+    // never waits on the archive's disk. If the delete fails after archiving, the next run archives
+    // the same rows again: the archive may hold a message twice, never miss one.
+    @Override
+    public Trimmed trim(String room, String cutoff, int keep, int limit, MessageArchive archive) throws IOException {
+        List<ChatMessage> expired;
+        try {
+            expired = Database.read("MessageManager.trim", s -> {
+                // Ids below keepFrom are not among the newest keep.
+                long keepFrom = Long.MIN_VALUE;
+                if (keep > 0) {
+                    PreparedStatement newest = s.prepare("SELECT id FROM messages WHERE room_name=? ORDER BY id DESC LIMIT 1 OFFSET ?");
+                    newest.setString(1, room);
+                    newest.setInt(2, keep - 1);
+                    try (ResultSet rs = newest.executeQuery()) {
+                        if (rs.next()) keepFrom = rs.getLong(1);
+                    }
+                }
+                PreparedStatement oldest = s.prepare("""
+                    SELECT id, username, text, timestamp
+                    FROM messages
+                    WHERE room_name=?
+                    ORDER BY id
+                    LIMIT ?
+                """);
+                oldest.setString(1, room);
+                oldest.setInt(2, limit);
+                List<ChatMessage> rows = new ArrayList<>();
+                try (ResultSet rs = oldest.executeQuery()) {
+                    while (rs.next()) {
+                        long id = rs.getLong("id");
+                        String timestamp = rs.getString("timestamp");
+                        boolean tooOld = cutoff != null && timestamp != null && timestamp.compareTo(cutoff) < 0;
+                        if (id >= keepFrom && !tooOld) break;
+                        rows.add(new ChatMessage(id, room, rs.getString("username"), rs.getString("text"), timestamp));
+                    }
+                }
+                return rows;
+            });
+        } catch (SQLException e) {
+            throw new IOException("Trimming " + room + " failed", e);
+        }
+        if (expired.isEmpty()) return new Trimmed(0, 0);
+        if (archive != null) archive.write(expired);
+        try {
+            // One short transaction: the writer waits for at most this batch.
+            return Database.transaction("MessageManager.trim", s -> {
+                // An external-content index is told what each removed row held.
+                PreparedStatement unindex = s.prepare("INSERT INTO messages_fts(messages_fts, rowid, text) VALUES('delete', ?, ?)");
+                try {
+                    for (ChatMessage m : expired) {
+                        unindex.setLong(1, m.id());
+                        unindex.setString(2, m.text());
+                        unindex.addBatch();
+                    }
+                    unindex.executeBatch();
+                } finally {
+                    unindex.clearBatch();
+                }
+                long through = expired.get(expired.size() - 1).id();
+                PreparedStatement delete = s.prepare("DELETE FROM messages WHERE room_name=? AND id>=? AND id<=?");
+                delete.setString(1, room);
+                delete.setLong(2, expired.get(0).id());
+                delete.setLong(3, through);
+                return new Trimmed(delete.executeUpdate(), through);
+            });
+        } catch (SQLException e) {
+            throw new IOException("Trimming " + room + " failed", e);
+        }
+    }
+
+    private static void readRows(PreparedStatement pstmt, String room, List<ChatMessage> into) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                into.add(new ChatMessage(rs.getLong("id"), room, rs.getString("username"),
+                        rs.getString("text"), rs.getString("timestamp")));
+            }
+        }
+    }
+}
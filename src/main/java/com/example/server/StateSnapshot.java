@@ -0,0 +1,326 @@
+package com.example.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Warm restart. What the server would otherwise rebuild from the database at startup, or lose,
+ * goes into one binary file: room memberships, the recent-message rings, the user directory with
+ * its cached credentials, and resume tokens. It is written every {@code interval} and once more
+ * at shutdown, and read back (then deleted) at the next start.
+ *
+ * Only the snapshot written at shutdown, after messages and memberships were committed, is clean,
+ * and only a clean one stands in for loading memberships from the database or carries resume
+ * tokens: a periodic one would bring back tokens rotated since. The rest is usable from any
+ * snapshot: rings are seeded again if messages were stored after it, and the directory reads the
+ * users registered since. The file is readable by its owner only.
+ */
+final class StateSnapshot implements Runnable {
+
+    private static final int MAGIC = 0x43534e50; // "CSNP"
+    private static final int VERSION = 1;
+
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("chat_snapshot_write_us");
+    private static final Metrics.Counter FAILED = Metrics.counter("chat_snapshot_failed_total");
+
+    /**
+     * A snapshot as read back. {@code users} is null if the directory couldn't be exported.
+     */
+    record Contents(long writtenAtMillis, boolean clean, long lastMessageId, UserDirectory.State users,
+                    List<SessionTokens.Saved> tokens, Map<String, Set<String>> memberships,
+                    List<RoomHistory.Saved> history) {}
+
+    private final Path file;
+    private final long intervalNanos;
+    private final Thread thread;
+    private boolean closed;
+    private volatile long lastBytes;
+    private volatile long lastWriteMillis;
+
+    StateSnapshot(Path file, long intervalMillis) {
+        this.file = file;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.thread = new Thread(this, "chat-snapshot");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * The snapshot {@code chat.snapshot.*} describes, or null if there is none.
+     */
+    static StateSnapshot fromConfig() {
+        Path file = defaultFile();
+        return file == null ? null : new StateSnapshot(file, TimeUnit.SECONDS.toMillis(ServerConfig.SNAPSHOT_INTERVAL_S));
+    }
+
+    /**
+     * Next to an SQLite file unless {@code chat.snapshot.file} names one, and none for in-memory
+     * databases or when that option is empty.
+     */
+    static Path defaultFile() {
+        String configured = ServerConfig.SNAPSHOT_FILE;
+        if (configured != null) return configured.isEmpty() ? null : Path.of(configured);
+        Path db = Database.file();
+        return db == null ? null : db.resolveSibling(db.getFileName() + ".snapshot");
+    }
+
+    /**
+     * Starts the periodic writer and adds the final write at shutdown. {@code beforeFinal} runs
+     * first; it suspends the live sessions so their tokens say where each one was.
+     */
+    void start(Runnable beforeFinal) {
+        Metrics.gauge("chat_snapshot_bytes", () -> lastBytes);
+        Metrics.gauge("chat_snapshot_last_write_ms", () -> lastWriteMillis);
+        if (intervalNanos > 0) thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            thread.interrupt();
+            beforeFinal.run();
+            save(true);
+        }, "chat-snapshot-shutdown"));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+            save(false);
+        }
+    }
+
+    // The shutdown write is the last; a periodic one still running finishes first.
+    private synchronized void save(boolean atShutdown) {
+        if (closed) return;
+        closed = atShutdown;
+        boolean clean = atShutdown && MessageManager.flush() & RoomManager.flushMemberships();
+        try {
+            write(clean);
+        } catch (IOException e) {
+            System.out.println("Snapshot to " + file + " failed: " + e.getMessage());
+            FAILED.increment();
+        }
+    }
+
+    /**
+     * Writes the current state, replacing the previous snapshot in one step.
+     */
+    void write(boolean clean) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes = encode(clean);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        createPrivate(tmp);
+        Files.write(tmp, bytes);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WRITE_TIME.recordSince(start);
+        lastBytes = bytes.length;
+        lastWriteMillis = (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // Owner-only from the start, not after the bytes are in: it holds tokens and password hashes.
+    private static void createPrivate(Path tmp) throws IOException {
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp);
+        }
+    }
+
+    /**
+     * Reads the snapshot and deletes it, so a later crash can't restore the same state twice.
+     * Returns null if there is none, or it is damaged, or was taken of another database.
+     */
+    Contents read() {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+            Files.delete(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Snapshot " + file + " unreadable: " + e.getMessage());
+            return null;
+        }
+        try {
+            return decode(bytes);
+        } catch (IOException e) {
+            System.out.println("Snapshot " + file + " ignored: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /* -- Format -- */
+
+    // Magic and version, then deflated (the username filter is mostly zeros): a header, users, tokens,
+    // memberships and rings. Last, a CRC32C of everything before it.
+    private static byte[] encode(boolean clean) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 1 << 16));
+        out.writeLong(System.currentTimeMillis());
+        out.writeBoolean(clean);
+        writeString(out, Database.url());
+        // Before the rings: a message stored after this may be missing from them, never the reverse.
+        out.writeLong(MessageManager.lastAssignedId());
+
+        UserDirectory.State users = UserDirectory.export();
+        out.writeBoolean(users != null);
+        if (users != null) {
+            out.writeLong(users.maxRowId());
+            out.writeInt(users.filterWords().length);
+            for (long word : users.filterWords()) out.writeLong(word);
+            out.writeInt(users.credentials().size());
+            for (Map.Entry<String, UserDirectory.Credentials> e : users.credentials().entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue().hash());
+                writeString(out, e.getValue().salt());
+            }
+        }
+
+        List<SessionTokens.Saved> tokens = clean ? SessionTokens.export() : List.of();
+        out.writeInt(tokens.size());
+        for (SessionTokens.Saved t : tokens) {
+            writeString(out, t.token());
+            writeString(out, t.username());
+            writeString(out, t.room());
+            out.writeLong(t.lastSeenId());
+            out.writeLong(t.remainingMillis());
+        }
+
+        Map<String, Set<String>> memberships = ChatServer.memberships();
+        out.writeInt(memberships.size());
+        for (Map.Entry<String, Set<String>> e : memberships.entrySet()) {
+            writeString(out, e.getKey());
+            out.writeInt(e.getValue().size());
+            for (String room : e.getValue()) writeString(out, room);
+        }
+
+        List<RoomHistory.Saved> history = RoomHistory.export();
+        out.writeInt(history.size());
+        for (RoomHistory.Saved ring : history) {
+            writeString(out, ring.room());
+            out.writeBoolean(ring.seeded());
+            out.writeInt(ring.messages().size());
+            for (ChatMessage m : ring.messages()) {
+                out.writeLong(m.id());
+                writeString(out, m.user());
+                writeString(out, m.text());
+                writeString(out, m.timestamp());
+            }
+        }
+
+        out.close();
+        deflater.end();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        header.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    private static Contents decode(byte[] bytes) throws IOException {
+        if (bytes.length < 4) throw new IOException("truncated");
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipNBytes(bytes.length - 4);
+        if (in.readInt() != (int) crc.getValue()) throw new IOException("checksum mismatch");
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != MAGIC) throw new IOException("not a snapshot");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("version " + version + ", expected " + VERSION);
+        in = new DataInputStream(new InflaterInputStream(in));
+        long writtenAt = in.readLong();
+        boolean clean = in.readBoolean();
+        String url = readString(in);
+        if (!Database.url().equals(url)) throw new IOException("taken of " + url);
+        long lastMessageId = in.readLong();
+
+        UserDirectory.State users = null;
+        if (in.readBoolean()) {
+            long maxRowId = in.readLong();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) words[i] = in.readLong();
+            int n = in.readInt();
+            Map<String, UserDirectory.Credentials> credentials = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                credentials.put(readString(in), new UserDirectory.Credentials(readString(in), readString(in)));
+            }
+            users = new UserDirectory.State(maxRowId, words, credentials);
+        }
+
+        int n = in.readInt();
+        List<SessionTokens.Saved> tokens = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            tokens.add(new SessionTokens.Saved(readString(in), readString(in), readString(in), in.readLong(), in.readLong()));
+        }
+
+        n = in.readInt();
+        Map<String, Set<String>> memberships = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String user = readString(in);
+            int count = in.readInt();
+            Set<String> names = new HashSet<>(count * 2);
+            for (int j = 0; j < count; j++) names.add(readString(in));
+            memberships.put(user, names);
+        }
+
+        n = in.readInt();
+        List<RoomHistory.Saved> history = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String room = readString(in);
+            boolean seeded = in.readBoolean();
+            int count = in.readInt();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                messages.add(new ChatMessage(in.readLong(), room, readString(in), readString(in), readString(in)));
+            }
+            history.add(new RoomHistory.Saved(room, seeded, messages));
+        }
+        return new Contents(writtenAt, clean, lastMessageId, users, tokens, memberships, history);
+    }
+
+    // Length-prefixed UTF-8, -1 for null; writeUTF stops at 64 KB.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        return length < 0 ? null : new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain-text metrics over HTTP for scrapers: {@code GET /stats} (or {@code /metrics})
+ * returns {@link Metrics#render()}. Binds to the loopback interface only.
+ */
+public final class StatsEndpoint {
+
+    private StatsEndpoint() {}
+
+    public static void start(int port) {
+        if (port <= 0) return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/", exchange -> {
+                try (exchange) {
+                    String path = exchange.getRequestURI().getPath();
+                    if (!exchange.getRequestMethod().equals("GET") || !(path.equals("/stats") || path.equals("/metrics"))) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            });
+            server.start();
+            System.out.println("Stats endpoint on http://" + server.getAddress().getHostString() + ":" + port + "/stats");
+        } catch (IOException e) {
+            System.out.println("Stats endpoint disabled: " + e.getMessage());
+        }
+    }
+}
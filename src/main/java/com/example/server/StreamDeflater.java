@@ -0,0 +1,84 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Outbound side of a compressed TCP connection. A client that sends {@code deflate} as its
+ * first line gets a plain {@code "Compression on."} back, after which both directions are
+ * one raw DEFLATE stream (RFC 1951, no zlib header); {@code binary} may follow inside it.
+ *
+ * Each write batch is compressed and then sync-flushed, so the client can decode it at
+ * once. Batches under {@code chat.compress.threshold} bytes go out as stored blocks: still
+ * part of the stream, but without spending CPU on them. One per connection, used only by
+ * the thread that writes to the socket.
+ */
+public final class StreamDeflater {
+
+    public static final String NEGOTIATE = "deflate";
+
+    private final Deflater deflater = new Deflater(ServerConfig.COMPRESS_LEVEL, true);
+    private int level = ServerConfig.COMPRESS_LEVEL;
+    private byte[] out = new byte[8 * 1024];
+    private int length;
+
+    /**
+     * Compresses {@code batch} into one buffer, which stays valid until the next call.
+     */
+    ByteBuffer compress(List<ByteBuffer> batch) {
+        long start = System.nanoTime();
+        long in = 0;
+        for (ByteBuffer b : batch) in += b.remaining();
+        length = 0;
+        int wanted = in < ServerConfig.COMPRESS_THRESHOLD ? Deflater.NO_COMPRESSION : ServerConfig.COMPRESS_LEVEL;
+        if (wanted != level) {
+            // A new level only applies after one deflate call; make that call with no input.
+            level = wanted;
+            deflater.setLevel(level);
+            deflater.setInput(ByteBuffer.allocate(0));
+            drain(Deflater.NO_FLUSH);
+        }
+        for (ByteBuffer b : batch) {
+            deflater.setInput(b.duplicate());
+            while (!deflater.needsInput()) drain(Deflater.NO_FLUSH);
+        }
+        drain(Deflater.SYNC_FLUSH);
+        if (level == Deflater.NO_COMPRESSION) CompressionStats.TCP.skipped();
+        else CompressionStats.TCP.compressed(in, length, start);
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    private void drain(int flush) {
+        while (true) {
+            if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+            int n = deflater.deflate(out, length, out.length - length, flush);
+            length += n;
+            // Room left over means the deflater had nothing more to give.
+            if (length < out.length) return;
+        }
+    }
+
+    void end() {
+        deflater.end();
+    }
+
+    /**
+     * Reads the other direction of a compressed connection.
+     */
+    public static InputStream inflating(InputStream in) {
+        return new InflaterInputStream(in, new Inflater(true), 8192) {
+            // The stock available() says 1 until the stream ends, so a Reader on top keeps
+            // reading past the end of a line and blocks until the next one arrives.
+            @Override
+            public int available() throws IOException {
+                return !inf.needsInput() || in.available() > 0 ? 1 : 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A full mesh of plain TCP connections. Every node dials every peer and sends over that
+ * connection only; what it receives comes in over the connections the peers dialed. Each
+ * peer has a bounded send queue drained by one thread, which reconnects with backoff;
+ * messages queued while a peer is unreachable are dropped. On every connection the dialer
+ * first sends its {@link ClusterBus.Catchup} from the position the listener reports.
+ *
+ * A connection carries nothing until both ends proved they hold the shared secret: the dialer
+ * sends its node name and a nonce, the listener answers with its own nonce and an HMAC over the
+ * dialer's, and the dialer returns an HMAC over the listener's, which the listener answers
+ * with its catch-up position for the dialer. Names outside the node list are
+ * turned away, and a message is only accepted with the origin its connection proved. Traffic is
+ * not encrypted; keep the cluster port on a private network.
+ */
+public final class TcpMeshBus implements ClusterBus {
+
+    private static final Metrics.Counter DROPPED = Metrics.counter("chat_cluster_dropped_total");
+    private static final Metrics.Counter REJECTED = Metrics.counter("chat_cluster_rejected_total");
+
+    private static final int HELLO = 0x43484331; // "CHC1"
+    private static final int NONCE_BYTES = 32;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private final String self;
+    private final InetSocketAddress listen;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private volatile Catchup catchup = Catchup.NONE;
+    private volatile ServerSocket server;
+    private volatile boolean closed;
+
+    /**
+     * @param peers every other node by name, with the address it listens on
+     * @param secret shared by every node of the cluster
+     */
+    public TcpMeshBus(String self, InetSocketAddress listen, Map<String, InetSocketAddress> peers, int queueCapacity, byte[] secret) {
+        if (secret.length == 0) throw new IllegalArgumentException("The cluster secret is empty");
+        this.self = self;
+        this.listen = listen;
+        this.queueCapacity = queueCapacity;
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        peers.forEach((name, address) -> this.peers.put(name, new Peer(name, address)));
+    }
+
+    @Override
+    public void start(Consumer<ClusterMessage> receiver, Catchup catchup) throws IOException {
+        this.catchup = catchup;
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(listen);
+        server = socket;
+        daemon("chat-cluster-accept", () -> accept(socket, receiver)).start();
+        for (Peer peer : peers.values()) daemon("chat-cluster-to-" + peer.name, peer::run).start();
+        System.out.println("Cluster node " + self + " listening on " + socket.getLocalSocketAddress());
+    }
+
+    /**
+     * The port actually bound, e.g. when started on port 0.
+     */
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public boolean send(String node, ClusterMessage message) {
+        Peer peer = peers.get(node);
+        return peer != null && peer.offer(message);
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        for (Peer peer : peers.values()) peer.offer(message);
+    }
+
+    @Override
+    public int connectedPeers() {
+        int n = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.connected) n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+        for (Peer peer : peers.values()) peer.disconnect();
+    }
+
+    /* -- Inbound -- */
+
+    private void accept(ServerSocket socket, Consumer<ClusterMessage> receiver) {
+        while (!closed) {
+            try {
+                Socket conn = socket.accept();
+                conn.setTcpNoDelay(true);
+                daemon("chat-cluster-from-" + conn.getRemoteSocketAddress(), () -> receive(conn, receiver)).start();
+            } catch (IOException e) {
+                if (!closed) System.out.println("Cluster accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void receive(Socket conn, Consumer<ClusterMessage> receiver) {
+        try (conn; DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()))) {
+            String peer = acceptHandshake(conn, in, new DataOutputStream(conn.getOutputStream()));
+            if (peer == null) {
+                REJECTED.increment();
+                System.out.println("Cluster connection from " + conn.getRemoteSocketAddress() + " rejected");
+                return;
+            }
+            while (true) {
+                ClusterMessage message = ClusterMessage.read(in);
+                if (!peer.equals(message.origin())) {
+                    REJECTED.increment();
+                    continue;
+                }
+                try {
+                    receiver.accept(message);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (EOFException ignored) {
+            // peer went away; it dials again when it is back
+        } catch (IOException e) {
+            if (!closed) System.out.println("Cluster connection from " + conn.getRemoteSocketAddress() + " lost: " + e.getMessage());
+        }
+    }
+
+    /* -- Handshake -- */
+
+    // The listener's side. Returns the proven peer name, or null.
+    private String acceptHandshake(Socket conn, DataInputStream in, DataOutputStream out) throws IOException {
+        conn.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            if (in.readInt() != HELLO) return null;
+            String peer = in.readUTF();
+            byte[] theirs = in.readNBytes(NONCE_BYTES);
+            if (!peers.containsKey(peer) || theirs.length != NONCE_BYTES) return null;
+            byte[] ours = nonce();
+            out.write(ours);
+            out.write(proof("accept", self, peer, theirs));
+            out.flush();
+            byte[] answer = in.readNBytes(32);
+            if (!MessageDigest.isEqual(answer, proof("dial", peer, self, ours))) return null;
+            out.writeLong(catchup.position(peer));
+            out.flush();
+            return peer;
+        } finally {
+            conn.setSoTimeout(0);
+        }
+    }
+
+    // The dialer's side; throws if the listener isn't the peer it should be. Returns the
+    // listener's catch-up position.
+    private long dialHandshake(Peer peer, Socket s, DataInputStream in, DataOutputStream out) throws IOException {
+        s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        byte[] ours = nonce();
+        out.writeInt(HELLO);
+        out.writeUTF(self);
+        out.write(ours);
+        out.flush();
+        byte[] theirs = in.readNBytes(NONCE_BYTES);
+        byte[] answer = in.readNBytes(32);
+        if (theirs.length != NONCE_BYTES || !MessageDigest.isEqual(answer, proof("accept", peer.name, self, ours))) {
+            REJECTED.increment();
+            throw new IOException("handshake failed; is chat.cluster.secret the same on both nodes?");
+        }
+        out.write(proof("dial", self, peer.name, theirs));
+        out.flush();
+        long position = in.readLong();
+        s.setSoTimeout(0);
+        return position;
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // HMAC-SHA256 over who proves what to whom, and the other side's nonce.
+    private byte[] proof(String role, String from, String to, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update((role + '\0' + from + '\0' + to + '\0').getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* -- Outbound, one thread per peer -- */
+
+    private final class Peer {
+        final String name;
+        final InetSocketAddress address;
+        final BlockingQueue<ClusterMessage> queue = new LinkedBlockingQueue<>(queueCapacity);
+        volatile boolean connected;
+        volatile Socket socket;
+
+        Peer(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        boolean offer(ClusterMessage message) {
+            if (!connected) {
+                DROPPED.increment();
+                return false;
+            }
+            if (queue.offer(message)) return true;
+            DROPPED.increment();
+            return false;
+        }
+
+        void run() {
+            long backoffMillis = 100;
+            while (!closed) {
+                try (Socket s = new Socket()) {
+                    // Resolved on every attempt, so a peer that moved or wasn't in DNS yet is found.
+                    s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), 2000);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 16 * 1024));
+                    long position = dialHandshake(this, s, new DataInputStream(new BufferedInputStream(s.getInputStream())), out);
+                    connected = true;
+                    backoffMillis = 100;
+                    System.out.println("Cluster connected to " + name + " at " + address.getHostString() + ":" + address.getPort());
+                    // Taken after connected is set, so whatever it misses was queued and follows it.
+                    for (ClusterMessage message : catchup.since(name, position)) message.write(out);
+                    out.flush();
+                    while (!closed) {
+                        ClusterMessage message = queue.poll(1, TimeUnit.SECONDS);
+                        if (message == null) continue;
+                        // Write everything already queued, then flush once.
+                        do {
+                            message.write(out);
+                        } while ((message = queue.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (connected) System.out.println("Cluster connection to " + name + " lost: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    socket = null;
+                    DROPPED.add(queue.size());
+                    queue.clear();
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, 5000);
+            }
+        }
+
+        void disconnect() {
+            Socket s = socket;
+            if (s != null) {
+                try { s.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
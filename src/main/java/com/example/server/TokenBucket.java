@@ -0,0 +1,52 @@
+package com.example.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket held in one atomic long. Instead of a token count it keeps the time at
+ * which the bucket would be full again (the generic cell rate algorithm), so taking a token
+ * is a read and a compare-and-set, with no refill thread and no lock.
+ */
+final class TokenBucket {
+
+    private final long interval;
+    private final long capacity;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perSecond tokens added per second
+     * @param burst     tokens the bucket holds; it starts full
+     */
+    TokenBucket(int perSecond, int burst) {
+        this.interval = 1_000_000_000L / perSecond;
+        this.capacity = interval * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token. Returns 0 if there was one, otherwise the nanoseconds until there is.
+     */
+    long tryTake(long now) {
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now > 0 ? full : now) + interval;
+            long wait = next - now - capacity;
+            if (wait > 0) return wait;
+            if (fullAt.compareAndSet(full, next)) return 0;
+        }
+    }
+
+    /**
+     * Puts back a token taken by {@link #tryTake}.
+     */
+    void refund() {
+        fullAt.addAndGet(-interval);
+    }
+
+    /**
+     * Full again, so dropping it and starting a new one later changes nothing.
+     */
+    boolean idle(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory view of the users table for authentication.
+ *
+ * Credentials (username to hash and salt) are cached up to a fixed number of users, so
+ * a repeat login is a map lookup plus a hash. A Bloom filter holds every username, so
+ * checking that a new name is free usually needs no query at all: a name the filter
+ * has never seen cannot exist. The filter is filled from the table at startup and on
+ * every register, before the row is inserted.
+ */
+final class UserDirectory {
+
+    record Credentials(String hash, String salt) {}
+
+    /**
+     * What a {@link StateSnapshot} keeps: the filter's bits, cached credentials, and the largest
+     * rowid of the users table when it was taken, so a restore only reads the users added since.
+     */
+    record State(long maxRowId, long[] filterWords, Map<String, Credentials> credentials) {}
+
+    private static final Map<String, Credentials> cache = new ConcurrentHashMap<>();
+    private static volatile BloomFilter names = new BloomFilter(ServerConfig.AUTH_BLOOM_BITS);
+
+    private UserDirectory() {}
+
+    /**
+     * Rebuilds the username filter from the database and drops cached credentials.
+     */
+    static void reload() {
+        BloomFilter filter = new BloomFilter(ServerConfig.AUTH_BLOOM_BITS);
+        try {
+            Database.read("UserDirectory.reload", s -> {
+                try (Statement stmt = s.connection().createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT username FROM users")) {
+                    while (rs.next()) filter.add(rs.getString(1));
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        names = filter;
+        cache.clear();
+    }
+
+    static State export() {
+        long maxRowId;
+        try {
+            // Before copying the filter: every row up to here was reserved in it before its insert.
+            maxRowId = Database.read("UserDirectory.export", s -> {
+                try (Statement stmt = s.connection().createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM users")) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return new State(maxRowId, names.words(), new HashMap<>(cache));
+    }
+
+    /**
+     * Takes over a snapshot's filter and cache, adding users registered since. Returns false if the
+     * snapshot doesn't fit (the filter size changed, or the table can't be read); then {@link #reload()}.
+     */
+    static boolean restore(State state) {
+        if (state == null || state.filterWords().length != BloomFilter.wordsFor(ServerConfig.AUTH_BLOOM_BITS)) return false;
+        BloomFilter filter = new BloomFilter(state.filterWords());
+        try {
+            Database.read("UserDirectory.restore", s -> {
+                PreparedStatement pstmt = s.prepare("SELECT username FROM users WHERE rowid > ?");
+                pstmt.setLong(1, state.maxRowId());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) filter.add(rs.getString(1));
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+        names = filter;
+        cache.clear();
+        state.credentials().forEach(UserDirectory::put);
+        return true;
+    }
+
+    /**
+     * False means the user certainly does not exist; true means look it up.
+     */
+    static boolean mightExist(String username) {
+        return names.mightContain(username);
+    }
+
+    static Credentials get(String username) {
+        return cache.get(username);
+    }
+
+    static void put(String username, Credentials credentials) {
+        if (cache.size() >= ServerConfig.AUTH_CACHE_SIZE) evictSome();
+        cache.put(username, credentials);
+    }
+
+    /**
+     * A name is about to be inserted; call before the insert so the filter never misses it.
+     */
+    static void reserve(String username) {
+        names.add(username);
+    }
+
+    // No recency tracking: dropping an arbitrary tenth only costs a few extra queries.
+    private static void evictSome() {
+        int drop = Math.max(1, ServerConfig.AUTH_CACHE_SIZE / 10);
+        Iterator<String> it = cache.keySet().iterator();
+        while (drop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    static final class BloomFilter {
+        private static final int HASHES = 5;
+        private final AtomicLongArray bits;
+        private final long size;
+
+        BloomFilter(long bitCount) {
+            this.bits = new AtomicLongArray(wordsFor(bitCount));
+            this.size = (long) bits.length() * 64;
+        }
+
+        BloomFilter(long[] words) {
+            this.bits = new AtomicLongArray(words);
+            this.size = (long) words.length * 64;
+        }
+
+        static int wordsFor(long bitCount) {
+            return (int) Math.max(1, (bitCount + 63) / 64);
+        }
+
+        long[] words() {
+            long[] words = new long[bits.length()];
+            for (int i = 0; i < words.length; i++) words[i] = bits.get(i);
+            return words;
+        }
+
+        void add(String key) {
+            long h = hash(key);
+            int h1 = (int) h, h2 = (int) (h >>> 32);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                    // retry
+                }
+            }
+        }
+
+        boolean mightContain(String key) {
+            long h = hash(key);
+            int h1 = (int) h, h2 = (int) (h >>> 32);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        // 64-bit FNV-1a over the chars, then a final mix so both halves are usable.
+        private static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                h ^= key.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -1,98 +1,243 @@
 package com.example.server;
 
-import java.io.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class UserManager {
-    private static String DB_URL = "jdbc:sqlite:chat.db";
-    private static Connection persistentConnection;
 
-    static {
-        initializeDatabase();
+    private static final LatencyHistogram LOGIN_TIME = Metrics.histogram("chat_auth_us{op=\"login\"}");
+    private static final LatencyHistogram REGISTER_TIME = Metrics.histogram("chat_auth_us{op=\"register\"}");
+    private static final Metrics.Counter AUTH_REJECTED = Metrics.counter("chat_auth_rejected_total");
+    private static final SecureRandom random = new SecureRandom();
+
+    // Password checks run here, not on I/O or handler threads. Bounded, so a reconnect
+    // storm queues up to a limit and is then turned away instead of piling up.
+    private static final ExecutorService verifiers = newVerifierPool();
+
+    private static ExecutorService newVerifierPool() {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(ServerConfig.AUTH_THREADS, ServerConfig.AUTH_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(ServerConfig.AUTH_QUEUE), r -> {
+                    Thread t = new Thread(r, "chat-auth-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        Metrics.gauge("chat_auth_queue", () -> pool.getQueue().size());
+        return pool;
+    }
+
+    public static void init() {
+        init(true);
+    }
+
+    /**
+     * @param loadDirectory false if a snapshot already restored the {@link UserDirectory}
+     */
+    static void init(boolean loadDirectory) {
+        createTable();
+        if (loadDirectory) UserDirectory.reload();
     }
 
+    /**
+     * Switches the shared storage (for every manager) to {@code dbUrl}.
+     */
     public static void useDatabase(String dbUrl) {
-        DB_URL = dbUrl;
+        Database.useUrl(dbUrl);
         initializeDatabase();
     }
 
-    private static Connection getConnection() throws SQLException {
-        if (DB_URL.equals("jdbc:sqlite::memory:")) {
-            if (persistentConnection == null || persistentConnection.isClosed()) {
-                persistentConnection = DriverManager.getConnection(DB_URL);
-            }
-            return persistentConnection;
-        } else {
-            return DriverManager.getConnection(DB_URL);
-        }
+    private static void initializeDatabase() {
+        createTable();
+        UserDirectory.reload();
     }
 
-    private static void initializeDatabase() {
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute("""
-                    CREATE TABLE IF NOT EXISTS users (
-                        username TEXT NOT NULL PRIMARY KEY,
-                        password_hash TEXT NOT NULL,
-                        salt TEXT NOT NULL
-                        )
-                    """);
+    private static void createTable() {
+        try {
+            Database.write("UserManager.init", s -> {
+                try (Statement stmt = s.connection().createStatement()) {
+                    stmt.execute("""
+                            CREATE TABLE IF NOT EXISTS users (
+                                username TEXT NOT NULL PRIMARY KEY,
+                                password_hash TEXT NOT NULL,
+                                salt TEXT NOT NULL
+                                )
+                            """);
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public static synchronized boolean register(String username, String password) {
+    /**
+     * {@link #login} on the verification pool. Completes exceptionally with
+     * {@link RejectedExecutionException} when the pool is saturated.
+     */
+    public static CompletableFuture<Boolean> loginAsync(String username, String password) {
+        return verify(() -> login(username, password));
+    }
+
+    public static CompletableFuture<Boolean> registerAsync(String username, String password) {
+        return verify(() -> register(username, password));
+    }
+
+    private static CompletableFuture<Boolean> verify(Supplier<Boolean> check) {
+        try {
+            return CompletableFuture.supplyAsync(check, verifiers);
+        } catch (RejectedExecutionException e) {
+            AUTH_REJECTED.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public static boolean register(String username, String password) {
+        long start = System.nanoTime();
+        try {
+            return insertUser(username, password);
+        } finally {
+            REGISTER_TIME.recordSince(start);
+        }
+    }
+
+    private static boolean insertUser(String username, String password) {
         if (userExists(username)) return false;
 
         String salt = generateSalt();
         String hash = hashPassword(password, salt);
+        UserDirectory.reserve(username);
 
-        String query = "INSERT INTO users(username, password_hash, salt) VALUES(?, ?, ?)";
+        // No lock around check-then-insert: a concurrent register of the same name is ignored by the insert.
+        String query = "INSERT OR IGNORE INTO users(username, password_hash, salt) VALUES(?, ?, ?)";
 
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, hash);
-            pstmt.setString(3, salt);
-            pstmt.executeUpdate();
-            return true;
+        try {
+            boolean inserted = Database.write("UserManager.register", s -> {
+                PreparedStatement pstmt = s.prepare(query);
+                pstmt.setString(1, username);
+                pstmt.setString(2, hash);
+                pstmt.setString(3, salt);
+                boolean added = pstmt.executeUpdate() == 1;
+                if (added) UserDirectory.put(username, new UserDirectory.Credentials(hash, salt));
+                return added;
+            });
+            if (inserted) Cluster.relayUser(username, hash, salt);
+            return inserted;
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return false;
     }
 
-    public static synchronized boolean login(String username, String password) {
+    /**
+     * Stores a user registered on another cluster node. If both nodes took the same name while
+     * they couldn't reach each other, each keeps its own; the first registration a node sees
+     * wins there. Returns false only if it couldn't be stored.
+     */
+    static boolean insertReplica(String username, String hash, String salt) {
+        UserDirectory.reserve(username);
+        try {
+            Database.write("UserManager.insertReplica", s -> {
+                PreparedStatement pstmt = s.prepare("INSERT OR IGNORE INTO users(username, password_hash, salt) VALUES(?, ?, ?)");
+                pstmt.setString(1, username);
+                pstmt.setString(2, hash);
+                pstmt.setString(3, salt);
+                if (pstmt.executeUpdate() == 1) UserDirectory.put(username, new UserDirectory.Credentials(hash, salt));
+                return null;
+            });
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Every user stored here after {@code rowid}, replicas included, as USER messages from
+     * {@code origin} carrying their rowid; for a cluster peer catching up.
+     */
+    static List<ClusterMessage> registeredAfter(long rowid, String origin) {
+        try {
+            return Database.read("UserManager.registeredAfter", s -> {
+                PreparedStatement pstmt = s.prepare("SELECT rowid, username, password_hash, salt FROM users WHERE rowid > ? ORDER BY rowid");
+                pstmt.setLong(1, rowid);
+                List<ClusterMessage> users = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        users.add(ClusterMessage.user(origin, rs.getString(2), rs.getString(3), rs.getString(4), rs.getLong(1)));
+                    }
+                }
+                return users;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return List.of();
+        }
+    }
+
+    public static boolean login(String username, String password) {
+        long start = System.nanoTime();
+        try {
+            return checkPassword(username, password);
+        } finally {
+            LOGIN_TIME.recordSince(start);
+        }
+    }
+
+    private static boolean checkPassword(String username, String password) {
+        UserDirectory.Credentials stored = UserDirectory.get(username);
+        if (stored == null) {
+            if (!UserDirectory.mightExist(username)) return false;
+            stored = loadCredentials(username);
+            if (stored == null) return false;
+            UserDirectory.put(username, stored);
+        }
+        return stored.hash().equals(hashPassword(password, stored.salt()));
+    }
+
+    private static UserDirectory.Credentials loadCredentials(String username) {
         String query = "SELECT password_hash, salt FROM users WHERE username = ?";
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                String storedHash = rs.getString("password_hash");
-                String storedSalt = rs.getString("salt");
-                String hash = hashPassword(password, storedSalt);
-                return storedHash.equals(hash);
-            }
+        try {
+            return Database.read("UserManager.login", s -> {
+                PreparedStatement pstmt = s.prepare(query);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? new UserDirectory.Credentials(rs.getString("password_hash"), rs.getString("salt")) : null;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
-        return false;
     }
 
     private static boolean userExists(String username) {
+        // Names the filter has never seen don't exist; no query needed.
+        if (!UserDirectory.mightExist(username)) return false;
+        if (UserDirectory.get(username) != null) return true;
         String sql = "SELECT username FROM users WHERE username = ?";
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+        try {
+            return Database.read("UserManager.userExists", s -> {
+                PreparedStatement pstmt = s.prepare(sql);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next();
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -100,42 +245,43 @@ public class UserManager {
     }
 
     private static String generateSalt() {
-        SecureRandom random = new SecureRandom();
         byte[] bytes = new byte[16];
         random.nextBytes(bytes);
         return Base64.getEncoder().encodeToString(bytes);
     }
 
-    private static String hashPassword(String password, String salt) {
+    static String hashPassword(String password, String salt) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update((password + salt).getBytes());
-            byte[] bytes = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : bytes) sb.append(String.format("%02x", b));
-            return sb.toString();
+            return HexFormat.of().formatHex(md.digest());
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static synchronized void resetDatabase() {
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute("DROP TABLE IF EXISTS users");
-            stmt.execute("""
-                    CREATE TABLE IF NOT EXISTS users (
-                        username TEXT NOT NULL PRIMARY KEY,
-                        password_hash TEXT NOT NULL,
-                        salt TEXT NOT NULL
-                    )
-            """);
+    public static void resetDatabase() {
+        try {
+            Database.write("UserManager.resetDatabase", s -> {
+                try (Statement stmt = s.connection().createStatement()) {
+                    stmt.execute("DROP TABLE IF EXISTS users");
+                    stmt.execute("""
+                            CREATE TABLE IF NOT EXISTS users (
+                                username TEXT NOT NULL PRIMARY KEY,
+                                password_hash TEXT NOT NULL,
+                                salt TEXT NOT NULL
+                            )
+                    """);
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        UserDirectory.reload();
     }
 
-    public static synchronized void seedTestUser(String username, String password) {
+    public static void seedTestUser(String username, String password) {
         register(username, password);
     }
 }
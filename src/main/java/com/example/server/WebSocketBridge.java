@@ -1,65 +1,205 @@
 package com.example.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.ContinuousFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 
 public class WebSocketBridge extends WebSocketServer implements RoomBroadcastListener {
 
     private static final Gson gson = new Gson();
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static final Metrics.Counter OPENED = Metrics.counter("chat_connections_opened_total{transport=\"ws\"}");
+    private static final Metrics.Counter MESSAGES_IN = Metrics.counter("chat_messages_in_total{transport=\"ws\"}");
+    private static final Metrics.Counter MESSAGES_OUT = Metrics.counter("chat_messages_out_total{transport=\"ws\"}");
+    private static final Metrics.Counter COMPRESSED_SESSIONS = Metrics.counter("chat_compressed_sessions_total{transport=\"ws\"}");
+
     private final Map<WebSocket, String> wsToUser = new ConcurrentHashMap<>();
     private final Map<String, WebSocket> userToWs = new ConcurrentHashMap<>();
     private final Map<String, String> userRoom = new ConcurrentHashMap<>();
+    private final Map<WebSocket, String> resumeTokens = new ConcurrentHashMap<>();
+    // Sockets replaying missed messages after a resume.
+    private final Map<WebSocket, ReplayHold<String>> replayHolds = new ConcurrentHashMap<>();
+    private final Map<WebSocket, TokenBucket> sendLimits = new ConcurrentHashMap<>();
+    // Sockets waiting on a login/register check; their later requests run after it, in order.
+    private final Map<WebSocket, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    // Room -> sockets currently in it, so fan-out only touches the room's own members.
+    private final Map<String, Set<WebSocket>> roomSockets = new ConcurrentHashMap<>();
 
     public WebSocketBridge(int port) {
-        super(new InetSocketAddress(port));
+        // Offering permessage-deflate still accepts clients that don't ask for it.
+        super(new InetSocketAddress(port), List.of(ServerConfig.COMPRESS_WS ? new Draft_6455(new MeteredDeflate()) : new Draft_6455()));
+        // A restart must not fail to bind while the last run's connections sit in TIME_WAIT.
+        setReuseAddr(true);
+    }
+
+    /**
+     * permessage-deflate with the configured threshold and level, counted in {@link CompressionStats#WS}.
+     * The server keeps no compression context between messages (server_no_context_takeover), so a
+     * message compresses the same for every recipient: the first one compresses the shared frame
+     * in place and the others send it as it is.
+     */
+    static final class MeteredDeflate extends PerMessageDeflateExtension {
+
+        // The library would build a new Deflater at the default level after every message.
+        private static final ThreadLocal<Deflater> deflaters =
+                ThreadLocal.withInitial(() -> new Deflater(ServerConfig.COMPRESS_LEVEL, true));
+
+        MeteredDeflate() {
+            setThreshold(ServerConfig.COMPRESS_THRESHOLD);
+            getDeflater().end();
+        }
+
+        @Override
+        public void encodeFrame(Framedata frame) {
+            // Control frames, fragments and frames compressed for an earlier recipient go as they are.
+            if (!(frame instanceof DataFrame data) || frame instanceof ContinuousFrame || !frame.isFin() || frame.isRSV1()) return;
+            ByteBuffer payload = frame.getPayloadData().duplicate();
+            int before = payload.remaining();
+            if (before < getThreshold()) {
+                CompressionStats.WS.skipped();
+                return;
+            }
+            long start = System.nanoTime();
+            Deflater deflater = deflaters.get();
+            deflater.setInput(payload);
+            byte[] out = new byte[Math.max(64, before / 2)];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                if (length < out.length) break;
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            deflater.reset();
+            // RFC 7692: the 00 00 ff ff that ends the sync flush is left off.
+            length -= 4;
+            data.setRSV1(true);
+            data.setPayload(ByteBuffer.wrap(out, 0, length));
+            CompressionStats.WS.compressed(before, length, start);
+        }
+
+        // The library's copy would drop the threshold.
+        @Override
+        public IExtension copyInstance() {
+            return new MeteredDeflate();
+        }
+    }
+
+    private static boolean compressed(WebSocket ws) {
+        return ws.getDraft() instanceof Draft_6455 draft && draft.getExtension() instanceof PerMessageDeflateExtension;
     }
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        OPENED.increment();
+        if (compressed(conn)) COMPRESSED_SESSIONS.increment();
+        TokenBucket limit = RateLimits.connectionBucket();
+        if (limit != null) sendLimits.put(conn, limit);
+        // Newest message id of the socket's room it was sent; a resume replays from there.
+        conn.setAttachment(new AtomicLong());
         sendSystem(conn, "welcome", "Connected to chat WebSocket bridge.");
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        pending.remove(conn);
+        sendLimits.remove(conn);
+        replayHolds.remove(conn);
+        String token = resumeTokens.remove(conn);
         String user = wsToUser.remove(conn);
         if (user != null) {
-            userToWs.remove(user);
-            String room = userRoom.remove(user);
+            userToWs.remove(user, conn);
+            String room = moveToRoom(conn, user, null);
+            SessionTokens.suspend(token, room, lastSentId(conn));
             if (room != null) {
                 ChatServer.leaveRoom(user, room);
-                RoomManager.removeUserFromRoom(user, room);
             }
         }
     }
 
+    /**
+     * Suspends every session's token where it stands, for the snapshot taken at shutdown.
+     * The sockets stay open, and in their rooms, until the process exits.
+     */
+    void suspendSessions() {
+        resumeTokens.forEach((conn, token) -> {
+            String user = wsToUser.get(conn);
+            if (user != null) SessionTokens.suspend(token, userRoom.get(user), lastSentId(conn));
+        });
+    }
+
+    private static long lastSentId(WebSocket conn) {
+        AtomicLong last = conn.getAttachment();
+        return last == null ? 0 : last.get();
+    }
+
+    // Null for a socket that never went through onOpen.
+    private static void sent(WebSocket conn, long id) {
+        AtomicLong last = conn.getAttachment();
+        if (last != null) last.accumulateAndGet(id, Math::max);
+    }
+
     @Override
     public void onMessage(WebSocket conn, String message) {
+        CompletableFuture<Void> before = pending.get(conn);
+        CompletableFuture<Void> next = before == null
+                ? handle(conn, message)
+                : before.thenCompose(v -> handle(conn, message));
+        if (next.isDone()) return;
+        pending.put(conn, next);
+        next.whenComplete((v, e) -> pending.remove(conn, next));
+    }
+
+    // Completes when the request is fully handled; only login and register finish later.
+    private CompletableFuture<Void> handle(WebSocket conn, String message) {
         try {
-            JsonObject obj = gson.fromJson(message, JsonObject.class);
+            JsonObject obj = parse(message);
             String type = obj.has("type") ? obj.get("type").getAsString() : "";
 
             switch (type) {
-                case "register" -> handleRegister(conn, obj);
-                case "login" -> handleLogin(conn, obj);
+                case "register" -> { return handleRegister(conn, obj); }
+                case "login" -> { return handleLogin(conn, obj); }
+                case "resume" -> handleResume(conn, obj);
                 case "join" -> handleJoin(conn, obj);
                 case "leave" -> handleLeave(conn, obj);
                 case "message" -> handleMessage(conn, obj);
                 case "rooms" -> handleRooms(conn);
                 case "who" -> handleWho(conn);
+                case "history" -> handleHistory(conn, obj);
+                case "search" -> handleSearch(conn, obj);
                 default -> sendSystem(conn, "error", "Unknown message type");
             }
         } catch (Exception e) {
-            sendSystem(conn, "error", "Invalid JSON or server error: " + e.getMessage());
+            if (conn.isOpen()) sendSystem(conn, "error", "Invalid JSON or server error: " + e.getMessage());
         }
+        return DONE;
     }
 
     @Override
@@ -71,36 +211,117 @@ public class WebSocketBridge extends WebSocketServer implements RoomBroadcastLis
     public void onStart() {
         System.out.println("WebSocket bridge started on port " + getPort());
         ChatServer.addRoomBroadcastListener(this);
+        Metrics.gauge("chat_connections_active{transport=\"ws\"}", () -> getConnections().size());
     }
 
     private void sendSystem(WebSocket conn, String event, String text) {
+        conn.send(gson.toJson(system(event, text)));
+    }
+
+    private static JsonObject system(String event, String text) {
         JsonObject o = new JsonObject();
         o.addProperty("type", "system");
         o.addProperty("event", event);
         o.addProperty("text", text);
-        conn.send(gson.toJson(o));
+        return o;
     }
 
     /* -- Handlers -- */
 
-    private void handleRegister(WebSocket conn, JsonObject obj) {
+    private CompletableFuture<Void> handleRegister(WebSocket conn, JsonObject obj) {
         String username = obj.get("username").getAsString();
         String password = obj.get("password").getAsString();
-        boolean ok = UserManager.register(username, password);
-        if (ok) sendSystem(conn, "registered", "Registration successful");
-        else sendSystem(conn, "registered", "Username already exists");
+        return UserManager.registerAsync(username, password).handle((ok, err) -> {
+            if (!conn.isOpen()) return null;
+            if (err != null) sendSystem(conn, "registered", "Server busy, try again");
+            else if (ok) sendSystem(conn, "registered", "Registration successful");
+            else sendSystem(conn, "registered", "Username already exists");
+            return null;
+        });
     }
 
-    private void handleLogin(WebSocket conn, JsonObject obj) {
+    private CompletableFuture<Void> handleLogin(WebSocket conn, JsonObject obj) {
         String username = obj.get("username").getAsString();
         String password = obj.get("password").getAsString();
-        boolean ok = UserManager.login(username, password);
-        if (ok) {
-            wsToUser.put(conn, username);
-            userToWs.put(username, conn);
-            sendSystem(conn, "login", "Login successful");
-        } else {
-            sendSystem(conn, "login", "Invalid credentials");
+        return UserManager.loginAsync(username, password).handle((ok, err) -> {
+            if (!conn.isOpen()) return null;
+            if (err != null) {
+                sendSystem(conn, "login", "Server busy, try again");
+            } else if (ok) {
+                bind(conn, username);
+                String token = SessionTokens.issue(username);
+                resumeTokens.put(conn, token);
+                JsonObject res = system("login", "Login successful");
+                res.addProperty("token", token);
+                conn.send(gson.toJson(res));
+            } else {
+                sendSystem(conn, "login", "Invalid credentials");
+            }
+            return null;
+        });
+    }
+
+    // {"type":"resume", "token": "...", "lastId": <id>?} restores the user and their room, then sends
+    // the messages after lastId as a history response. Without lastId, replay starts after the
+    // newest message of the room the old socket was sent.
+    private void handleResume(WebSocket conn, JsonObject obj) {
+        if (wsToUser.containsKey(conn)) {
+            sendSystem(conn, "error", "Already logged in");
+            return;
+        }
+        SessionTokens.Resumed resumed = SessionTokens.resume(obj.has("token") ? obj.get("token").getAsString() : null);
+        if (resumed == null) {
+            sendSystem(conn, "resume", "Invalid or expired token");
+            return;
+        }
+        String username = resumed.username();
+        // A token resumed while its session is still connected carries no room; take that session's.
+        String live = ChatServer.takeOver(username, null);
+        String room = resumed.room() != null ? resumed.room() : live;
+        bind(conn, username);
+        String token = SessionTokens.issue(username);
+        resumeTokens.put(conn, token);
+        JsonObject res = system("resume", "Resumed as " + username);
+        res.addProperty("token", token);
+        if (room != null) res.addProperty("room", room);
+        conn.send(gson.toJson(res));
+        if (room == null) return;
+
+        // Attach first, then read the backlog: messages delivered meanwhile are held until it is out.
+        long lastSeen = obj.has("lastId") ? obj.get("lastId").getAsLong() : resumed.lastSeenId();
+        sent(conn, lastSeen);
+        ReplayHold<String> hold = new ReplayHold<>();
+        replayHolds.put(conn, hold);
+        ChatServer.joinRoom(username, room);
+        moveToRoom(conn, username, room);
+        MessageManager.Page missed = RoomHistory.since(room, lastSeen, MessageManager.lastAssignedId(), ServerConfig.RESUME_MAX_REPLAY);
+        sendHistory(conn, room, missed);
+        Set<Long> replayed = new HashSet<>();
+        for (ChatMessage m : missed.messages()) {
+            replayed.add(m.id());
+            sent(conn, m.id());
+        }
+        hold.release(replayed, json -> send(conn, json));
+        replayHolds.remove(conn, hold);
+    }
+
+    @Override
+    public String onTakeOver(String username) {
+        WebSocket old = userToWs.remove(username);
+        if (old == null) return null;
+        // Out of the registry first, so its onClose leaves the user's room and token alone.
+        wsToUser.remove(old);
+        resumeTokens.remove(old);
+        String room = moveToRoom(old, username, null);
+        old.close(CloseFrame.NORMAL, "Session resumed elsewhere");
+        return room;
+    }
+
+    private static void send(WebSocket conn, String json) {
+        try {
+            conn.send(json);
+        } catch (WebsocketNotConnectedException ignored) {
+            // Closing; onClose takes it out of the room.
         }
     }
 
@@ -115,18 +336,16 @@ public class WebSocketBridge extends WebSocketServer implements RoomBroadcastLis
         String oldRoom = userRoom.get(username);
         if (oldRoom != null && !oldRoom.equals(room)) {
             ChatServer.leaveRoom(username, oldRoom);
-            RoomManager.removeUserFromRoom(username, oldRoom);
         }
 
-        RoomManager.addUserToRoom(username, room);
+        AtomicLong last = conn.getAttachment();
+        if (last != null) last.set(0);
         ChatServer.joinRoom(username, room);
-        userRoom.put(username, room);
+        moveToRoom(conn, username, room);
 
-        List<String> history = MessageManager.getLastMessages(room, 20);
-        JsonObject res = new JsonObject();
-        res.addProperty("type", "history");
-        res.add("lines", gson.toJsonTree(history));
-        conn.send(gson.toJson(res));
+        MessageManager.Page recent = RoomHistory.page(room, Long.MAX_VALUE, 20);
+        sendHistory(conn, room, recent);
+        for (ChatMessage m : recent.messages()) sent(conn, m.id());
 
         sendSystem(conn, "joined", "Joined room " + room);
     }
@@ -137,10 +356,9 @@ public class WebSocketBridge extends WebSocketServer implements RoomBroadcastLis
             sendSystem(conn, "error", "Not logged in");
             return;
         }
-        String room = userRoom.remove(username);
+        String room = moveToRoom(conn, username, null);
         if (room != null) {
             ChatServer.leaveRoom(username, room);
-            RoomManager.removeUserFromRoom(username, room);
             sendSystem(conn, "left", "Left room " + room);
         } else {
             sendSystem(conn, "error", "You were not in a room");
@@ -159,25 +377,102 @@ public class WebSocketBridge extends WebSocketServer implements RoomBroadcastLis
             return;
         }
         String text = obj.get("text").getAsString();
+        if (!BinaryProtocol.fitsMessage(room, username, username + ": " + text)) {
+            sendSystem(conn, "error", "Message too long");
+            return;
+        }
+        String throttled = RateLimits.acquire(sendLimits.get(conn), username, room);
+        if (throttled != null) {
+            sendSystem(conn, "throttled", throttled);
+            return;
+        }
+
+        MESSAGES_IN.increment();
+        // Saved, recorded in room history and fanned out to both transports;
+        // WebSocket members get it back through onRoomMessage.
+        ChatServer.broadcastRoom(room, username + ": " + text, username);
+    }
+
+    // {"type":"history", "before": <id>?, "limit": <n>?} pages backward through the current room.
+    private void handleHistory(WebSocket conn, JsonObject obj) {
+        String username = wsToUser.get(conn);
+        if (username == null) {
+            sendSystem(conn, "error", "Not logged in");
+            return;
+        }
+        String room = userRoom.get(username);
+        if (room == null) {
+            sendSystem(conn, "error", "You are not in a room");
+            return;
+        }
+        long before = obj.has("before") ? obj.get("before").getAsLong() : Long.MAX_VALUE;
+        int limit = obj.has("limit") ? obj.get("limit").getAsInt() : 20;
+        sendHistory(conn, room, RoomHistory.page(room, before, limit));
+    }
 
-        MessageManager.saveMessage(room, username, text);
-        ChatServer.broadcastRoom(room, username, text);
-
-        for (Map.Entry<String, WebSocket> e : userToWs.entrySet()) {
-            if (room.equals(userRoom.get(e.getKey()))) {
-                JsonObject msg = new JsonObject();
-                msg.addProperty("type", "message");
-                msg.addProperty("room", room);
-                msg.addProperty("username", username);
-                msg.addProperty("text", text);
-                msg.addProperty("timestamp", new Date().toString());
-                e.getValue().send(gson.toJson(msg));
+    // Rooms the user is in, or just "room" if it is one of them; best match first.
+    private void handleSearch(WebSocket conn, JsonObject obj) {
+        String username = wsToUser.get(conn);
+        if (username == null) {
+            sendSystem(conn, "error", "Not logged in");
+            return;
+        }
+        Set<String> rooms = ChatServer.getUserRooms(username);
+        if (obj.has("room")) {
+            String room = obj.get("room").getAsString();
+            if (!rooms.contains(room)) {
+                sendSystem(conn, "error", "You are not in room " + room);
+                return;
             }
+            rooms = Set.of(room);
+        }
+        String query = obj.has("query") ? obj.get("query").getAsString() : "";
+        int offset = obj.has("offset") ? obj.get("offset").getAsInt() : 0;
+        int limit = obj.has("limit") ? obj.get("limit").getAsInt() : 20;
+        MessageManager.Page page = MessageManager.search(rooms, query, offset, limit);
+        JsonArray messages = new JsonArray();
+        for (ChatMessage m : page.messages()) {
+            JsonObject o = new JsonObject();
+            o.addProperty("id", m.id());
+            o.addProperty("room", m.room());
+            o.addProperty("username", m.user());
+            o.addProperty("text", m.text());
+            o.addProperty("timestamp", m.timestamp());
+            messages.add(o);
+        }
+        JsonObject res = new JsonObject();
+        res.addProperty("type", "search");
+        res.addProperty("query", query);
+        res.addProperty("offset", offset);
+        res.add("messages", messages);
+        res.addProperty("more", page.more());
+        conn.send(gson.toJson(res));
+    }
+
+    private void sendHistory(WebSocket conn, String room, MessageManager.Page page) {
+        List<String> lines = new ArrayList<>();
+        JsonArray messages = new JsonArray();
+        for (ChatMessage m : page.messages()) {
+            lines.add(m.format());
+            JsonObject o = new JsonObject();
+            o.addProperty("id", m.id());
+            o.addProperty("username", m.user());
+            o.addProperty("text", m.text());
+            o.addProperty("timestamp", m.timestamp());
+            messages.add(o);
         }
+        JsonObject res = new JsonObject();
+        res.addProperty("type", "history");
+        res.addProperty("room", room);
+        res.add("lines", gson.toJsonTree(lines));
+        res.add("messages", messages);
+        res.addProperty("more", page.more());
+        conn.send(gson.toJson(res));
     }
 
     private void handleRooms(WebSocket conn) {
-        List<String> rooms = RoomManager.getAllRooms();
+        // From memory, like the TCP side: the database trails it by the membership journal's flush.
+        List<String> rooms = List.copyOf(ChatServer.getRooms());
         JsonObject res = new JsonObject();
         res.addProperty("type", "rooms");
         res.add("rooms", gson.toJsonTree(rooms));
@@ -196,7 +491,7 @@ public class WebSocketBridge extends WebSocketServer implements RoomBroadcastLis
             return;
         }
 
-        List<String> users = RoomManager.getUsersInRoom(room);
+        List<String> users = List.copyOf(ChatServer.getRoomMembers(room));
         JsonObject res = new JsonObject();
         res.addProperty("type", "who");
         res.addProperty("room", room);
@@ -207,18 +502,79 @@ public class WebSocketBridge extends WebSocketServer implements RoomBroadcastLis
     // Implement RoomBroadcastListener interface
     @Override
     public void onRoomMessage(String roomName, String message, String sender) {
+        onRoomMessage(roomName, message, sender, 0);
+    }
+
+    @Override
+    public void onRoomMessage(String roomName, String message, String sender, long id) {
+        String json = roomMessageJson(roomName, message, sender, id);
+
+        Set<WebSocket> sockets = roomSockets.get(roomName);
+        if (sockets == null) return;
+        // Serialized and framed once per draft (normally one plain and one deflate), not once per
+        // recipient; deflate recipients share the frame compressed for the first of them.
+        Map<Draft, List<Framedata>> frames = new HashMap<>(2);
+        Function<Draft, List<Framedata>> encode = d -> d.createFrames(json, false);
+        int delivered = 0;
+        for (WebSocket ws : sockets) {
+            // Held messages count too: they go out when the replay is done.
+            if (id > 0) sent(ws, id);
+            ReplayHold<String> hold = replayHolds.isEmpty() ? null : replayHolds.get(ws);
+            if (hold != null && hold.hold(id, json)) continue;
+            try {
+                ws.sendFrame(frames.computeIfAbsent(ws.getDraft(), encode));
+                delivered++;
+            } catch (WebsocketNotConnectedException ignored) {
+                // Closing; onClose takes it out of the room.
+            }
+        }
+        MESSAGES_OUT.add(delivered);
+    }
+
+    /* -- JSON (package-private for benchmarks) -- */
+
+    static JsonObject parse(String message) {
+        return gson.fromJson(message, JsonObject.class);
+    }
+
+    // id is 0 for join/leave notices, which have none; clients pass the last id they saw to resume.
+    static String roomMessageJson(String roomName, String message, String sender, long id) {
         JsonObject msg = new JsonObject();
         msg.addProperty("type", "message");
+        if (id > 0) msg.addProperty("id", id);
         msg.addProperty("room", roomName);
         msg.addProperty("text", message);
         msg.addProperty("sender", sender);
-        String json = gson.toJson(msg);
+        return gson.toJson(msg);
+    }
 
-        for (Map.Entry<String, WebSocket> e : userToWs.entrySet()) {
-            String user = e.getKey();
-            if (roomName.equals(userRoom.get(user))) {
-                e.getValue().send(json);
+    /* -- Session registry (package-private for benchmarks) -- */
+
+    void bind(WebSocket conn, String username) {
+        wsToUser.put(conn, username);
+        userToWs.put(username, conn);
+    }
+
+    /**
+     * Moves a user's socket into {@code room}, or out of any room when it is null, and
+     * returns the previous room. The user's room and the room index change together.
+     */
+    String moveToRoom(WebSocket conn, String username, String room) {
+        String[] previous = new String[1];
+        BiFunction<String, String, String> move = (u, old) -> {
+            previous[0] = old;
+            if (old != null) {
+                roomSockets.computeIfPresent(old, (r, set) -> {
+                    set.remove(conn);
+                    return set.isEmpty() ? null : set;
+                });
             }
-        }
+            if (room != null) {
+                roomSockets.computeIfAbsent(room, r -> ConcurrentHashMap.newKeySet()).add(conn);
+            }
+            return room;
+        };
+        userRoom.compute(username, move);
+        return previous[0];
     }
 }
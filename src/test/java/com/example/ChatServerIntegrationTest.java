@@ -40,7 +40,6 @@ public class ChatServerIntegrationTest {
         UserManager.seedTestUser("alice", "123");
     }
 
-    // TODO: The tests work but there is a 'database table is locked' error with SQLite.
     @Test
     void testRegistration() throws IOException {
         try (TestClient client = new TestClient(PORT)) {
@@ -0,0 +1,410 @@
+package com.example.bench;
+
+import com.example.server.ChatServer;
+import com.example.server.LatencyHistogram;
+import com.example.testutils.TestClient;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serial;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator. Ramps up simulated users over TCP and WebSocket; each one
+ * registers, logs in, joins a room and then sends at a fixed rate. Every message carries
+ * its scheduled send time, so receivers record end-to-end delivery latency, and a sender
+ * that falls behind is charged for the delay instead of hiding it.
+ *
+ * By default the server runs in this JVM against an in-memory database, so a run can be
+ * repeated on one machine. With {@code external=true} it drives a server that is already
+ * running on {@code host}; latencies are then only meaningful if clients and server share a clock.
+ *
+ * Usage: LoadGenerator [users=1000] [ws=0.2] [rooms=20] [dist=uniform|zipf] [rate=1]
+ *                      [ramp=10] [duration=30] [host=localhost] [external=false]
+ * Each user takes one socket (two in-process), so raise the open-files limit for big runs.
+ */
+public class LoadGenerator {
+
+    private static final int TCP_PORT = 6969;
+    private static final int WS_PORT = 8080;
+    private static final String MARK = "lg@";
+    private static final String PASSWORD = "loadgen";
+    private static final long SETUP_TIMEOUT_MS = 10_000;
+
+    private final String host;
+    private final Stats stats = new Stats();
+    private volatile boolean running = true;
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile boolean recording;
+
+    private LoadGenerator(String host) {
+        this.host = host;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int users = Integer.parseInt(opts.getOrDefault("users", "1000"));
+        double wsShare = Double.parseDouble(opts.getOrDefault("ws", "0.2"));
+        int rooms = Integer.parseInt(opts.getOrDefault("rooms", "20"));
+        String dist = opts.getOrDefault("dist", "uniform");
+        double rate = Double.parseDouble(opts.getOrDefault("rate", "1"));
+        double ramp = Double.parseDouble(opts.getOrDefault("ramp", "10"));
+        double duration = Double.parseDouble(opts.getOrDefault("duration", "30"));
+        String host = opts.getOrDefault("host", "localhost");
+        boolean external = Boolean.parseBoolean(opts.getOrDefault("external", "false"));
+
+        PrintStream report = System.out;
+        if (!external) startServer();
+        waitForPort(host);
+
+        LoadGenerator gen = new LoadGenerator(host);
+        gen.run(report, users, wsShare, rooms, dist, rate, ramp, duration);
+        System.exit(0);
+    }
+
+    // In-memory database, server output to a log file so it doesn't drown the report.
+    private static void startServer() throws IOException {
+        if (System.getProperty("chat.db.url") == null) System.setProperty("chat.db.url", "jdbc:sqlite::memory:");
+        Path log = Files.createTempFile("chat-loadgen", ".log");
+        System.setOut(new PrintStream(new FileOutputStream(log.toFile()), false));
+        System.err.println("Server log: " + log);
+        Thread server = new Thread(() -> ChatServer.main(new String[0]), "chat-server-main");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private void run(PrintStream report, int users, double wsShare, int rooms, String dist,
+                     double rate, double ramp, double duration) throws Exception {
+        RoomPicker picker = new RoomPicker(rooms, dist, new Random(42));
+        String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+        int wsUsers = (int) Math.round(users * wsShare);
+
+        List<User> all = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            String name = "lg" + runId + "-" + i;
+            String room = picker.next();
+            all.add(i < wsUsers ? new WsUser(name, room) : new TcpUser(name, room));
+        }
+
+        CountDownLatch setup = new CountDownLatch(users);
+        long rampNanos = (long) (ramp * 1e9);
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            User user = all.get(i);
+            long startAt = start + (users > 1 ? rampNanos * i / (users - 1) : 0);
+            Thread.ofVirtual().name("lg-user-" + i).start(() -> {
+                sleepUntil(startAt);
+                try {
+                    user.start();
+                    stats.ready.increment();
+                } catch (AuthException e) {
+                    stats.authErrors.increment();
+                    user.close();
+                } catch (Exception e) {
+                    stats.connectErrors.increment();
+                    user.close();
+                }
+                setup.countDown();
+                if (user.joinedAt != 0) sendLoop(user, rate);
+            });
+        }
+
+        setup.await(rampNanos + TimeUnit.MILLISECONDS.toNanos(SETUP_TIMEOUT_MS), TimeUnit.NANOSECONDS);
+        long measureNanos = (long) (duration * 1e9);
+        measureStart = System.nanoTime();
+        recording = true;
+        LockSupport.parkNanos(measureNanos);
+        recording = false;
+        double window = (System.nanoTime() - measureStart) / 1e9;
+        running = false;
+        for (User u : all) u.close();
+
+        report.printf("users %d (%d tcp, %d ws), ready %d, rooms %d (%s), rate %.2f/s per user%n",
+                users, users - wsUsers, wsUsers, stats.ready.sum(), rooms, dist, rate);
+        report.printf("window %.1f s: sent %d (%.0f/s), delivered %d (%.0f/s)%n",
+                window, stats.sent.sum(), stats.sent.sum() / window,
+                stats.delivered.sum(), stats.delivered.sum() / window);
+        report.printf("latency ms: p50 %.2f  p99 %.2f  p999 %.2f  max %.2f%n",
+                stats.latency.percentile(0.50) / 1e3, stats.latency.percentile(0.99) / 1e3,
+                stats.latency.percentile(0.999) / 1e3, stats.latency.percentile(1.0) / 1e3);
+        report.printf("errors: connect %d, auth %d, send %d, disconnect %d%n",
+                stats.connectErrors.sum(), stats.authErrors.sum(),
+                stats.sendErrors.sum(), stats.disconnects.sum());
+    }
+
+    private void sendLoop(User user, double rate) {
+        long interval = (long) (1e9 / rate);
+        long next = System.nanoTime() + (long) (Math.random() * interval);
+        while (running) {
+            sleepUntil(next);
+            if (!running) break;
+            try {
+                user.send(MARK + next);
+                if (recording) stats.sent.increment();
+            } catch (IOException e) {
+                if (running) stats.sendErrors.increment();
+                return;
+            }
+            next += interval;
+        }
+    }
+
+    // Called by receivers with any inbound line or frame that may carry a marker.
+    private void received(String text, long joinedAt) {
+        int at = text.indexOf(MARK);
+        if (at < 0) return;
+        long now = System.nanoTime();
+        int from = at + MARK.length(), to = from;
+        while (to < text.length() && Character.isDigit(text.charAt(to))) to++;
+        if (to == from) return;
+        long scheduled = Long.parseLong(text, from, to, 10);
+        // Anything scheduled before this user joined is backlog, not a live delivery.
+        if (scheduled < joinedAt || !recording || scheduled < measureStart) return;
+        stats.delivered.increment();
+        stats.latency.record(now - scheduled);
+    }
+
+    private void disconnected() {
+        if (running) stats.disconnects.increment();
+    }
+
+    private static void sleepUntil(long deadline) {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) LockSupport.parkNanos(left);
+    }
+
+    private static void waitForPort(String host) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(host, TCP_PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + TCP_PORT);
+    }
+
+    /* -- Simulated users -- */
+
+    private abstract static class User implements Closeable {
+        final String name;
+        final String room;
+        volatile long joinedAt;
+
+        User(String name, String room) {
+            this.name = name;
+            this.room = room;
+        }
+
+        abstract void start() throws Exception;
+
+        abstract void send(String text) throws IOException;
+
+        @Override
+        public abstract void close();
+    }
+
+    private static final class AuthException extends Exception {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        AuthException(String message) {
+            super(message);
+        }
+    }
+
+    private final class TcpUser extends User {
+        private TestClient client;
+
+        TcpUser(String name, String room) {
+            super(name, room);
+        }
+
+        @Override
+        void start() throws Exception {
+            client = new TestClient(host, TCP_PORT);
+            until("Welcome");
+            client.send("register");
+            until("Choose username");
+            client.send(name);
+            until("Choose password");
+            client.send(PASSWORD);
+            until("Registration successful", "already exists");
+            client.send("login");
+            until("Enter username");
+            client.send(name);
+            until("Enter password");
+            client.send(PASSWORD);
+            if (!until("Login successful", "Invalid").contains("Login successful")) throw new AuthException(name);
+            joinedAt = System.nanoTime();
+            client.send("/join " + room);
+            until("Joined room");
+            Thread.ofVirtual().name("lg-read-" + name).start(this::readLoop);
+        }
+
+        private String until(String... fragments) throws IOException {
+            String line;
+            while ((line = client.readLine()) != null) {
+                for (String f : fragments) {
+                    if (line.contains(f)) return line;
+                }
+            }
+            throw new IOException("Connection closed during setup");
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = client.readLine()) != null) {
+                    // Backlog lines after /join start with "[timestamp]"; live ones don't.
+                    if (!line.startsWith("[")) received(line, joinedAt);
+                }
+            } catch (IOException ignored) {
+            }
+            disconnected();
+        }
+
+        @Override
+        void send(String text) {
+            client.send(text);
+        }
+
+        @Override
+        public void close() {
+            if (client == null) return;
+            try { client.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private final class WsUser extends User {
+        private final BlockingQueue<String> control = new LinkedBlockingQueue<>();
+        private WebSocketClient ws;
+
+        WsUser(String name, String room) {
+            super(name, room);
+        }
+
+        @Override
+        void start() throws Exception {
+            ws = new WebSocketClient(new URI("ws://" + host + ":" + WS_PORT)) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {}
+
+                @Override
+                public void onMessage(String message) {
+                    if (joinedAt != 0 && message.startsWith("{\"type\":\"message\"")) received(message, joinedAt);
+                    else control.add(message);
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    if (joinedAt != 0) disconnected();
+                    control.add("{\"closed\":true}");
+                }
+
+                @Override
+                public void onError(Exception e) {}
+            };
+            if (!ws.connectBlocking(SETUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) throw new IOException("WebSocket connect timed out");
+            ws.send(request("register"));
+            await("\"registered\"");
+            ws.send(request("login"));
+            if (!await("\"login\"").contains("Login successful")) throw new AuthException(name);
+            joinedAt = System.nanoTime();
+            ws.send("{\"type\":\"join\",\"room\":\"" + room + "\"}");
+            await("\"joined\"");
+        }
+
+        private String request(String type) {
+            return "{\"type\":\"" + type + "\",\"username\":\"" + name + "\",\"password\":\"" + PASSWORD + "\"}";
+        }
+
+        private String await(String fragment) throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETUP_TIMEOUT_MS);
+            while (true) {
+                String msg = control.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (msg == null) throw new IOException("Timed out waiting for " + fragment);
+                if (msg.contains("\"closed\"")) throw new IOException("Connection closed during setup");
+                if (msg.contains(fragment)) return msg;
+            }
+        }
+
+        @Override
+        void send(String text) throws IOException {
+            try {
+                ws.send("{\"type\":\"message\",\"text\":\"" + text + "\"}");
+            } catch (RuntimeException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (ws != null) ws.close();
+        }
+    }
+
+    /* -- Room choice -- */
+
+    private static final class RoomPicker {
+        private final String[] rooms;
+        private final double[] cumulative;
+        private final Random random;
+
+        // "zipf" weights room k by 1/k, so a few rooms get most of the users.
+        RoomPicker(int count, String dist, Random random) {
+            this.rooms = new String[count];
+            this.cumulative = new double[count];
+            this.random = random;
+            double total = 0;
+            for (int k = 0; k < count; k++) {
+                rooms[k] = "room" + k;
+                total += dist.equals("zipf") ? 1.0 / (k + 1) : 1.0;
+                cumulative[k] = total;
+            }
+            for (int k = 0; k < count; k++) cumulative[k] /= total;
+        }
+
+        String next() {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble());
+            return rooms[Math.min(rooms.length - 1, i >= 0 ? i : -i - 1)];
+        }
+    }
+
+    /* -- Results -- */
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder ready = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder connectErrors = new LongAdder();
+        final LongAdder authErrors = new LongAdder();
+        final LongAdder sendErrors = new LongAdder();
+        final LongAdder disconnects = new LongAdder();
+    }
+}
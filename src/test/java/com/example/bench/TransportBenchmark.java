@@ -0,0 +1,159 @@
+package com.example.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the TCP transports at a large number of concurrent sockets.
+ *
+ * Each mode gets its own server JVM (in a temp directory, so it has its own chat.db).
+ * The benchmark opens N sockets, waits for every welcome line, then does a few rounds
+ * of one request/reply per socket over the unauthenticated prompt, which needs no DB.
+ *
+ * Usage: TransportBenchmark [sockets=10000] [rounds=5] [modes=blocking,virtual,nio]
+ * Needs an open-files limit above the socket count.
+ */
+public class TransportBenchmark {
+
+    private static final int PORT = 6969;
+    private static final int CLIENT_THREADS = 16;
+
+    public static void main(String[] args) throws Exception {
+        int sockets = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String[] modes = args.length > 2 ? args[2].split(",") : new String[]{"blocking", "virtual", "nio"};
+
+        System.out.printf("%-9s %10s %12s %10s %10s %10s %9s %10s%n",
+                "mode", "sockets", "connect ms", "rt/s", "p50 us", "p99 us", "threads", "rss MB");
+        for (String mode : modes) {
+            runMode(mode.trim(), sockets, rounds);
+        }
+    }
+
+    private static void runMode(String mode, int sockets, int rounds) throws Exception {
+        Path dir = Files.createTempDirectory("chat-bench-" + mode);
+        Process server = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dchat.transport=" + mode,
+                "-cp", System.getProperty("java.class.path"),
+                "com.example.server.ChatServer")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .start();
+
+        List<Client> clients = new ArrayList<>(sockets);
+        ExecutorService pool = Executors.newFixedThreadPool(CLIENT_THREADS);
+        try {
+            waitForPort();
+
+            long t0 = System.nanoTime();
+            List<Future<List<Client>>> opened = new ArrayList<>();
+            for (int t = 0; t < CLIENT_THREADS; t++) {
+                int count = sockets / CLIENT_THREADS + (t < sockets % CLIENT_THREADS ? 1 : 0);
+                opened.add(pool.submit(() -> {
+                    List<Client> mine = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        Client c = new Client();
+                        c.in.readLine();
+                        mine.add(c);
+                    }
+                    return mine;
+                }));
+            }
+            for (Future<List<Client>> f : opened) clients.addAll(f.get());
+            long connectMs = (System.nanoTime() - t0) / 1_000_000;
+
+            long[] latencies = new long[clients.size() * rounds];
+            long t1 = System.nanoTime();
+            List<Future<?>> work = new ArrayList<>();
+            int slice = (clients.size() + CLIENT_THREADS - 1) / CLIENT_THREADS;
+            for (int t = 0; t < CLIENT_THREADS; t++) {
+                int from = t * slice, to = Math.min(clients.size(), from + slice);
+                work.add(pool.submit(() -> {
+                    for (int r = 0; r < rounds; r++) {
+                        for (int i = from; i < to; i++) {
+                            long start = System.nanoTime();
+                            Client c = clients.get(i);
+                            c.out.println("ping");
+                            c.in.readLine();
+                            latencies[r * clients.size() + i] = System.nanoTime() - start;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : work) f.get();
+            double seconds = (System.nanoTime() - t1) / 1e9;
+
+            Arrays.sort(latencies);
+            String[] proc = procStatus(server.pid());
+            System.out.printf("%-9s %10d %12d %10.0f %10d %10d %9s %10s%n",
+                    mode, clients.size(), connectMs, latencies.length / seconds,
+                    latencies[latencies.length / 2] / 1000,
+                    latencies[(int) (latencies.length * 0.99)] / 1000,
+                    proc[0], proc[1]);
+        } finally {
+            for (Client c : clients) c.close();
+            pool.shutdownNow();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Client c = new Client()) {
+                c.in.readLine();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+
+    // Thread count and resident memory of the server process (Linux only).
+    private static String[] procStatus(long pid) {
+        String[] result = {"?", "?"};
+        File status = new File("/proc/" + pid + "/status");
+        if (!status.exists()) return result;
+        try {
+            for (String line : Files.readAllLines(status.toPath())) {
+                if (line.startsWith("Threads:")) result[0] = line.split("\\s+")[1];
+                if (line.startsWith("VmRSS:")) result[1] = String.valueOf(Long.parseLong(line.split("\\s+")[1]) / 1024);
+            }
+        } catch (IOException ignored) {
+        }
+        return result;
+    }
+
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Client() throws IOException {
+            socket = new Socket("localhost", PORT);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 256);
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        @Override
+        public void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryProtocolTest {
+
+    @Test
+    void testLongTextIsSplitIntoFramesThatFit() throws Exception {
+        // Lines of a long reply, then one line too long for a frame of its own, in multi-byte characters.
+        StringBuilder reply = new StringBuilder();
+        for (int i = 0; i < 3000; i++) reply.append("room-").append(i).append(" 42 members\n");
+        reply.append("é".repeat(BinaryProtocol.MAX_FRAME));
+        byte[] bytes = BinaryProtocol.encode(BinaryProtocol.TEXT, 7, reply.toString());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<String> parts = new ArrayList<>();
+        while (in.available() > 0) {
+            BinaryProtocol.Frame frame = BinaryProtocol.read(in);
+            assertEquals(BinaryProtocol.TEXT, frame.op());
+            assertEquals(7, frame.id());
+            parts.add(frame.payload());
+        }
+        // Whole lines where there are line breaks, whole characters where there are none.
+        int lines = 0;
+        int accents = 0;
+        for (String part : parts) {
+            for (String line : part.split("\n")) {
+                if (line.startsWith("room-")) {
+                    assertTrue(line.matches("room-\\d+ 42 members"), line);
+                    lines++;
+                } else {
+                    assertTrue(line.matches("é+"), "split inside a character");
+                    accents += line.length();
+                }
+            }
+        }
+        assertEquals(3000, lines);
+        assertEquals(BinaryProtocol.MAX_FRAME, accents);
+
+        assertTrue(BinaryProtocol.fitsMessage("lobby", "alice", "alice: hi"));
+        assertFalse(BinaryProtocol.fitsMessage("lobby", "alice", "x".repeat(BinaryProtocol.MAX_FRAME - 20)));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryProtocol.encode(BinaryProtocol.MESSAGE, 1, "x".repeat(BinaryProtocol.MAX_FRAME)));
+    }
+}
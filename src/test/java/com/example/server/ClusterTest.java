@@ -0,0 +1,177 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterTest {
+
+    private static final byte[] SECRET = "cluster-test".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void testRingSpreadsRoomsEvenly() {
+        HashRing ring = new HashRing(List.of("a", "b", "c"), 128);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) owned.merge(ring.owner("room-" + i), 1, Integer::sum);
+
+        assertEquals(3, owned.size());
+        for (int n : owned.values()) assertTrue(n > 7_500 && n < 12_500, "share " + n);
+    }
+
+    @Test
+    void testAddingNodeOnlyMovesRoomsToIt() {
+        HashRing before = new HashRing(List.of("a", "b", "c"), 128);
+        HashRing after = new HashRing(List.of("a", "b", "c", "d"), 128);
+        int moved = 0;
+        for (int i = 0; i < 30_000; i++) {
+            String room = "room-" + i;
+            String owner = after.owner(room);
+            if (!owner.equals(before.owner(room))) {
+                assertEquals("d", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 4_500 && moved < 10_500, "moved " + moved);
+    }
+
+    @Test
+    void testLoopbackReachesOtherNodesOnly() throws Exception {
+        LoopbackBus.Hub hub = new LoopbackBus.Hub();
+        BlockingQueue<ClusterMessage> atA = new LinkedBlockingQueue<>(), atB = new LinkedBlockingQueue<>();
+        LoopbackBus a = new LoopbackBus(hub, "a"), b = new LoopbackBus(hub, "b");
+        a.start(atA::add);
+        b.start(atB::add);
+
+        ClusterMessage m = ClusterMessage.post("a", "lobby", "alice", "alice: hi");
+        a.publish(m);
+        assertEquals(m, atB.poll(5, TimeUnit.SECONDS));
+        assertFalse(a.send("a", m));
+        assertFalse(a.send("nobody", m));
+        assertNull(atA.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, a.connectedPeers());
+
+        a.close();
+        b.close();
+    }
+
+    @Test
+    void testTcpMeshCarriesMessagesBothWays() throws Exception {
+        int portA = freePort(), portB = freePort();
+        TcpMeshBus a = new TcpMeshBus("a", new InetSocketAddress("127.0.0.1", portA),
+                Map.of("b", new InetSocketAddress("127.0.0.1", portB)), 1024, SECRET);
+        TcpMeshBus b = new TcpMeshBus("b", new InetSocketAddress("127.0.0.1", portB),
+                Map.of("a", new InetSocketAddress("127.0.0.1", portA)), 1024, SECRET);
+        BlockingQueue<ClusterMessage> atA = new LinkedBlockingQueue<>(), atB = new LinkedBlockingQueue<>();
+        a.start(atA::add);
+        b.start(atB::add);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((a.connectedPeers() < 1 || b.connectedPeers() < 1) && System.nanoTime() < deadline) Thread.sleep(20);
+
+            ChatMessage stored = new ChatMessage(513, "lobby", "bob", "héllo ✓", "2024-01-01 00:00:00");
+            ClusterMessage deliver = ClusterMessage.deliver("a", "lobby", "bob", "bob: héllo ✓", stored);
+            assertTrue(a.send("b", deliver));
+            ClusterMessage received = atB.poll(5, TimeUnit.SECONDS);
+            assertEquals(deliver, received);
+            assertEquals(stored, received.stored());
+
+            ClusterMessage pm = ClusterMessage.privateMessage("b", "alice", "[PM from bob]: hi");
+            b.publish(pm);
+            assertEquals(pm, atA.poll(5, TimeUnit.SECONDS));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void testTcpMeshStartsEachConnectionWithTheCatchup() throws Exception {
+        int portA = freePort(), portB = freePort();
+        TcpMeshBus a = new TcpMeshBus("a", new InetSocketAddress("127.0.0.1", portA),
+                Map.of("b", new InetSocketAddress("127.0.0.1", portB)), 1024, SECRET);
+        TcpMeshBus b = new TcpMeshBus("b", new InetSocketAddress("127.0.0.1", portB),
+                Map.of("a", new InetSocketAddress("127.0.0.1", portA)), 1024, SECRET);
+        List<ClusterMessage> users = List.of(
+                ClusterMessage.user("a", "alice", "h1", "s1", 3),
+                ClusterMessage.user("a", "bob", "h2", "s2", 4),
+                ClusterMessage.user("a", "carol", "h3", "s3", 5));
+        BlockingQueue<Long> asked = new LinkedBlockingQueue<>();
+        BlockingQueue<ClusterMessage> atB = new LinkedBlockingQueue<>();
+        a.start(m -> {}, new ClusterBus.Catchup() {
+            @Override
+            public long position(String from) {
+                return 0;
+            }
+
+            @Override
+            public List<ClusterMessage> since(String to, long position) {
+                asked.add(position);
+                return users.stream().filter(m -> m.id() > position).toList();
+            }
+        });
+        // b already has a's users up to 3.
+        b.start(atB::add, new ClusterBus.Catchup() {
+            @Override
+            public long position(String from) {
+                return "a".equals(from) ? 3 : 0;
+            }
+
+            @Override
+            public List<ClusterMessage> since(String to, long position) {
+                return List.of();
+            }
+        });
+        try {
+            assertEquals(3L, asked.poll(5, TimeUnit.SECONDS));
+            assertEquals(users.get(1), atB.poll(5, TimeUnit.SECONDS));
+            assertEquals(users.get(2), atB.poll(5, TimeUnit.SECONDS));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void testTcpMeshRejectsPeersWithoutTheSecret() throws Exception {
+        int portB = freePort(), portC = freePort();
+        TcpMeshBus b = new TcpMeshBus("b", new InetSocketAddress("127.0.0.1", portB),
+                Map.of("a", new InetSocketAddress("127.0.0.1", freePort())), 1024, SECRET);
+        // Claims to be "a", but doesn't know the secret.
+        TcpMeshBus c = new TcpMeshBus("a", new InetSocketAddress("127.0.0.1", portC),
+                Map.of("b", new InetSocketAddress("127.0.0.1", portB)), 1024, "guess".getBytes(StandardCharsets.UTF_8));
+        BlockingQueue<ClusterMessage> atB = new LinkedBlockingQueue<>();
+        b.start(atB::add);
+        c.start(m -> {});
+        try (Socket raw = new Socket("127.0.0.1", portB)) {
+            // A frame with no handshake at all.
+            DataOutputStream out = new DataOutputStream(raw.getOutputStream());
+            ClusterMessage.privateMessage("a", "alice", "unsigned").write(out);
+            out.flush();
+            c.publish(ClusterMessage.privateMessage("a", "alice", "wrong secret"));
+            assertNull(atB.poll(1, TimeUnit.SECONDS));
+            assertEquals(0, c.connectedPeers());
+        } finally {
+            b.close();
+            c.close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompactorTest {
+
+    @TempDir
+    Path dir;
+
+    private static ChatMessage message(long id, String room, String timestamp) {
+        return new ChatMessage(id, room, "alice", "message " + id, timestamp);
+    }
+
+    private static List<Long> ids(MessageManager.Page page) {
+        return page.messages().stream().map(ChatMessage::id).toList();
+    }
+
+    @Test
+    void testSqliteTrimsByAgeAndCountInBatches() throws Exception {
+        Database.useUrl("jdbc:sqlite:" + dir.resolve("chat.db"));
+        RoomManager.init();
+        SqliteMessageStore store = new SqliteMessageStore(100, 5, 1_000);
+        try {
+            for (long id = 1; id <= 50; id++) store.append(message(id, "lobby", "2020-01-01 00:00:00"));
+            for (long id = 51; id <= 80; id++) store.append(message(id, "lobby", "2999-01-01 00:00:00"));
+            for (long id = 81; id <= 90; id++) store.append(message(id, "quiet", "2020-01-01 00:00:00"));
+            assertTrue(store.flush(5, TimeUnit.SECONDS));
+
+            MessageArchive archive = new MessageArchive(dir.resolve("archive"));
+            Compactor compactor = new Compactor(store, new Compactor.Policy(Duration.ofDays(1), 20),
+                    Map.of("quiet", new Compactor.Policy(null, 0)), archive, 60_000, 7, 0);
+            assertEquals(60, compactor.runOnce());
+
+            assertEquals(List.of(61L, 62L), ids(store.history("lobby", 63, 10)));
+            assertFalse(store.history("lobby", 63, 10).more());
+            assertEquals(10, store.history("quiet", Long.MAX_VALUE, 100).messages().size());
+            assertEquals(90, store.maxId());
+            try (Stream<Path> files = Files.list(dir.resolve("archive"))) {
+                assertEquals(60, files.mapToLong(f -> {
+                    try (Stream<String> lines = Files.lines(f)) {
+                        return lines.count();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }).sum());
+            }
+            assertEquals(0, compactor.runOnce());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void testLogStoreDropsWholeSegments() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir.resolve("log"), 1024, 0);
+        for (long id = 1; id <= 200; id++) store.append(message(id, "lobby", "2020-01-01 00:00:00"));
+        Compactor compactor = new Compactor(store, new Compactor.Policy(null, 50), Map.of(), null, 60_000, 1_000, 0);
+
+        long removed = compactor.runOnce();
+        assertTrue(removed > 0 && removed <= 150, "removed " + removed);
+        MessageManager.Page kept = store.history("lobby", Long.MAX_VALUE, 1_000);
+        assertTrue(kept.messages().size() >= 50);
+        assertEquals(200L, kept.messages().get(kept.messages().size() - 1).id());
+        assertEquals(removed + 1, kept.messages().get(0).id());
+
+        // Ids carry on from the high-water mark even once a room is emptied.
+        new Compactor(store, new Compactor.Policy(Duration.ofDays(1), 0), Map.of(), null, 60_000, 1_000, 0).runOnce();
+        assertEquals(200, new LogMessageStore(dir.resolve("log"), 1024, 0).maxId());
+    }
+}
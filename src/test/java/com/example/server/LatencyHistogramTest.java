@@ -0,0 +1,34 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int us = 1; us <= 1000; us++) h.record(us * 1000L);
+
+        assertEquals(1000, h.count());
+        assertEquals(1000, h.maxMicros());
+        assertEquals(500, h.percentile(0.5), 500 * 0.04);
+        assertEquals(990, h.percentile(0.99), 990 * 0.04);
+        assertEquals(1000, h.percentile(1.0));
+    }
+
+    @Test
+    void testBucketsCoverEveryValue() {
+        for (long v : new long[]{0, 1, 31, 32, 33, 63, 64, 1_000, 123_456_789L, Long.MAX_VALUE / 1000}) {
+            int i = LatencyHistogram.index(v);
+            assertTrue(LatencyHistogram.highest(i) >= v, "bucket of " + v);
+            if (i > 0) assertTrue(LatencyHistogram.highest(i - 1) < v, "previous bucket of " + v);
+        }
+    }
+
+    @Test
+    void testEmptyHistogram() {
+        assertEquals(0, new LatencyHistogram().percentile(0.99));
+    }
+}
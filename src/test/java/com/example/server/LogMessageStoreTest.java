@@ -0,0 +1,132 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogMessageStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private static ChatMessage message(long id, String room) {
+        return new ChatMessage(id, room, "alice", "message " + id, "2024-01-01 00:00:00");
+    }
+
+    private static List<Long> ids(MessageManager.Page page) {
+        return page.messages().stream().map(ChatMessage::id).toList();
+    }
+
+    @Test
+    void testPagesAcrossSegments() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir, 1024, 0);
+        for (long id = 1; id <= 500; id++) store.append(message(id, "lobby"));
+        store.append(message(501, "other room"));
+        try (Stream<Path> files = Files.list(dir.resolve("lobby"))) {
+            assertTrue(files.filter(f -> f.toString().endsWith(".log")).count() > 10);
+        }
+
+        MessageManager.Page newest = store.history("lobby", Long.MAX_VALUE, 3);
+        assertEquals(List.of(498L, 499L, 500L), ids(newest));
+        assertTrue(newest.more());
+        assertEquals(List.of(1L, 2L), ids(store.history("lobby", 3, 10)));
+        assertFalse(store.history("lobby", 3, 10).more());
+        assertEquals(List.of(300L, 301L), ids(store.since("lobby", 299, 301, 10)));
+        assertEquals(List.of(400L, 401L), ids(store.since("lobby", 100, 401, 2)));
+        assertTrue(store.since("lobby", 100, 401, 2).more());
+        assertEquals(List.of(501L), ids(store.history("other room", Long.MAX_VALUE, 10)));
+        assertEquals(501, store.maxId());
+
+        store.append(message(250, "lobby"));
+        assertEquals(List.of(249L, 250L, 251L), ids(store.since("lobby", 248, 251, 10)));
+    }
+
+    @Test
+    void testRefusesAnOldIdItDoesNotHave() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir, 1024, 0);
+        for (long id = 2; id <= 40; id += 2) store.append(message(id, "lobby"));
+
+        // Landing after 40 would break the id order lookups rely on.
+        store.append(message(21, "lobby"));
+        assertEquals(List.of(20L, 22L), ids(store.since("lobby", 18, 22, 10)));
+        assertEquals(List.of(38L, 40L), ids(store.history("lobby", Long.MAX_VALUE, 2)));
+        assertEquals(40, store.maxId());
+
+        store.append(message(41, "lobby"));
+        assertEquals(List.of(40L, 41L), ids(store.history("lobby", Long.MAX_VALUE, 2)));
+    }
+
+    @Test
+    void testTrimStaysWithinLimitPastTheFirstSegment() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir, 1024, 0);
+        for (long id = 1; id <= 300; id++) store.append(message(id, "lobby"));
+
+        // A limit below one segment still drops one; after that, no more than the limit.
+        MessageStore.Trimmed first = store.trim("lobby", null, 10, 1, null);
+        assertTrue(first.messages() > 1);
+        int limit = first.messages() * 3 / 2;
+        MessageStore.Trimmed second = store.trim("lobby", null, 10, limit, null);
+        assertTrue(second.messages() > 0 && second.messages() <= limit);
+        store.close();
+
+        // Counts sealed into the index survive a reopen.
+        LogMessageStore reopened = new LogMessageStore(dir, 1024, 0);
+        MessageStore.Trimmed rest = reopened.trim("lobby", null, 10, Integer.MAX_VALUE, null);
+        List<Long> left = ids(reopened.history("lobby", Long.MAX_VALUE, 300));
+        assertEquals(rest.throughId() + 1, left.get(0));
+        assertEquals(300 - first.messages() - second.messages() - rest.messages(), left.size());
+        assertTrue(left.size() >= 10);
+    }
+
+    @Test
+    void testReopenIgnoresTornTail() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir, 1 << 20, 0);
+        for (long id = 1; id <= 100; id++) store.append(message(id, "lobby"));
+        store.close();
+
+        // A record whose length made it to disk but whose body didn't.
+        Path segment;
+        try (Stream<Path> files = Files.list(dir.resolve("lobby"))) {
+            segment = files.filter(f -> f.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+            long pos = 0;
+            while (true) {
+                raf.seek(pos);
+                int length = raf.readInt();
+                if (length == 0) break;
+                pos += 8 + length + 4;
+            }
+            raf.seek(pos);
+            raf.writeInt(60);
+        }
+
+        LogMessageStore reopened = new LogMessageStore(dir, 1 << 20, 0);
+        assertEquals(100, reopened.maxId());
+        reopened.append(message(101, "lobby"));
+        assertEquals(List.of(99L, 100L, 101L), ids(reopened.history("lobby", Long.MAX_VALUE, 3)));
+    }
+
+    @Test
+    void testRoomNamesThatAreNotFileNames() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir, 1 << 20, 0);
+        store.append(message(1, "../escape"));
+        store.append(message(2, "café ☕"));
+        store.append(message(3, "x".repeat(300)));
+
+        LogMessageStore reopened = new LogMessageStore(dir, 1 << 20, 0);
+        assertEquals(List.of(1L), ids(reopened.history("../escape", Long.MAX_VALUE, 10)));
+        assertEquals(List.of(2L), ids(reopened.history("café ☕", Long.MAX_VALUE, 10)));
+        assertEquals(List.of(3L), ids(reopened.history("x".repeat(300), Long.MAX_VALUE, 10)));
+        try (Stream<Path> files = Files.list(dir.getParent())) {
+            assertFalse(files.anyMatch(f -> f.getFileName().toString().equals("escape")));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MembershipJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void useFreshDatabase() {
+        Database.useUrl("jdbc:sqlite:" + dir.resolve("chat.db"));
+        RoomManager.init();
+    }
+
+    @Test
+    void testJoinThenLeaveCancelsOut() {
+        MembershipJournal journal = new MembershipJournal(null, 60_000, 1_000);
+        journal.record("alice", "lobby", true, true);
+        journal.record("bob", "lobby", true, true);
+        journal.record("bob", "lobby", false, true);
+        assertEquals(1, journal.pendingCount());
+
+        assertTrue(journal.flush());
+        assertEquals(0, journal.pendingCount());
+        assertEquals(List.of("alice"), RoomManager.getUsersInRoom("lobby"));
+    }
+
+    @Test
+    void testLeaveOfStoredMembershipIsWritten() {
+        RoomManager.addUserToRoom("alice", "lobby");
+        MembershipJournal journal = new MembershipJournal(null, 60_000, 1_000);
+        journal.record("alice", "lobby", false, true);
+        journal.flush();
+        assertEquals(List.of(), RoomManager.getUsersInRoom("lobby"));
+    }
+
+    @Test
+    void testRecoversChangesLeftByACrash() throws Exception {
+        Path file = dir.resolve("chat.db.members");
+        RoomManager.addUserToRoom("carol", "lobby");
+        MembershipJournal crashed = new MembershipJournal(file, 60_000, 1_000);
+        crashed.start();
+        crashed.record("alice", "lobby", true, true);
+        crashed.record("bob", "lobby", true, true);
+        crashed.record("bob", "lobby", false, true);
+        crashed.record("carol", "lobby", false, true);
+        // Never flushed: all SQLite has is carol.
+        assertEquals(List.of("carol"), RoomManager.getUsersInRoom("lobby"));
+
+        MembershipJournal restarted = new MembershipJournal(file, 60_000, 1_000);
+        assertEquals(4, restarted.recover());
+        assertEquals(List.of("alice"), RoomManager.getUsersInRoom("lobby"));
+        assertFalse(Files.exists(file));
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    void testDrainReturnsLinesInOrder() {
+        OutboundQueue<String> q = new OutboundQueue<>(10, OutboundQueue.OverflowPolicy.DISCONNECT);
+        q.offer("a");
+        q.offer("b");
+        q.offer("c");
+
+        List<String> batch = new ArrayList<>();
+        assertEquals(2, q.drainTo(batch, 2));
+        assertEquals(List.of("a", "b"), batch);
+        assertEquals(1, q.size());
+    }
+
+    @Test
+    void testDisconnectPolicyRejectsWhenFull() {
+        OutboundQueue<String> q = new OutboundQueue<>(2, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(q.offer("a"));
+        assertTrue(q.offer("b"));
+        assertFalse(q.offer("c"));
+        assertEquals(2, q.size());
+    }
+
+    @Test
+    void testDropOldestPolicyKeepsNewest() {
+        OutboundQueue<String> q = new OutboundQueue<>(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        q.offer("a");
+        q.offer("b");
+        assertTrue(q.offer("c"));
+
+        List<String> batch = new ArrayList<>();
+        q.drainTo(batch, 10);
+        assertEquals(List.of("b", "c"), batch);
+    }
+
+    @Test
+    void testParsePolicy() {
+        assertEquals(OutboundQueue.OverflowPolicy.DROP_OLDEST, OutboundQueue.OverflowPolicy.parse("drop-oldest"));
+        assertEquals(OutboundQueue.OverflowPolicy.DISCONNECT, OutboundQueue.OverflowPolicy.parse("disconnect"));
+    }
+}
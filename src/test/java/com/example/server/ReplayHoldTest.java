@@ -0,0 +1,27 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplayHoldTest {
+
+    @Test
+    void testHeldLinesFollowReplayWithoutDuplicates() {
+        ReplayHold<String> hold = new ReplayHold<>();
+        // Delivered while the replay was read: 7 was in it, 9 was assigned before it but appended after.
+        assertTrue(hold.hold(7, "seven"));
+        assertTrue(hold.hold(0, "> bob joined."));
+        assertTrue(hold.hold(9, "nine"));
+        assertTrue(hold.hold(12, "twelve"));
+
+        List<String> sent = new ArrayList<>();
+        hold.release(Set.of(5L, 7L, 10L), sent::add);
+        assertEquals(List.of("> bob joined.", "nine", "twelve"), sent);
+        assertFalse(hold.hold(13, "thirteen"));
+    }
+}
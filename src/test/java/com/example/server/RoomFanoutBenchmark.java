@@ -0,0 +1,75 @@
+package com.example.server;
+
+import com.sun.management.ThreadMXBean;
+import org.java_websocket.WebSocket;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Measures WebSocket room fan-out with many sockets spread over many rooms: the
+ * room-indexed registry in {@link WebSocketBridge} against the old scan over every
+ * logged-in user. Sockets are in-process stubs that only count sends, so this is the
+ * cost of finding recipients and building frames, not of writing them. Allocation per
+ * message should stay flat as rooms grow; run with a larger socket count to check.
+ *
+ * Lives in the server package to reach the bridge's registry without a database.
+ *
+ * Usage: RoomFanoutBenchmark [sockets=50000] [rooms=5000] [messages=20000]
+ */
+public class RoomFanoutBenchmark {
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int sockets = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+        LongAdder sends = new LongAdder();
+        WebSocketBridge bridge = new WebSocketBridge(0);
+        Map<String, WebSocket> userToWs = new ConcurrentHashMap<>();
+        Map<String, String> userRoom = new ConcurrentHashMap<>();
+        for (int i = 0; i < sockets; i++) {
+            String user = "user" + i;
+            String room = "room" + (i % rooms);
+            WebSocket ws = new StubWebSocket(sends);
+            bridge.bind(ws, user);
+            bridge.moveToRoom(ws, user, room);
+            userToWs.put(user, ws);
+            userRoom.put(user, room);
+        }
+
+        System.out.printf("%d sockets, %d rooms, %d messages%n", sockets, rooms, messages);
+        System.out.printf("%-8s %12s %12s %12s %12s%n", "fan-out", "msgs/s", "us/msg", "bytes/msg", "sends");
+        for (int warm = 0; warm < 2; warm++) {
+            boolean report = warm == 1;
+            run("scan", messages, rooms, sends, report, room -> {
+                for (Map.Entry<String, WebSocket> e : userToWs.entrySet()) {
+                    if (room.equals(userRoom.get(e.getKey()))) e.getValue().send(room);
+                }
+            });
+            run("index", messages, rooms, sends, report,
+                    room -> bridge.onRoomMessage(room, "hello", "bench"));
+        }
+    }
+
+    private static void run(String name, int messages, int rooms, LongAdder sends, boolean report,
+                            Consumer<String> fanOut) {
+        // The scan is O(sockets) per message; cap its run so it finishes in reasonable time.
+        int count = name.equals("scan") ? Math.min(messages, 2_000) : messages;
+        sends.reset();
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) fanOut.accept("room" + (i % rooms));
+        long elapsed = System.nanoTime() - start;
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        if (report) {
+            System.out.printf("%-8s %12.0f %12.2f %12d %12d%n", name,
+                    count * 1e9 / elapsed, elapsed / 1e3 / count, allocated / count, sends.sum());
+        }
+    }
+}
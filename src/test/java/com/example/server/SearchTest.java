@@ -0,0 +1,80 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<Long> ids(MessageManager.Page page) {
+        return page.messages().stream().map(ChatMessage::id).toList();
+    }
+
+    private static void fill(MessageStore store) {
+        String[] texts = {
+                "lunch at noon?",
+                "Deploy finished",
+                "deploy DEPLOY, déploy is stuck",
+                "who broke the deploy",
+                "lunch",
+                "the deploy is green again",
+        };
+        for (int i = 0; i < texts.length; i++) {
+            store.append(new ChatMessage(i + 1, "ops", "alice", texts[i], "2024-01-01 00:00:00"));
+        }
+        store.append(new ChatMessage(7, "secret", "bob", "deploy keys are in the vault", "2024-01-01 00:00:00"));
+    }
+
+    private static void check(MessageStore store) {
+        // Every word has to match; repeats rank higher, then newer first.
+        assertEquals(List.of(3L, 6L), ids(store.search(Set.of("ops"), "deploy is", 0, 10)));
+        MessageManager.Page first = store.search(Set.of("ops"), "Deploy", 0, 2);
+        assertEquals(3L, first.messages().get(0).id());
+        assertTrue(first.more());
+        MessageManager.Page rest = store.search(Set.of("ops"), "deploy", 2, 10);
+        assertEquals(2, rest.messages().size());
+        assertFalse(rest.more());
+        // Only the rooms asked for, and nothing a user types is query syntax.
+        assertEquals(List.of(7L), ids(store.search(Set.of("ops", "secret"), "vault", 0, 10)));
+        assertTrue(store.search(Set.of("ops"), "vault", 0, 10).messages().isEmpty());
+        assertTrue(store.search(Set.of("ops"), "lunch OR \"deploy", 0, 10).messages().isEmpty());
+        assertEquals(List.of(5L, 1L), ids(store.search(Set.of("ops"), "LUNCH!", 0, 10)));
+    }
+
+    @Test
+    void testSqliteFullTextIndex() throws Exception {
+        Database.useUrl("jdbc:sqlite:" + dir.resolve("chat.db"));
+        RoomManager.init();
+        SqliteMessageStore store = new SqliteMessageStore(100, 5, 1_000);
+        try {
+            fill(store);
+            assertTrue(store.flush(5, TimeUnit.SECONDS));
+            check(store);
+
+            store.trim("ops", null, 3, 100, null);
+            assertEquals(Set.of(4L, 6L), Set.copyOf(ids(store.search(Set.of("ops"), "deploy", 0, 10))));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void testLogStoreInvertedIndex() throws Exception {
+        LogMessageStore store = new LogMessageStore(dir.resolve("log"), 1 << 20, 0);
+        fill(store);
+        check(store);
+
+        // Appends after the index was built are found too.
+        store.append(new ChatMessage(8, "ops", "alice", "rollback the deploy", "2024-01-01 00:00:00"));
+        assertEquals(List.of(8L), ids(store.search(Set.of("ops"), "rollback", 0, 10)));
+    }
+}
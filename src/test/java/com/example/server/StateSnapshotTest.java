@@ -0,0 +1,59 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StateSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testRoundTripRestoresTokensAndHistory() throws Exception {
+        Database.useUrl("jdbc:sqlite:" + dir.resolve("chat.db"));
+        UserManager.init();
+        RoomManager.init();
+        String token = SessionTokens.issue("snap-alice");
+        SessionTokens.suspend(token, "snap-room", 41);
+        RoomHistory.append(new ChatMessage(42, "snap-room", "snap-alice", "still here after a restart", "2024-01-01 00:00:00"));
+
+        StateSnapshot snapshot = new StateSnapshot(dir.resolve("chat.db.snapshot"), 0);
+        snapshot.write(true);
+        StateSnapshot.Contents warm = snapshot.read();
+        assertNotNull(warm);
+        assertTrue(warm.clean());
+        assertNotNull(warm.users());
+        RoomHistory.Saved ring = warm.history().stream().filter(s -> s.room().equals("snap-room")).findFirst().orElseThrow();
+        assertEquals(List.of(42L), ring.messages().stream().map(ChatMessage::id).toList());
+        assertEquals("still here after a restart", ring.messages().get(0).text());
+
+        // The token outlives the restart, less the time the server was down.
+        SessionTokens.revoke(token);
+        SessionTokens.restore(warm.tokens(), 1_000);
+        SessionTokens.Resumed resumed = SessionTokens.resume(token);
+        assertNotNull(resumed);
+        assertEquals("snap-room", resumed.room());
+        assertEquals(41, resumed.lastSeenId());
+        SessionTokens.restore(warm.tokens(), Long.MAX_VALUE / 2);
+        assertNull(SessionTokens.resume(token));
+
+        // Read once; a damaged file is ignored.
+        assertFalse(Files.exists(dir.resolve("chat.db.snapshot")));
+        assertNull(snapshot.read());
+        snapshot.write(false);
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(dir.resolve("chat.db.snapshot")));
+        assertEquals(List.of(), new StateSnapshot(dir.resolve("chat.db.snapshot"), 0).read().tokens());
+        snapshot.write(false);
+        byte[] bytes = Files.readAllBytes(dir.resolve("chat.db.snapshot"));
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(dir.resolve("chat.db.snapshot"), bytes);
+        assertNull(snapshot.read());
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An open WebSocket that only counts what is sent to it, for benchmarks of the bridge's own work.
+ */
+final class StubWebSocket implements WebSocket {
+
+    private static final Draft DRAFT = new Draft_6455();
+
+    private final LongAdder sends;
+
+    StubWebSocket(LongAdder sends) {
+        this.sends = sends;
+    }
+
+    @Override public void send(String text) { sends.increment(); }
+    @Override public void send(ByteBuffer bytes) { sends.increment(); }
+    @Override public void send(byte[] bytes) { sends.increment(); }
+    @Override public void sendFrame(Framedata frame) { sends.increment(); }
+    @Override public void sendFrame(Collection<Framedata> frames) { sends.increment(); }
+    @Override public Draft getDraft() { return DRAFT; }
+    @Override public boolean isOpen() { return true; }
+    @Override public void close(int code, String message) {}
+    @Override public void close(int code) {}
+    @Override public void close() {}
+    @Override public void closeConnection(int code, String message) {}
+    @Override public void sendPing() {}
+    @Override public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean last) {}
+    @Override public boolean hasBufferedData() { return false; }
+    @Override public InetSocketAddress getRemoteSocketAddress() { return null; }
+    @Override public InetSocketAddress getLocalSocketAddress() { return null; }
+    @Override public boolean isClosing() { return false; }
+    @Override public boolean isFlushAndClose() { return false; }
+    @Override public boolean isClosed() { return false; }
+    @Override public ReadyState getReadyState() { return ReadyState.OPEN; }
+    @Override public String getResourceDescriptor() { return "/"; }
+    @Override public <T> void setAttachment(T attachment) {}
+    @Override public <T> T getAttachment() { return null; }
+    @Override public boolean hasSSLSupport() { return false; }
+    @Override public SSLSession getSSLSession() { return null; }
+    @Override public IProtocol getProtocol() { return null; }
+}
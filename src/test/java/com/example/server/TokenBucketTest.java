@@ -0,0 +1,68 @@
+package com.example.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    void testBurstThenThrottled() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) assertEquals(0, bucket.tryTake(now));
+        long wait = bucket.tryTake(now);
+        assertTrue(wait > 0 && wait <= 100 * MS, "wait " + wait);
+    }
+
+    @Test
+    void testRefillsAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryTake(now));
+        assertTrue(bucket.tryTake(now + 50 * MS) > 0);
+        assertEquals(0, bucket.tryTake(now + 100 * MS));
+        assertFalse(bucket.idle(now + 150 * MS));
+        assertTrue(bucket.idle(now + 200 * MS));
+    }
+
+    @Test
+    void testRefundReturnsToken() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryTake(now));
+        assertTrue(bucket.tryTake(now) > 0);
+        bucket.refund();
+        assertEquals(0, bucket.tryTake(now));
+    }
+
+    @Test
+    void testConcurrentTakersNeverExceedBurst() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 1000);
+        long now = System.nanoTime();
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.tryTake(now) == 0) taken.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+        assertEquals(1000, taken.get());
+    }
+}
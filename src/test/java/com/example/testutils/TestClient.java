@@ -10,7 +10,11 @@ public class TestClient implements Closeable {
     private final PrintWriter out;
 
     public TestClient(int port) throws IOException {
-        this.socket = new Socket("localhost", port);
+        this("localhost", port);
+    }
+
+    public TestClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
         this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         this.out = new PrintWriter(socket.getOutputStream(), true);
     }